@@ -48,6 +48,7 @@ public class MainActivity extends AppCompatActivity implements
     // State variables
     private UsbDevice mSelectedDevice;
     private boolean mCameraConnected = false;
+    private boolean mPreviewStarted = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -280,6 +281,7 @@ public class MainActivity extends AppCompatActivity implements
                 // Start preview with retry logic
                 Log.d(TAG, "Starting camera preview...");
                 if (startPreviewWithRetry()) {
+                    mPreviewStarted = true;
                     updateStatus("Camera preview started successfully!");
                     mBtnStartPreview.setEnabled(false);
                     mBtnStopPreview.setEnabled(true);
@@ -302,6 +304,7 @@ public class MainActivity extends AppCompatActivity implements
         if (mUVCCamera != null) {
             try {
                 Log.d(TAG, "Stopping camera preview...");
+                mPreviewStarted = false;
                 mUVCCamera.stopPreview();
                 
                 // Small delay to ensure clean stop
@@ -415,6 +418,8 @@ public class MainActivity extends AppCompatActivity implements
                 Log.d(TAG, "Opening camera with control block...");
                 // Open the camera using control block (following official demo)
                 mUVCCamera.open(ctrlBlock);
+                // suspend streaming while there is no preview surface nor frame consumer
+                mUVCCamera.setStreamOnDemand(true);
                 mCameraConnected = true;
                 
                 // ALL UI updates must be on the main thread!
@@ -482,6 +487,15 @@ public class MainActivity extends AppCompatActivity implements
         // This ensures proper timing and error handling
         if (mCameraConnected && mUVCCamera != null) {
             Log.d(TAG, "Surface is ready for camera preview");
+            if (mPreviewStarted) {
+                // re-attaching the surface resumes suspended streaming
+                try {
+                    mUVCCamera.setPreviewDisplay(holder);
+                    Log.d(TAG, "Preview resumed on new surface");
+                } catch (Exception e) {
+                    Log.e(TAG, "Error resuming preview: " + e.getMessage());
+                }
+            }
         }
     }
 
@@ -497,13 +511,14 @@ public class MainActivity extends AppCompatActivity implements
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        Log.d(TAG, "Surface destroyed - stopping preview");
+        Log.d(TAG, "Surface destroyed - detaching preview surface");
         if (mUVCCamera != null) {
             try {
-                mUVCCamera.stopPreview();
-                Log.d(TAG, "Preview stopped due to surface destruction");
+                // camera keeps opened and suspends streaming when no other sink is attached
+                mUVCCamera.setPreviewDisplay((Surface) null);
+                Log.d(TAG, "Preview surface detached, streaming: " + mUVCCamera.isStreaming());
             } catch (Exception e) {
-                Log.e(TAG, "Error stopping preview on surface destroy: " + e.getMessage());
+                Log.e(TAG, "Error detaching preview surface: " + e.getMessage());
             }
         }
     }
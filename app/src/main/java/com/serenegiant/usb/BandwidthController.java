@@ -0,0 +1,503 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.serenegiant.usb.USBMonitor.UsbControlBlock;
+
+/**
+ * Learns the smallest safe bandwidth factor of UVCCamera#setPreviewSize for MJPEG modes
+ * from the observed sizes of compressed frames, so other cameras on the same bus can use
+ * the rest of isochronous bandwidth.
+ * Frame sizes are recorded into a window for each mode(frame size and frame rate) and
+ * the factor is calculated from a high percentile of them with headroom.
+ * Learned factors are stored into SharedPreferences for each device key
+ * (UsbControlBlock#getDeviceKeyName), and they are used on the next negotiation of the mode
+ * when this is set with UVCCamera#setBandwidthController.
+ * Truncated or corrupted frames are counted for each mode too, and the controller backs off to
+ * UVCCamera#DEFAULT_BANDWIDTH when their rate exceeds the threshold(see #setMaxCorruptionRate),
+ * because frame sizes can not show that the factor is too small. Headroom of the mode is increased
+ * on each back off, so it does not go back to the same factor.
+ * Bandwidth factor 1.0 is regarded as the bandwidth for width * height * 2 bytes frames at the frame rate,
+ * that is the maximum frame size UVC cameras usually declare(dwMaxVideoFrameBufferSize) for MJPEG.
+ */
+public class BandwidthController {
+	private static final String PREFS_NAME = "com.serenegiant.usb.BandwidthController";
+
+	public static final int DEFAULT_WINDOW_SIZE = 300;
+	public static final float DEFAULT_PERCENTILE = 99.0f;
+	public static final float DEFAULT_HEADROOM = 1.5f;
+	/**
+	 * minimum number of frames before the factor is learned
+	 */
+	public static final int DEFAULT_MIN_SAMPLES = 150;
+	public static final float MIN_BANDWIDTH = 0.1f;
+	public static final float DEFAULT_MAX_CORRUPTION_RATE = 0.01f;
+	/**
+	 * headroom is multiplied by 1 + BACKOFF_HEADROOM_STEP * (number of back offs)
+	 */
+	private static final float BACKOFF_HEADROOM_STEP = 0.25f;
+	/**
+	 * factors are rounded up to multiple of this
+	 */
+	private static final float STEP = 0.05f;
+	/**
+	 * maximum number of zero bytes after EOI
+	 */
+	private static final int MAX_PADDING = 1024;
+
+	private final SharedPreferences mPrefs;
+	private final String mDeviceKey;
+	private final Map<String, Mode> mModes = new HashMap<String, Mode>();
+	private final int mWindowSize;
+	private final int mMinSamples;
+	private volatile float mPercentile = DEFAULT_PERCENTILE;
+	private volatile float mHeadroom = DEFAULT_HEADROOM;
+	private volatile float mMaxCorruptionRate = DEFAULT_MAX_CORRUPTION_RATE;
+	/**
+	 * current mode, null: not set
+	 */
+	private Mode mMode;
+	/**
+	 * work buffer to calculate percentiles
+	 */
+	private int[] mSorted;
+
+	/**
+	 * create controller for the camera, the camera should be opened
+	 * @param context
+	 * @param camera
+	 * @return
+	 * @throws IllegalStateException the camera is not opened
+	 */
+	public static BandwidthController forCamera(final Context context, final UVCCamera camera)
+		throws IllegalStateException {
+
+		final UsbControlBlock ctrlBlock = camera.getUsbControlBlock();
+		if (ctrlBlock == null)
+			throw new IllegalStateException("camera is not opened");
+		return new BandwidthController(context, ctrlBlock.getDeviceKeyName());
+	}
+
+	/**
+	 * @param context
+	 * @param deviceKey key to store learned factors, ex. UsbControlBlock#getDeviceKeyName
+	 */
+	public BandwidthController(final Context context, final String deviceKey) {
+		this(context, deviceKey, DEFAULT_WINDOW_SIZE, DEFAULT_MIN_SAMPLES);
+	}
+
+	/**
+	 * @param context null: do not store learned factors
+	 * @param deviceKey key to store learned factors, ex. UsbControlBlock#getDeviceKeyName
+	 * @param windowSize number of recent frames for each mode to calculate percentiles
+	 * @param minSamples minimum number of frames before the factor is learned
+	 */
+	public BandwidthController(final Context context, final String deviceKey,
+		final int windowSize, final int minSamples) {
+
+		if ((windowSize <= 0) || (minSamples <= 0) || (minSamples > windowSize))
+			throw new IllegalArgumentException("invalid window size");
+		mPrefs = context != null
+			? context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE) : null;
+		mDeviceKey = deviceKey;
+		mWindowSize = windowSize;
+		mMinSamples = minSamples;
+	}
+
+	public String getDeviceKey() {
+		return mDeviceKey;
+	}
+
+	/**
+	 * set percentile of frame sizes that the factor should cover
+	 * @param percentile (0, 100]
+	 */
+	public void setPercentile(final float percentile) {
+		if ((percentile <= 0) || (percentile > 100))
+			throw new IllegalArgumentException("invalid percentile:" + percentile);
+		mPercentile = percentile;
+	}
+
+	public float getPercentile() {
+		return mPercentile;
+	}
+
+	/**
+	 * set multiplier for the percentile of frame sizes
+	 * @param headroom should be 1.0 or more
+	 */
+	public void setHeadroom(final float headroom) {
+		if (headroom < 1.0f)
+			throw new IllegalArgumentException("invalid headroom:" + headroom);
+		mHeadroom = headroom;
+	}
+
+	public float getHeadroom() {
+		return mHeadroom;
+	}
+
+	/**
+	 * set threshold of the rate of corrupted frames to back off to UVCCamera#DEFAULT_BANDWIDTH
+	 * @param rate [0, 1]
+	 */
+	public void setMaxCorruptionRate(final float rate) {
+		if ((rate < 0) || (rate > 1))
+			throw new IllegalArgumentException("invalid rate:" + rate);
+		mMaxCorruptionRate = rate;
+	}
+
+	public float getMaxCorruptionRate() {
+		return mMaxCorruptionRate;
+	}
+
+	/**
+	 * select the mode that following frames are recorded into.
+	 * the factor of the previous mode is stored if it was learned.
+	 * UVCCamera calls this when the preview size is changed.
+	 * @param width
+	 * @param height
+	 * @param fps maximum frame rate of the mode
+	 */
+	public synchronized void setMode(final int width, final int height, final int fps) {
+		final String key = getModeKey(width, height, fps);
+		if ((mMode != null) && mMode.key.equals(key)) return;
+		save();
+		Mode mode = mModes.get(key);
+		if (mode == null) {
+			mode = new Mode(key, width, height, fps, mWindowSize);
+			mModes.put(key, mode);
+		}
+		mMode = mode;
+	}
+
+	/**
+	 * create IFrameCallback that records sizes of JPEG frames and passes all frames to the callback,
+	 * you can set it with UVCCamera#setFrameCallback and UVCCamera#PIXEL_FORMAT_RAW.
+	 * Frames are checked with MjpegScanner, sizes of the valid frames are recorded and
+	 * truncated/corrupted frames are counted with #recordCorrupt.
+	 * @param callback
+	 * @return
+	 */
+	public IFrameCallback wrap(final IFrameCallback callback) {
+		return new IFrameCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				if (MjpegPassthrough.isJpeg(frame)) {
+					recordFrame(frame);
+				}
+				callback.onFrame(frame);
+			}
+		};
+	}
+
+	/**
+	 * record size of a compressed frame of current mode
+	 * @param bytes
+	 */
+	public synchronized void record(final int bytes) {
+		if (mMode != null) {
+			mMode.add(bytes);
+			updateBackoff(mMode);
+		}
+	}
+
+	/**
+	 * record a truncated or corrupted frame of current mode
+	 */
+	public synchronized void recordCorrupt() {
+		if (mMode != null) {
+			mMode.addCorrupt();
+			updateBackoff(mMode);
+		}
+	}
+
+	/**
+	 * @return ratio of corrupted frames in the recent frames of current mode
+	 */
+	public synchronized float getCorruptionRate() {
+		return (mMode != null) && (mMode.outcomeCount > 0)
+			? mMode.corruptCount / (float)mMode.outcomeCount : 0.0f;
+	}
+
+	/**
+	 * @return true if current mode backed off to UVCCamera#DEFAULT_BANDWIDTH because of corrupted frames
+	 */
+	public synchronized boolean isBackedOff() {
+		return (mMode != null) && mMode.backedOff;
+	}
+
+	/**
+	 * @return number of frames in the window of current mode
+	 */
+	public synchronized int getSampleCount() {
+		return mMode != null ? mMode.count : 0;
+	}
+
+	/**
+	 * @param percentile (0, 100]
+	 * @return frame size at the percentile in the window of current mode, 0 if no frame was recorded
+	 */
+	public synchronized int getFrameBytes(final float percentile) {
+		return mMode != null ? percentile(mMode, percentile) : 0;
+	}
+
+	/**
+	 * get the smallest safe factor for current mode from the recorded frames
+	 * @return UVCCamera#DEFAULT_BANDWIDTH if backed off,
+	 * 		stored factor or UVCCamera#DEFAULT_BANDWIDTH if not enough frames were recorded
+	 */
+	public synchronized float getRecommendedFactor() {
+		return mMode != null ? recommend(mMode) : UVCCamera.DEFAULT_BANDWIDTH;
+	}
+
+	/**
+	 * get the factor to negotiate the mode with, UVCCamera calls this when it set the preview size.
+	 * value learned in this session is used if enough frames were recorded for the mode, otherwise stored value is used.
+	 * @param width
+	 * @param height
+	 * @param fps
+	 * @return
+	 */
+	public synchronized float getFactor(final int width, final int height, final int fps) {
+		final Mode mode = mModes.get(getModeKey(width, height, fps));
+		return mode != null ? recommend(mode) : getStoredFactor(width, height, fps);
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param fps
+	 * @return stored factor of the mode, UVCCamera#DEFAULT_BANDWIDTH if it was not learned yet
+	 */
+	public float getStoredFactor(final int width, final int height, final int fps) {
+		return mPrefs != null
+			? mPrefs.getFloat(getPrefsKey(getModeKey(width, height, fps)), UVCCamera.DEFAULT_BANDWIDTH)
+			: UVCCamera.DEFAULT_BANDWIDTH;
+	}
+
+	/**
+	 * store the learned factor of current mode if enough frames were recorded
+	 * @return true if stored
+	 */
+	public synchronized boolean save() {
+		if ((mPrefs == null) || (mMode == null)
+			|| (!mMode.backedOff && (mMode.count < mMinSamples))) return false;
+		mPrefs.edit().putFloat(getPrefsKey(mMode.key), getRecommendedFactor()).apply();
+		return true;
+	}
+
+	/**
+	 * discard recorded frames, back off state and stored factors of this device
+	 */
+	public synchronized void reset() {
+		for (final Mode mode: mModes.values()) {
+			mode.clear();
+		}
+		if (mPrefs != null) {
+			final String prefix = mDeviceKey + "/";
+			final SharedPreferences.Editor editor = mPrefs.edit();
+			for (final String key: mPrefs.getAll().keySet()) {
+				if (key.startsWith(prefix)) {
+					editor.remove(key);
+				}
+			}
+			editor.apply();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (mMode == null) return "BandwidthController{" + mDeviceKey + "}";
+		return String.format(Locale.US, "BandwidthController{%s/%s,frames=%d,p50=%d,p%.1f=%d,max=%d,corrupt=%d/%d,backoffs=%d,factor=%.2f}",
+			mDeviceKey, mMode.key, mMode.count, percentile(mMode, 50),
+			mPercentile, percentile(mMode, mPercentile), percentile(mMode, 100),
+			mMode.corruptCount, mMode.outcomeCount, mMode.backoffs, getRecommendedFactor());
+	}
+
+	private void recordFrame(final ByteBuffer frame) {
+		final int width, height;
+		synchronized (this) {
+			if (mMode == null) return;
+			width = mMode.width;
+			height = mMode.height;
+		}
+		// scan outside of the lock
+		switch (MjpegScanner.validate(frame, width, height)) {
+		case MjpegScanner.RESULT_OK:
+		{
+			final int bytes = getCompleteBytes(frame);
+			record(bytes > 0 ? bytes : frame.remaining());
+			break;
+		}
+		case MjpegScanner.ERROR_BAD_SEGMENT:
+		case MjpegScanner.ERROR_BAD_SCAN:
+		case MjpegScanner.ERROR_TRUNCATED:
+		case MjpegScanner.ERROR_TOO_SMALL:
+			recordCorrupt();
+			break;
+		default:
+			// frame of other mode(ex. while changing the mode)
+			break;
+		}
+	}
+
+	/**
+	 * back off when the rate of corrupted frames exceeds the threshold,
+	 * the rate is calculated for at least mMinSamples frames so that a few frames just after
+	 * selecting the mode do not make the rate too large or small
+	 */
+	private void updateBackoff(final Mode mode) {
+		final boolean over = mode.corruptCount
+			> mMaxCorruptionRate * Math.max(mode.outcomeCount, mMinSamples);
+		if (over && !mode.backedOff) {
+			mode.backoffs++;
+		}
+		mode.backedOff = over;
+	}
+
+	private float recommend(final Mode mode) {
+		if (mode.backedOff) {
+			return UVCCamera.DEFAULT_BANDWIDTH;
+		}
+		if (mode.count < mMinSamples) {
+			return getStoredFactor(mode.width, mode.height, mode.fps);
+		}
+		final double headroom = mHeadroom * (1.0 + BACKOFF_HEADROOM_STEP * mode.backoffs);
+		final long required = (long)Math.ceil(percentile(mode, mPercentile) * headroom);
+		final long reference = (long)mode.width * mode.height * 2;
+		return round(required / (float)reference);
+	}
+
+	private int percentile(final Mode mode, final float percentile) {
+		final int n = mode.count;
+		if (n == 0) return 0;
+		if ((mSorted == null) || (mSorted.length < n)) {
+			mSorted = new int[mWindowSize];
+		}
+		System.arraycopy(mode.sizes, 0, mSorted, 0, n);
+		Arrays.sort(mSorted, 0, n);
+		// nearest rank
+		final int rank = (int)Math.ceil(percentile / 100.0 * n);
+		return mSorted[Math.max(0, Math.min(n - 1, rank - 1))];
+	}
+
+	/**
+	 * @param frame
+	 * @return frame size up to EOI excluding zero padding, 0 if the frame does not end with EOI
+	 */
+	/*package*/static int getCompleteBytes(final ByteBuffer frame) {
+		final int start = frame.position();
+		int end = frame.limit();
+		// some cameras pad frames with zeros
+		final int min = Math.max(start + 2, end - MAX_PADDING);
+		while ((end > min) && (frame.get(end - 1) == 0)) {
+			end--;
+		}
+		return (end - start >= 4) && (frame.get(end - 2) == (byte)0xff) && (frame.get(end - 1) == (byte)0xd9)
+			? end - start : 0;
+	}
+
+	/*package*/static float round(final float factor) {
+		final float result = (float)Math.ceil(factor / STEP - 1e-4) * STEP;
+		return Math.max(MIN_BANDWIDTH, Math.min(UVCCamera.DEFAULT_BANDWIDTH, result));
+	}
+
+	private static String getModeKey(final int width, final int height, final int fps) {
+		return width + "x" + height + "@" + fps;
+	}
+
+	private String getPrefsKey(final String modeKey) {
+		return mDeviceKey + "/" + modeKey;
+	}
+
+	/**
+	 * window of recent frame sizes and corrupted frames of a mode
+	 */
+	private static final class Mode {
+		private final String key;
+		private final int width, height, fps;
+		private final int[] sizes;
+		private int count, next;
+		/**
+		 * true: corrupted, for all recent frames
+		 */
+		private final boolean[] outcomes;
+		private int outcomeCount, outcomeNext, corruptCount;
+		private int backoffs;
+		private boolean backedOff;
+
+		private Mode(final String key, final int width, final int height, final int fps, final int windowSize) {
+			this.key = key;
+			this.width = width;
+			this.height = height;
+			this.fps = fps;
+			sizes = new int[windowSize];
+			outcomes = new boolean[windowSize];
+		}
+
+		private void add(final int bytes) {
+			sizes[next] = bytes;
+			next = (next + 1) % sizes.length;
+			if (count < sizes.length) {
+				count++;
+			}
+			addOutcome(false);
+		}
+
+		private void addCorrupt() {
+			addOutcome(true);
+		}
+
+		private void addOutcome(final boolean corrupt) {
+			if (outcomeCount == outcomes.length) {
+				if (outcomes[outcomeNext]) {
+					corruptCount--;
+				}
+			} else {
+				outcomeCount++;
+			}
+			outcomes[outcomeNext] = corrupt;
+			if (corrupt) {
+				corruptCount++;
+			}
+			outcomeNext = (outcomeNext + 1) % outcomes.length;
+		}
+
+		private void clear() {
+			count = next = 0;
+			outcomeCount = outcomeNext = corruptCount = 0;
+			backoffs = 0;
+			backedOff = false;
+		}
+	}
+}
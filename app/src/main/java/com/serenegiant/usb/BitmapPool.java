@@ -0,0 +1,309 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable ARGB_8888 Bitmaps for snapshots and thumbnails of UVCCamera#PIXEL_FORMAT_RGBX frames.
+ * Memory layout of RGBX is same as ARGB_8888 Bitmap, so frames are copied into Bitmaps directly.
+ * When no Bitmap of the same size is available, larger Bitmap is reconfigured and reused
+ * like BitmapFactory.Options#inBitmap. Total bytes of Bitmaps are limited by the memory budget,
+ * so capture bursts don't allocate new Bitmaps and trigger GC after the pool becomes warm.
+ * Don't recycle Bitmaps that came from this pool, return them with #release.
+ */
+public class BitmapPool {
+	private final long mMaxBytes;
+	/**
+	 * free Bitmaps, the oldest one is first
+	 */
+	private final ArrayList<Bitmap> mFree = new ArrayList<Bitmap>();
+	/**
+	 * frame sizes that are currently used, {width, height}
+	 */
+	private final ArrayList<int[]> mSizes = new ArrayList<int[]>();
+	/**
+	 * work buffer for #obtainThumbnail
+	 */
+	private ByteBuffer mWork;
+	private long mBytes;
+	private long mHitCount, mReuseCount, mMissCount, mOverBudgetCount;
+
+	/**
+	 * constructor
+	 * @param maxBytes memory budget of all Bitmaps of this pool (including Bitmaps in use)
+	 */
+	public BitmapPool(final long maxBytes) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes should be positive");
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * set frame sizes that are used now, ex. UVCCamera#getSupportedSizeList or current preview size.
+	 * free Bitmaps that are too small for all of the sizes are recycled,
+	 * so include the sizes of thumbnails if you use #obtainThumbnail.
+	 * @param sizes
+	 */
+	public synchronized void setSizes(final List<Size> sizes) {
+		mSizes.clear();
+		int minBytes = 0;
+		if (sizes != null) {
+			for (final Size size: sizes) {
+				mSizes.add(new int[] {size.width, size.height});
+				final int bytes = size.width * size.height * 4;
+				minBytes = minBytes > 0 ? Math.min(minBytes, bytes) : bytes;
+			}
+		}
+		for (int i = mFree.size() - 1; i >= 0; i--) {
+			final Bitmap bitmap = mFree.get(i);
+			// Bitmaps that can hold at least one of the sizes are kept
+			if (!isActiveSize(bitmap.getWidth(), bitmap.getHeight())
+				&& (bitmap.getAllocationByteCount() < minBytes)) {
+				remove(i);
+			}
+		}
+	}
+
+	/**
+	 * allocate Bitmaps in advance so that capture bursts never allocate
+	 * @param width
+	 * @param height
+	 * @param count
+	 * @return number of Bitmaps that are actually allocated, this may be limited by the memory budget
+	 */
+	public synchronized int preallocate(final int width, final int height, final int count) {
+		final int bytes = width * height * 4;
+		int result = 0;
+		for (int i = 0; i < count; i++) {
+			if (mBytes + bytes > mMaxBytes) break;
+			mFree.add(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+			mBytes += bytes;
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * get a Bitmap of the size, content of the Bitmap is undefined
+	 * @param width
+	 * @param height
+	 * @return null if the memory budget is exhausted
+	 */
+	public synchronized Bitmap acquire(final int width, final int height) {
+		// same size
+		for (int i = mFree.size() - 1; i >= 0; i--) {
+			final Bitmap bitmap = mFree.get(i);
+			if ((bitmap.getWidth() == width) && (bitmap.getHeight() == height)) {
+				mHitCount++;
+				return mFree.remove(i);
+			}
+		}
+		// reuse the smallest one that is large enough
+		final int bytes = width * height * 4;
+		int found = -1;
+		for (int i = mFree.size() - 1; i >= 0; i--) {
+			final int n = mFree.get(i).getAllocationByteCount();
+			if ((n >= bytes) && ((found < 0) || (n < mFree.get(found).getAllocationByteCount()))) {
+				found = i;
+			}
+		}
+		if (found >= 0) {
+			final Bitmap bitmap = mFree.remove(found);
+			bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+			mReuseCount++;
+			return bitmap;
+		}
+		// allocate new one, evict old free Bitmaps to keep the memory budget
+		while ((mBytes + bytes > mMaxBytes) && !mFree.isEmpty()) {
+			remove(0);
+		}
+		if (mBytes + bytes > mMaxBytes) {
+			mOverBudgetCount++;
+			return null;
+		}
+		mMissCount++;
+		mBytes += bytes;
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * return the Bitmap to this pool, the Bitmap should be the one that came from this pool
+	 * @param bitmap
+	 */
+	public synchronized void release(final Bitmap bitmap) {
+		if ((bitmap == null) || bitmap.isRecycled()) return;
+		mFree.add(bitmap);
+		if (mBytes > mMaxBytes) {
+			trim(mMaxBytes);
+		}
+	}
+
+	/**
+	 * get a Bitmap and copy the frame into it
+	 * @param rgbx UVCCamera#PIXEL_FORMAT_RGBX frame from its position, position is not changed
+	 * @param width
+	 * @param height
+	 * @return null if the memory budget is exhausted
+	 */
+	public Bitmap obtain(final ByteBuffer rgbx, final int width, final int height) {
+		final Bitmap result = acquire(width, height);
+		if (result != null) {
+			final int pos = rgbx.position();
+			try {
+				result.copyPixelsFromBuffer(rgbx);
+			} catch (final RuntimeException e) {
+				release(result);
+				throw e;
+			} finally {
+				rgbx.position(pos);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * get a Bitmap and copy the frame into it
+	 * @param frame UVCCamera#PIXEL_FORMAT_RGBX frame
+	 * @return null if the memory budget is exhausted
+	 * @throws IllegalArgumentException
+	 */
+	public Bitmap obtain(final FrameBuffer frame) throws IllegalArgumentException {
+		if (frame.getPixelFormat() != UVCCamera.PIXEL_FORMAT_RGBX)
+			throw new IllegalArgumentException("frame should be PIXEL_FORMAT_RGBX");
+		return obtain(frame.getBuffer(), frame.getWidth(), frame.getHeight());
+	}
+
+	/**
+	 * get a downscaled Bitmap of the frame
+	 * @param frame source frame of the scaler
+	 * @param scaler FrameScaler that outputs UVCCamera#PIXEL_FORMAT_RGBX
+	 * @return null if the memory budget is exhausted
+	 * @throws IllegalArgumentException
+	 */
+	public Bitmap obtainThumbnail(final ByteBuffer frame, final FrameScaler scaler) throws IllegalArgumentException {
+		if (scaler.getPixelFormat() != UVCCamera.PIXEL_FORMAT_RGBX)
+			throw new IllegalArgumentException("scaler should output PIXEL_FORMAT_RGBX");
+		final Bitmap result = acquire(scaler.getWidth(), scaler.getHeight());
+		if (result != null) {
+			try {
+				synchronized (this) {
+					final int bytes = scaler.getFrameBytes();
+					if ((mWork == null) || (mWork.capacity() < bytes)) {
+						mWork = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+					}
+					scaler.scale(frame, mWork);
+					result.copyPixelsFromBuffer(mWork);
+				}
+			} catch (final RuntimeException e) {
+				release(result);
+				throw e;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * recycle the least recently released free Bitmaps until total bytes becomes equal or less than the specific bytes
+	 * @param maxBytes
+	 */
+	public synchronized void trim(final long maxBytes) {
+		// same order as eviction in #acquire, Bitmaps that are not used recently are recycled first
+		while ((mBytes > maxBytes) && !mFree.isEmpty()) {
+			remove(0);
+		}
+	}
+
+	/**
+	 * recycle all free Bitmaps
+	 */
+	public void clear() {
+		trim(0);
+	}
+
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * @return total bytes of Bitmaps of this pool including Bitmaps in use
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	public synchronized int getFreeCount() {
+		return mFree.size();
+	}
+
+	/**
+	 * @return number of times that a free Bitmap of the same size was reused
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return number of times that a larger Bitmap was reconfigured and reused
+	 */
+	public synchronized long getReuseCount() {
+		return mReuseCount;
+	}
+
+	/**
+	 * @return number of times that a new Bitmap was allocated
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return number of times that #acquire failed because of the memory budget
+	 */
+	public synchronized long getOverBudgetCount() {
+		return mOverBudgetCount;
+	}
+
+	private boolean isActiveSize(final int width, final int height) {
+		final int n = mSizes.size();
+		for (int i = 0; i < n; i++) {
+			final int[] size = mSizes.get(i);
+			if ((size[0] == width) && (size[1] == height)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void remove(final int index) {
+		final Bitmap bitmap = mFree.remove(index);
+		mBytes -= bitmap.getAllocationByteCount();
+		bitmap.recycle();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How FrameHub delivers frames to a subscriber when the subscriber can not keep up with the frame rate.
+ * Frames are dropped only from the queue of the slow subscriber,
+ * so it does not add latency to other subscribers nor preview.
+ */
+public final class DeliveryPolicy {
+	/**
+	 * keep only the latest frame, older frame in the mailbox is replaced
+	 */
+	public static final int POLICY_LATEST = 0;
+	/**
+	 * bounded queue, the oldest frame is dropped when the queue is full
+	 */
+	public static final int POLICY_DROP_OLDEST = 1;
+	/**
+	 * bounded queue, the incoming frame is dropped when the queue is full
+	 */
+	public static final int POLICY_DROP_NEWEST = 2;
+	/**
+	 * bounded queue, the incoming frame waits until the queue has space or timeout
+	 */
+	public static final int POLICY_BLOCK = 3;
+
+	public final int policy;
+	public final int depth;
+	public final long timeoutNs;
+
+	private DeliveryPolicy(final int policy, final int depth, final long timeoutNs) {
+		if (depth <= 0)
+			throw new IllegalArgumentException("depth should be positive");
+		this.policy = policy;
+		this.depth = depth;
+		this.timeoutNs = timeoutNs;
+	}
+
+	/**
+	 * latest-only mailbox, suitable for preview/analytics that need only newest frame
+	 * @return
+	 */
+	public static DeliveryPolicy latest() {
+		return new DeliveryPolicy(POLICY_LATEST, 1, 0);
+	}
+
+	/**
+	 * @param depth max number of queued frames
+	 * @return
+	 */
+	public static DeliveryPolicy dropOldest(final int depth) {
+		return new DeliveryPolicy(POLICY_DROP_OLDEST, depth, 0);
+	}
+
+	/**
+	 * @param depth max number of queued frames
+	 * @return
+	 */
+	public static DeliveryPolicy dropNewest(final int depth) {
+		return new DeliveryPolicy(POLICY_DROP_NEWEST, depth, 0);
+	}
+
+	/**
+	 * Hold the incoming frame while the queue is full, for subscribers that should not lose frames like recording.
+	 * The frame waits in a hand-off slot of the subscriber instead of blocking the frame callback thread,
+	 * and it is queued when the subscriber takes a frame before timeout.
+	 * Newer frames are dropped while a frame is waiting, as if the frame callback thread was blocked.
+	 * @param depth max number of queued frames
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public static DeliveryPolicy block(final int depth, final long timeout, final TimeUnit unit) {
+		return new DeliveryPolicy(POLICY_BLOCK, depth, unit.toNanos(timeout));
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "DeliveryPolicy(policy=%d,depth=%d,timeout=%dns)", policy, depth, timeoutNs);
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-allocated direct ByteBuffer that belongs to FramePool.
+ * Unlike the ByteBuffer passed to IFrameCallback#onFrame, you can hold this
+ * and pass it to other threads until you call #release.
+ */
+public final class FrameBuffer {
+	private final FramePool mPool;
+	/**
+	 * FrameBuffer that owns the memory, only set for luma view
+	 */
+	private final FrameBuffer mParent;
+	private final AtomicInteger mRefCount = new AtomicInteger();
+	private final FrameInfo mInfo = new FrameInfo();
+	private ByteBuffer mBuffer;
+	private FrameBuffer mLumaView;
+	private LumaStats mLumaStats;
+	private boolean mHasLumaStats;
+	/**
+	 * buffer of parent that mBuffer of luma view was sliced from
+	 */
+	private ByteBuffer mViewSource;
+	/*package*/int mGeneration;
+	/*package*/int mWidth, mHeight, mPixelFormat;
+
+	/*package*/FrameBuffer(final FramePool pool, final int capacity) {
+		mPool = pool;
+		mParent = null;
+		mBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * constructor for luma view
+	 * @param parent
+	 */
+	private FrameBuffer(final FrameBuffer parent) {
+		mPool = null;
+		mParent = parent;
+	}
+
+	/**
+	 * get frame data, position is 0 and limit is the data length
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return one of UVCCamera#PIXEL_FORMAT_XXX
+	 */
+	public int getPixelFormat() {
+		return mPixelFormat;
+	}
+
+	/**
+	 * get metadata of the frame, this is valid until #release
+	 * @return
+	 */
+	public FrameInfo getInfo() {
+		return mInfo;
+	}
+
+	/**
+	 * increment reference count, you should call #release for each call of this method.
+	 * use this when you pass this buffer to multiple consumers.
+	 * @return this
+	 */
+	public FrameBuffer retain() {
+		if (mParent != null) {
+			mParent.retain();
+			return this;
+		}
+		if (mRefCount.getAndIncrement() <= 0) {
+			mRefCount.decrementAndGet();
+			throw new IllegalStateException("already released");
+		}
+		return this;
+	}
+
+	/**
+	 * decrement reference count and return this buffer to the pool when it becomes zero,
+	 * you should not access this buffer after calling this.
+	 */
+	public void release() {
+		if (mParent != null) {
+			mParent.release();
+			return;
+		}
+		final int count = mRefCount.decrementAndGet();
+		if (count == 0) {
+			mPool.recycle(this);
+		} else if (count < 0) {
+			mRefCount.set(0);
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	/**
+	 * get luma statistics of this frame, this is valid until #release
+	 * @return null if statistics were not calculated, see FrameHub#setLumaStats
+	 */
+	public LumaStats getLumaStats() {
+		if (mParent != null) {
+			return mParent.getLumaStats();
+		}
+		return mHasLumaStats ? mLumaStats : null;
+	}
+
+	/**
+	 * copy luma statistics into this frame
+	 * @param stats
+	 */
+	/*package*/void setLumaStats(final LumaStats stats) {
+		if ((mLumaStats == null) || !mLumaStats.isSameLayout(stats)) {
+			mLumaStats = new LumaStats(stats);
+		} else {
+			mLumaStats.set(stats);
+		}
+		mHasLumaStats = true;
+	}
+
+	/**
+	 * get Y plane of this frame as UVCCamera#PIXEL_FORMAT_GRAY FrameBuffer without copying,
+	 * only available for PIXEL_FORMAT_YUV420SP, PIXEL_FORMAT_NV21 and PIXEL_FORMAT_I420.
+	 * The view shares the reference count with this frame, so #retain/#release of the view
+	 * are same as those of this frame. The view is reused, it is only valid until this frame is released.
+	 * @return
+	 * @throws IllegalStateException the pixel format does not have a Y plane
+	 */
+	public synchronized FrameBuffer getLumaView() throws IllegalStateException {
+		switch (mPixelFormat) {
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			break;
+		default:
+			throw new IllegalStateException("no Y plane:" + mPixelFormat);
+		}
+		if (mParent != null) {
+			throw new IllegalStateException("already luma view");
+		}
+		if (mLumaView == null) {
+			mLumaView = new FrameBuffer(this);
+		}
+		final FrameBuffer view = mLumaView;
+		if (view.mViewSource != mBuffer) {
+			// internal buffer was re-allocated by #ensureCapacity
+			final ByteBuffer dup = mBuffer.duplicate();
+			dup.clear();
+			view.mBuffer = dup.slice().order(ByteOrder.nativeOrder());
+			view.mViewSource = mBuffer;
+		}
+		final int bytes = mWidth * mHeight;
+		view.mBuffer.clear();
+		view.mBuffer.limit(bytes);
+		view.mWidth = mWidth;
+		view.mHeight = mHeight;
+		view.mPixelFormat = UVCCamera.PIXEL_FORMAT_GRAY;
+		view.mInfo.set(mInfo).setFormat(mWidth, mHeight, UVCCamera.PIXEL_FORMAT_GRAY);
+		return view;
+	}
+
+	/**
+	 * copy frame data from the ByteBuffer that came from IFrameCallback#onFrame.
+	 * position of the source buffer is not changed.
+	 * @param frame
+	 */
+	public void copyFrom(final ByteBuffer frame) {
+		final int pos = frame.position();
+		ensureCapacity(frame.remaining());
+		mBuffer.clear();
+		mBuffer.put(frame);
+		mBuffer.flip();
+		frame.position(pos);
+	}
+
+	/**
+	 * re-allocate internal buffer if it is smaller than required,
+	 * this will happen only when frame size is larger than expected (ex. some MJPEG frames)
+	 * @param capacity
+	 */
+	/*package*/void ensureCapacity(final int capacity) {
+		if (mBuffer.capacity() < capacity) {
+			mBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/*package*/void obtain() {
+		mRefCount.set(1);
+		mHasLumaStats = false;
+		mBuffer.clear();
+	}
+}
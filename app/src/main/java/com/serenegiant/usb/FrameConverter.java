@@ -0,0 +1,169 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pixel format conversion on Java side, same as native side conversion of UVCCamera#setFrameCallback.
+ * Source frame should be PIXEL_FORMAT_YUV(YUYV), other pixel formats can only be copied as is
+ * or converted to PIXEL_FORMAT_GRAY.
+ * Like native side, this class never execute color space conversion except RGB565/RGBX (BT.601).
+ */
+public final class FrameConverter {
+
+	private FrameConverter() {
+		// static utility class
+	}
+
+	/**
+	 * @param srcFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param dstFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @return true if #convert supports the combination of pixel formats
+	 */
+	public static boolean isSupported(final int srcFormat, final int dstFormat) {
+		if (srcFormat == dstFormat) return true;
+		if (dstFormat == UVCCamera.PIXEL_FORMAT_GRAY) return LumaExtractor.isSupported(srcFormat);
+		if (srcFormat != UVCCamera.PIXEL_FORMAT_YUV) return false;
+		switch (dstFormat) {
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * convert pixel format.
+	 * data from position of src are read and position of src is not changed.
+	 * dst is written from 0 and flipped so its position is 0 and limit is the data length.
+	 * @param src
+	 * @param srcFormat
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param dstFormat
+	 * @throws IllegalArgumentException the combination of pixel format is not supported
+	 */
+	public static void convert(final ByteBuffer src, final int srcFormat,
+		final int width, final int height,
+		final ByteBuffer dst, final int dstFormat) throws IllegalArgumentException {
+
+		if (srcFormat == dstFormat) {
+			final int pos = src.position();
+			dst.clear();
+			dst.put(src);
+			dst.flip();
+			src.position(pos);
+			return;
+		}
+		if (!isSupported(srcFormat, dstFormat))
+			throw new IllegalArgumentException("unsupported conversion:" + srcFormat + "->" + dstFormat);
+		if (dstFormat == UVCCamera.PIXEL_FORMAT_GRAY) {
+			LumaExtractor.extract(src, srcFormat, width, height, dst, width);
+			return;
+		}
+		final int offset = src.position();
+		switch (dstFormat) {
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+			yuyv2rgb565(src, offset, width, height, dst);
+			break;
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+			yuyv2rgbx(src, offset, width, height, dst);
+			break;
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			// use YuvConverter if you want to convert on multiple threads
+			YuvConverter.convertRows(src, offset, width, height, dst, dstFormat, 0, height, null);
+			break;
+		}
+		dst.position(0);
+		dst.limit(FramePool.getFrameBytes(width, height, dstFormat));
+	}
+
+	private static void yuyv2rgbx(final ByteBuffer src, final int offset,
+		final int width, final int height, final ByteBuffer dst) {
+
+		final int n = width * height / 2;
+		int s = offset, d = 0;
+		for (int i = 0; i < n; i++, s += 4) {
+			final int y0 = src.get(s) & 0xff;
+			final int u = (src.get(s + 1) & 0xff) - 128;
+			final int y1 = src.get(s + 2) & 0xff;
+			final int v = (src.get(s + 3) & 0xff) - 128;
+			final int rv = 409 * v + 128;
+			final int guv = -100 * u - 208 * v + 128;
+			final int bu = 516 * u + 128;
+			int c = 298 * (y0 - 16);
+			dst.put(d++, clamp((c + rv) >> 8));
+			dst.put(d++, clamp((c + guv) >> 8));
+			dst.put(d++, clamp((c + bu) >> 8));
+			dst.put(d++, (byte)0xff);
+			c = 298 * (y1 - 16);
+			dst.put(d++, clamp((c + rv) >> 8));
+			dst.put(d++, clamp((c + guv) >> 8));
+			dst.put(d++, clamp((c + bu) >> 8));
+			dst.put(d++, (byte)0xff);
+		}
+	}
+
+	private static void yuyv2rgb565(final ByteBuffer src, final int offset,
+		final int width, final int height, final ByteBuffer dst) {
+
+		final int n = width * height / 2;
+		int s = offset, d = 0;
+		for (int i = 0; i < n; i++, s += 4) {
+			final int y0 = src.get(s) & 0xff;
+			final int u = (src.get(s + 1) & 0xff) - 128;
+			final int y1 = src.get(s + 2) & 0xff;
+			final int v = (src.get(s + 3) & 0xff) - 128;
+			final int rv = 409 * v + 128;
+			final int guv = -100 * u - 208 * v + 128;
+			final int bu = 516 * u + 128;
+			int c = 298 * (y0 - 16);
+			int rgb = rgb565(c + rv, c + guv, c + bu);
+			dst.put(d++, (byte)rgb);
+			dst.put(d++, (byte)(rgb >> 8));
+			c = 298 * (y1 - 16);
+			rgb = rgb565(c + rv, c + guv, c + bu);
+			dst.put(d++, (byte)rgb);
+			dst.put(d++, (byte)(rgb >> 8));
+		}
+	}
+
+	private static int rgb565(final int r, final int g, final int b) {
+		return ((clamp(r >> 8) & 0xf8) << 8)
+			| ((clamp(g >> 8) & 0xfc) << 3)
+			| ((clamp(b >> 8) & 0xff) >> 3);
+	}
+
+	private static byte clamp(final int v) {
+		return (byte)(v < 0 ? 0 : (v > 255 ? 255 : v));
+	}
+}
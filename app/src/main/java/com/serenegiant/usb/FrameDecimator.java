@@ -0,0 +1,99 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+
+/**
+ * Decide which frames are delivered to a subscriber to reduce its frame rate.
+ * Frames that are not accepted are never converted nor copied for the subscriber.
+ * #accept is called only from the frame callback thread.
+ */
+public class FrameDecimator {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final int mInterval;
+	private final long mFrameIntervalNs;
+	private long mCount;
+	private long mNextTimeNs;
+	private long mLastTimeNs;
+
+	private FrameDecimator(final int interval, final long frameIntervalNs) {
+		mInterval = interval;
+		mFrameIntervalNs = frameIntervalNs;
+	}
+
+	/**
+	 * accept every Nth frame
+	 * @param n 1 means all frames
+	 * @return
+	 */
+	public static FrameDecimator everyNth(final int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("n should be positive");
+		return new FrameDecimator(n, 0);
+	}
+
+	/**
+	 * accept frames at the target frame rate, frames are selected with their capture timestamp
+	 * so the delivered frame rate does not drift even if the camera frame rate fluctuates
+	 * @param fps
+	 * @return
+	 */
+	public static FrameDecimator targetFps(final float fps) {
+		if (fps <= 0)
+			throw new IllegalArgumentException("fps should be positive");
+		return new FrameDecimator(1, (long)(NANOS_PER_SECOND / fps));
+	}
+
+	/**
+	 * @param timestampNs capture time of the frame(FrameInfo#captureTimeNs)
+	 * @return true if the frame should be delivered
+	 */
+	public boolean accept(final long timestampNs) {
+		if (mFrameIntervalNs <= 0) {
+			return (mCount++ % mInterval) == 0;
+		}
+		final long delta = mLastTimeNs != 0 ? timestampNs - mLastTimeNs : 0;
+		mLastTimeNs = timestampNs;
+		// accept the frame that is nearest to the due time
+		if ((mNextTimeNs == 0) || (timestampNs + delta / 2 >= mNextTimeNs)) {
+			if ((mNextTimeNs == 0) || (timestampNs - mNextTimeNs > mFrameIntervalNs)) {
+				// first frame or too late(ex. camera was paused), restart pacing
+				mNextTimeNs = timestampNs + mFrameIntervalNs;
+			} else {
+				mNextTimeNs += mFrameIntervalNs;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return mFrameIntervalNs > 0
+			? String.format(Locale.US, "FrameDecimator(fps=%4.1f)", (float)NANOS_PER_SECOND / mFrameIntervalNs)
+			: String.format(Locale.US, "FrameDecimator(every %d frames)", mInterval);
+	}
+}
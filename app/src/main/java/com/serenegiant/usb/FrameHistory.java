@@ -0,0 +1,322 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.SystemClock;
+
+/**
+ * Fixed size off-heap circular history of recent frames, for pre-event capture.
+ * Frames are copied into one direct ByteBuffer and old frames are overwritten,
+ * so the history never uses Java heap nor allocates memory on the frame callback thread.
+ * You can extract frames of a time range from other thread while the frames are being recorded.
+ */
+public class FrameHistory implements IFrameCallback, IFrameInfoCallback {
+	private static final long INVALID = -1;
+
+	/**
+	 * callback interface for #extract
+	 */
+	public interface FrameVisitor {
+		/**
+		 * @param frame frame data, valid only in this method
+		 * @param info metadata of the frame, valid only in this method
+		 * @return false if you want to stop extracting
+		 */
+		public boolean onFrame(ByteBuffer frame, FrameInfo info);
+	}
+
+	private final ByteBuffer mData;
+	private final int mCapacity;
+	private final int mMaxFrames;
+	/**
+	 * record number that each slot holds, INVALID while the slot is being overwritten
+	 */
+	private final AtomicLongArray mVersions;
+	private final long[] mTimes, mSequences, mPts;
+	private final int[] mOffsets, mLengths, mWidths, mHeights, mPixelFormats, mFrameFormats;
+	/**
+	 * [mTail, mHead) are record numbers of valid frames
+	 */
+	private volatile long mHead, mTail;
+	/**
+	 * only accessed from the producer thread
+	 */
+	private int mWritePos;
+	private long mSequence;
+	private final FrameInfo mInfo = new FrameInfo();
+	private volatile int mWidth, mHeight, mPixelFormat;
+
+	/**
+	 * @param capacityBytes size of off-heap buffer
+	 * @param maxFrames max number of frames
+	 * @param width
+	 * @param height
+	 * @param pixelFormat pixel format passed to UVCCamera#setFrameCallback
+	 */
+	public FrameHistory(final int capacityBytes, final int maxFrames,
+		final int width, final int height, final int pixelFormat) {
+
+		if ((capacityBytes <= 0) || (maxFrames <= 0))
+			throw new IllegalArgumentException("capacity and maxFrames should be positive");
+		mCapacity = capacityBytes;
+		mMaxFrames = maxFrames;
+		mData = ByteBuffer.allocateDirect(capacityBytes).order(ByteOrder.nativeOrder());
+		mVersions = new AtomicLongArray(maxFrames);
+		for (int i = 0; i < maxFrames; i++) {
+			mVersions.set(i, INVALID);
+		}
+		mTimes = new long[maxFrames];
+		mSequences = new long[maxFrames];
+		mPts = new long[maxFrames];
+		mOffsets = new int[maxFrames];
+		mLengths = new int[maxFrames];
+		mWidths = new int[maxFrames];
+		mHeights = new int[maxFrames];
+		mPixelFormats = new int[maxFrames];
+		mFrameFormats = new int[maxFrames];
+		mWidth = width;
+		mHeight = height;
+		mPixelFormat = pixelFormat;
+	}
+
+	/**
+	 * create FrameHistory that can hold frames of specific duration
+	 * @param seconds
+	 * @param fps
+	 * @param width
+	 * @param height
+	 * @param pixelFormat pixel format passed to UVCCamera#setFrameCallback,
+	 * 			for PIXEL_FORMAT_RAW with MJPEG it is better to use the constructor with actual frame size
+	 * @return
+	 */
+	public static FrameHistory create(final float seconds, final float fps,
+		final int width, final int height, final int pixelFormat) {
+
+		final int frames = Math.max(1, (int)Math.ceil(seconds * fps));
+		final long bytes = (long)frames * FramePool.getFrameBytes(width, height, pixelFormat);
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too large history");
+		return new FrameHistory((int)bytes, frames + 1, width, height, pixelFormat);
+	}
+
+	/**
+	 * change frame size of following frames
+	 * @param width
+	 * @param height
+	 */
+	public void resize(final int width, final int height) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * IFrameCallback, producer side
+	 * @param frame
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame) {
+		mInfo.captureTimeNs = SystemClock.elapsedRealtimeNanos();
+		mInfo.sequence = mSequence++;
+		mInfo.setFormat(mWidth, mHeight, mPixelFormat);
+		publish(frame, mInfo);
+	}
+
+	/**
+	 * IFrameInfoCallback, producer side
+	 * @param frame
+	 * @param info
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame, final FrameInfo info) {
+		publish(frame, info);
+	}
+
+	/**
+	 * append the frame to the history, old frames are overwritten.
+	 * only one thread can call this.
+	 * @param frame
+	 * @param info captureTimeNs should be monotonic
+	 * @return false if the frame is larger than the history
+	 */
+	public boolean publish(final ByteBuffer frame, final FrameInfo info) {
+		final int len = frame.remaining();
+		if (len > mCapacity) return false;
+		long tail = mTail;
+		final long head = mHead;
+		int pos = mWritePos;
+		if (pos + len > mCapacity) {
+			// wrap around, frames after the write position are the oldest
+			while ((tail < head) && (mOffsets[slot(tail)] >= pos)) {
+				mVersions.getAndSet(slot(tail), INVALID);
+				tail++;
+			}
+			pos = 0;
+		}
+		// drop the oldest frames that overlap with the new frame
+		final int end = pos + len;
+		while (tail < head) {
+			final int s = slot(tail);
+			final int offset = mOffsets[s];
+			if ((head - tail < mMaxFrames)
+				&& ((offset >= end) || (offset + mLengths[s] <= pos))) {
+				break;
+			}
+			// getAndSet works as a fence so readers never see overwritten data with valid version
+			mVersions.getAndSet(s, INVALID);
+			tail++;
+		}
+		mTail = tail;
+		final int framePos = frame.position();
+		mData.limit(end);
+		mData.position(pos);
+		mData.put(frame);
+		frame.position(framePos);
+		final int s = slot(head);
+		mTimes[s] = info.captureTimeNs;
+		mSequences[s] = info.sequence;
+		mPts[s] = info.pts;
+		mOffsets[s] = pos;
+		mLengths[s] = len;
+		mWidths[s] = info.width;
+		mHeights[s] = info.height;
+		mPixelFormats[s] = info.pixelFormat;
+		mFrameFormats[s] = info.frameFormat;
+		mVersions.set(s, head);
+		mHead = head + 1;
+		mWritePos = end;
+		return true;
+	}
+
+	/**
+	 * @return number of frames in the history
+	 */
+	public int getFrameCount() {
+		return (int)(mHead - mTail);
+	}
+
+	/**
+	 * @return max data size of a frame, buffer for #extract should be larger than this
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * @return capture time of the oldest frame, -1 if the history is empty
+	 */
+	public long getOldestTimeNs() {
+		final long tail = mTail;
+		return tail < mHead ? mTimes[slot(tail)] : -1;
+	}
+
+	/**
+	 * @return capture time of the newest frame, -1 if the history is empty
+	 */
+	public long getNewestTimeNs() {
+		final long head = mHead;
+		return mTail < head ? mTimes[slot(head - 1)] : -1;
+	}
+
+	/**
+	 * extract frames of the last duration from the newest frame
+	 * @param durationNs
+	 * @param work direct ByteBuffer to copy each frame into
+	 * @param visitor
+	 * @return number of frames that were passed to the visitor
+	 */
+	public int extractLast(final long durationNs, final ByteBuffer work, final FrameVisitor visitor) {
+		final long newest = getNewestTimeNs();
+		return newest >= 0 ? extract(newest - durationNs, newest, work, visitor) : 0;
+	}
+
+	/**
+	 * extract frames whose capture time is in [fromNs, toNs] in time order.
+	 * you can call this from any thread while recording,
+	 * frames that are overwritten while extracting are skipped.
+	 * @param fromNs
+	 * @param toNs
+	 * @param work buffer to copy each frame into, its capacity should be larger than the frames
+	 * @param visitor
+	 * @return number of frames that were passed to the visitor
+	 */
+	public int extract(final long fromNs, final long toNs, final ByteBuffer work, final FrameVisitor visitor) {
+		final ByteBuffer data = mData.duplicate();
+		final FrameInfo info = new FrameInfo();
+		final long head = mHead;
+		int result = 0;
+		for (long rec = findFirst(fromNs, head); rec < head; rec++) {
+			final int s = slot(rec);
+			if (mVersions.get(s) != rec) continue;	// already overwritten
+			info.captureTimeNs = mTimes[s];
+			info.sequence = mSequences[s];
+			info.pts = mPts[s];
+			info.setFormat(mWidths[s], mHeights[s], mPixelFormats[s]);
+			info.frameFormat = mFrameFormats[s];
+			final int offset = mOffsets[s];
+			final int len = mLengths[s];
+			// metadata may come from different frames if the slot was overwritten while reading them
+			if (!mVersions.compareAndSet(s, rec, rec)) continue;
+			if ((offset < 0) || (len < 0) || (offset + len > mCapacity)) continue;
+			if (info.captureTimeNs > toNs) break;
+			if (len > work.capacity())
+				throw new IllegalArgumentException("work buffer is too small");
+			data.limit(offset + len);
+			data.position(offset);
+			work.clear();
+			work.put(data);
+			work.flip();
+			// compareAndSet works as a fence and fails if the frame was overwritten while copying
+			if (!mVersions.compareAndSet(s, rec, rec)) continue;
+			if (info.captureTimeNs < fromNs) continue;
+			result++;
+			if (!visitor.onFrame(work, info)) break;
+		}
+		return result;
+	}
+
+	/**
+	 * binary search the first record whose capture time is equal or later than the time
+	 */
+	private long findFirst(final long timeNs, final long head) {
+		long lo = mTail, hi = head;
+		while (lo < hi) {
+			final long mid = (lo + hi) >>> 1;
+			if (mTimes[slot(mid)] < timeNs) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		// the tail may move while searching
+		return Math.max(lo, mTail);
+	}
+
+	private int slot(final long rec) {
+		return (int)(rec % mMaxFrames);
+	}
+}
@@ -0,0 +1,791 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Deliver frames from UVCCamera#setFrameCallback to multiple subscribers.
+ * Each subscriber has its own pixel format and Executor, so slow subscriber never stalls
+ * other subscribers and the JNI thread.
+ * Frames are converted only once for each pixel format and shared by the subscribers
+ * as reference counted FrameBuffer.
+ */
+public class FrameHub implements IFrameCallback {
+	private static final boolean DEBUG = false;	// TODO set false when releasing
+	private static final String TAG = FrameHub.class.getSimpleName();
+
+	public static final int DEFAULT_FRAMES_PER_FORMAT = 4;
+	public static final int DEFAULT_QUEUE_DEPTH = 2;
+	private static final DeliveryPolicy DEFAULT_POLICY = DeliveryPolicy.dropNewest(DEFAULT_QUEUE_DEPTH);
+	/**
+	 * number of pixel formats, UVCCamera#PIXEL_FORMAT_RAW..UVCCamera#PIXEL_FORMAT_GRAY
+	 */
+	private static final int NUM_PIXEL_FORMATS = UVCCamera.PIXEL_FORMAT_GRAY + 1;
+	private static final Subscriber[] EMPTY = new Subscriber[0];
+
+	private final Object mSync = new Object();
+	private final int mSourceFormat;
+	private final int mFramesPerFormat;
+	private final FramePool[] mPools = new FramePool[NUM_PIXEL_FORMATS];
+	/**
+	 * converted frames of current frame, only accessed from the frame callback thread
+	 */
+	private final FrameBuffer[] mFrames = new FrameBuffer[NUM_PIXEL_FORMATS];
+	private volatile Subscriber[] mSubscribers = EMPTY;
+	/**
+	 * metadata of current frame, only accessed from the frame callback thread
+	 */
+	private final FrameInfo mInfo = new FrameInfo();
+	/**
+	 * multi-core converter for YUV420 pixel formats, only accessed from the frame callback thread
+	 */
+	private YuvConverter mYuvConverter;
+	/**
+	 * rotation/mirroring of the frames, null: no transform
+	 */
+	private volatile FrameTransformer mTransformer;
+	/**
+	 * luma statistics of current frame, null: disabled
+	 */
+	private volatile LumaStats mLumaStats;
+	/**
+	 * whether luma statistics of current frame are ready, only accessed from the frame callback thread
+	 */
+	private boolean mLumaStatsReady;
+	private long mSequence;
+	private volatile int mWidth, mHeight;
+	private volatile int mFrameFormat = UVCCamera.FRAME_FORMAT_MJPEG;
+	private volatile FrameStats mStats;
+	/**
+	 * integrity checker of MJPEG frames, null: frames are not checked
+	 */
+	private volatile MjpegScanner mScanner;
+	private UVCCamera mCamera;
+
+	/**
+	 * constructor, source pixel format is UVCCamera#PIXEL_FORMAT_YUV
+	 * @param width
+	 * @param height
+	 */
+	public FrameHub(final int width, final int height) {
+		this(width, height, UVCCamera.PIXEL_FORMAT_YUV, DEFAULT_FRAMES_PER_FORMAT);
+	}
+
+	/**
+	 * constructor
+	 * @param width
+	 * @param height
+	 * @param sourceFormat pixel format that is requested to UVCCamera#setFrameCallback,
+	 * 			subscribers can use other pixel formats only when this is UVCCamera#PIXEL_FORMAT_YUV
+	 * @param framesPerFormat minimum number of FrameBuffers for each pixel format,
+	 * 			this is increased automatically depending on the queue depth of subscribers
+	 */
+	public FrameHub(final int width, final int height, final int sourceFormat, final int framesPerFormat) {
+		if ((sourceFormat < 0) || (sourceFormat >= NUM_PIXEL_FORMATS))
+			throw new IllegalArgumentException("unknown pixel format:" + sourceFormat);
+		mWidth = width;
+		mHeight = height;
+		mSourceFormat = sourceFormat;
+		mFramesPerFormat = framesPerFormat;
+	}
+
+	/**
+	 * set this as the frame callback of the camera,
+	 * frame size is taken from current preview size of the camera.
+	 * consumer latency is recorded into FrameStats of the camera.
+	 * The frame callback is set only while this has subscribers,
+	 * so the camera can suspend streaming with UVCCamera#setStreamOnDemand.
+	 * @param camera
+	 */
+	public void attach(final UVCCamera camera) {
+		synchronized (mSync) {
+			if ((mCamera != null) && (mCamera != camera)) {
+				mCamera.setFrameCallback(null, 0);
+			}
+			mCamera = camera;
+			mStats = camera.getFrameStats();
+			mScanner = camera.getMjpegScanner();
+			mFrameFormat = camera.getCurrentFrameFormat();
+			resize(camera.getCurrentWidth(), camera.getCurrentHeight());
+			updateCallback();
+		}
+	}
+
+	/**
+	 * remove this from the frame callback of the camera
+	 */
+	public void detach() {
+		synchronized (mSync) {
+			if (mCamera != null) {
+				mCamera.setFrameCallback(null, 0);
+				mCamera = null;
+			}
+		}
+	}
+
+	/**
+	 * set/clear the frame callback of the camera depending on the number of subscribers
+	 */
+	private void updateCallback() {
+		if (mCamera != null) {
+			if (mSubscribers.length > 0) {
+				mCamera.setFrameCallback(this, mSourceFormat);
+			} else {
+				mCamera.setFrameCallback(null, 0);
+			}
+		}
+	}
+
+	/**
+	 * set FrameStats to record consumer latency, this is set automatically with #attach
+	 * @param stats null: do not record
+	 */
+	public void setFrameStats(final FrameStats stats) {
+		mStats = stats;
+	}
+
+	public FrameStats getFrameStats() {
+		return mStats;
+	}
+
+	/**
+	 * set integrity checker of compressed frames, this is set automatically with #attach.
+	 * when source pixel format is UVCCamera#PIXEL_FORMAT_RAW and frame format is MJPEG,
+	 * corrupted frames are dropped before they are copied for the subscribers.
+	 * @param scanner null: do not check
+	 */
+	public void setMjpegScanner(final MjpegScanner scanner) {
+		mScanner = scanner;
+	}
+
+	public MjpegScanner getMjpegScanner() {
+		return mScanner;
+	}
+
+	/**
+	 * change frame size, you should call this after changing preview size
+	 * @param width
+	 * @param height
+	 */
+	public void resize(final int width, final int height) {
+		synchronized (mSync) {
+			mWidth = width;
+			mHeight = height;
+			updatePoolSize();
+		}
+	}
+
+	/**
+	 * set rotation and mirroring of the frames, frames are transformed while converting them.
+	 * width and height of the frames are swapped when rotating 90/270 degrees.
+	 * frames of the pixel formats that FrameTransformer does not support
+	 * (PIXEL_FORMAT_RAW/PIXEL_FORMAT_YUV) are delivered as is.
+	 * @param rotation FrameTransformer#ROTATION_0, ROTATION_90, ROTATION_180 or ROTATION_270 (clockwise)
+	 * @param flip combination of FrameTransformer#FLIP_HORIZONTAL and FLIP_VERTICAL
+	 * @throws IllegalArgumentException
+	 */
+	public void setTransform(final int rotation, final int flip) throws IllegalArgumentException {
+		final FrameTransformer transformer = new FrameTransformer(rotation, flip);
+		synchronized (mSync) {
+			mTransformer = transformer.isIdentity() ? null : transformer;
+			updatePoolSize();
+		}
+	}
+
+	/**
+	 * calculate luma statistics of each frame and publish them with FrameBuffer#getLumaStats.
+	 * statistics are accumulated while the first pixel format of the frame is converted
+	 * when the conversion reads Y values of YUYV frame(PIXEL_FORMAT_GRAY/YUV420SP/NV21/I420),
+	 * otherwise they are calculated in a luma only pass over the source frame.
+	 * tiles are always in the orientation of the source frame even if #setTransform is set.
+	 * @param tileColumns number of horizontal tiles, 0: disable statistics
+	 * @param tileRows number of vertical tiles, 0: disable statistics
+	 */
+	public void setLumaStats(final int tileColumns, final int tileRows) {
+		mLumaStats = (tileColumns > 0) && (tileRows > 0) ? new LumaStats(tileColumns, tileRows) : null;
+	}
+
+	/**
+	 * @return null if frames are not transformed
+	 */
+	public FrameTransformer getTransform() {
+		return mTransformer;
+	}
+
+	private void updatePoolSize() {
+		for (int i = 0; i < NUM_PIXEL_FORMATS; i++) {
+			if (mPools[i] != null) {
+				mPools[i].resize(getOutputWidth(i), getOutputHeight(i), i);
+			}
+		}
+	}
+
+	/**
+	 * @return width of delivered frames of the pixel format
+	 */
+	private int getOutputWidth(final int pixelFormat) {
+		final FrameTransformer transformer = mTransformer;
+		return (transformer != null) && FrameTransformer.isSupported(pixelFormat)
+			? transformer.getOutputWidth(mWidth, mHeight) : mWidth;
+	}
+
+	/**
+	 * @return height of delivered frames of the pixel format
+	 */
+	private int getOutputHeight(final int pixelFormat) {
+		final FrameTransformer transformer = mTransformer;
+		return (transformer != null) && FrameTransformer.isSupported(pixelFormat)
+			? transformer.getOutputHeight(mWidth, mHeight) : mHeight;
+	}
+
+	/**
+	 * detach from the camera and remove all subscribers
+	 */
+	public void release() {
+		detach();
+		final Subscriber[] subscribers;
+		synchronized (mSync) {
+			subscribers = mSubscribers;
+			mSubscribers = EMPTY;
+		}
+		for (final Subscriber subscriber: subscribers) {
+			subscriber.close();
+		}
+		synchronized (mSync) {
+			if (mYuvConverter != null) {
+				mYuvConverter.release();
+				mYuvConverter = null;
+			}
+		}
+	}
+
+	/**
+	 * add subscriber with default DeliveryPolicy(drop newest frame when 2 frames are queued)
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param executor Executor to call the callback
+	 * @param callback
+	 * @return Subscriber, you can pass this to #unsubscribe
+	 * @throws IllegalArgumentException the pixel format is not supported
+	 */
+	public Subscriber subscribe(final int pixelFormat,
+		final Executor executor, final IFrameBufferCallback callback) throws IllegalArgumentException {
+
+		return subscribe(pixelFormat, executor, callback, DEFAULT_POLICY);
+	}
+
+	/**
+	 * add subscriber
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param executor Executor to call the callback
+	 * @param callback
+	 * @param policy how to drop frames when the subscriber can not keep up
+	 * @return Subscriber, you can pass this to #unsubscribe
+	 * @throws IllegalArgumentException the pixel format is not supported
+	 */
+	public Subscriber subscribe(final int pixelFormat,
+		final Executor executor, final IFrameBufferCallback callback,
+		final DeliveryPolicy policy) throws IllegalArgumentException {
+
+		if ((executor == null) || (callback == null) || (policy == null))
+			throw new IllegalArgumentException("executor, callback and policy should not null");
+		if ((pixelFormat < 0) || (pixelFormat >= NUM_PIXEL_FORMATS)
+			|| !FrameConverter.isSupported(mSourceFormat, pixelFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + pixelFormat);
+		final Subscriber subscriber = new Subscriber(this, pixelFormat, executor, callback, policy);
+		synchronized (mSync) {
+			final Subscriber[] subscribers = new Subscriber[mSubscribers.length + 1];
+			System.arraycopy(mSubscribers, 0, subscribers, 0, mSubscribers.length);
+			subscribers[subscribers.length - 1] = subscriber;
+			mSubscribers = subscribers;
+			updatePool(pixelFormat);
+			if (subscribers.length == 1) {
+				updateCallback();
+			}
+		}
+		if (DEBUG) Log.v(TAG, "subscribe:" + subscriber);
+		return subscriber;
+	}
+
+	/**
+	 * remove subscriber, frames that are not delivered yet are discarded
+	 * @param subscriber
+	 */
+	public void unsubscribe(final Subscriber subscriber) {
+		synchronized (mSync) {
+			final Subscriber[] current = mSubscribers;
+			final int n = current.length;
+			for (int i = 0; i < n; i++) {
+				if (current[i] == subscriber) {
+					final Subscriber[] subscribers = new Subscriber[n - 1];
+					System.arraycopy(current, 0, subscribers, 0, i);
+					System.arraycopy(current, i + 1, subscribers, i, n - i - 1);
+					mSubscribers = subscribers;
+					if (subscribers.length == 0) {
+						updateCallback();
+					}
+					break;
+				}
+			}
+		}
+		subscriber.close();
+		if (DEBUG) Log.v(TAG, "unsubscribe:" + subscriber);
+	}
+
+	/**
+	 * (re)create FramePool so that it has enough FrameBuffers for all queues of the subscribers,
+	 * otherwise slow subscriber could exhaust FrameBuffers of other subscribers
+	 * @param pixelFormat
+	 */
+	private void updatePool(final int pixelFormat) {
+		final int poolFormat = getPoolFormat(pixelFormat);
+		// +1 for each subscriber's callback, +1 for the hand-off slot of POLICY_BLOCK
+		// and +1 for converting frame
+		int required = 1;
+		for (final Subscriber subscriber: mSubscribers) {
+			if (getPoolFormat(subscriber.mPixelFormat) == poolFormat) {
+				required += subscriber.mPolicy.depth + 1;
+				if (subscriber.mPolicy.policy == DeliveryPolicy.POLICY_BLOCK) {
+					required++;
+				}
+			}
+		}
+		required = Math.max(required, mFramesPerFormat);
+		final FramePool pool = mPools[poolFormat];
+		if ((pool == null) || (pool.getMaxFrames() < required)) {
+			mPools[poolFormat] = new FramePool(
+				getOutputWidth(poolFormat), getOutputHeight(poolFormat), poolFormat, required);
+		}
+	}
+
+	/**
+	 * PIXEL_FORMAT_GRAY frames are delivered as luma view of the source frame
+	 * when the source frame has Y plane, so they don't have their own FramePool
+	 * @param pixelFormat
+	 * @return pixel format of FramePool that the frames of the pixel format come from
+	 */
+	private int getPoolFormat(final int pixelFormat) {
+		return (pixelFormat == UVCCamera.PIXEL_FORMAT_GRAY)
+			&& (mSourceFormat != UVCCamera.PIXEL_FORMAT_GRAY)
+			&& LumaExtractor.hasLumaPlane(mSourceFormat) ? mSourceFormat : pixelFormat;
+	}
+
+	public int getSubscriberCount() {
+		return mSubscribers.length;
+	}
+
+	/**
+	 * IFrameCallback
+	 * called from native library via JNI
+	 * @param frame
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame) {
+		final Subscriber[] subscribers = mSubscribers;
+		final int n = subscribers.length;
+		if (n == 0) return;
+		final MjpegScanner scanner = mScanner;
+		if ((scanner != null) && (mSourceFormat == UVCCamera.PIXEL_FORMAT_RAW)
+			&& (mFrameFormat == UVCCamera.FRAME_FORMAT_MJPEG)
+			&& !MjpegScanner.isValid(scanner.scan(frame))) {
+			// drop corrupted frame before copying it
+			return;
+		}
+		final int width = mWidth, height = mHeight;
+		mInfo.captureTimeNs = SystemClock.elapsedRealtimeNanos();
+		mInfo.sequence = mSequence++;
+		mInfo.frameFormat = mFrameFormat;
+		mLumaStatsReady = false;
+		int tried = 0;
+		for (int i = 0; i < n; i++) {
+			final Subscriber subscriber = subscribers[i];
+			final FrameDecimator decimator = subscriber.mDecimator;
+			if ((decimator != null) && !decimator.accept(mInfo.captureTimeNs)) {
+				// skip before converting the frame
+				subscriber.mSkippedFrames++;
+				continue;
+			}
+			final int format = subscriber.mPixelFormat;
+			if ((tried & (1 << format)) == 0) {
+				final int poolFormat = getPoolFormat(format);
+				if ((tried & (1 << poolFormat)) == 0) {
+					tried |= (1 << poolFormat);
+					mFrames[poolFormat] = convert(frame, poolFormat, width, height);
+				}
+				if (poolFormat != format) {
+					// zero copy luma view of the source frame
+					tried |= (1 << format);
+					final FrameBuffer source = mFrames[poolFormat];
+					mFrames[format] = source != null ? source.getLumaView().retain() : null;
+				}
+			}
+			final FrameBuffer buf = mFrames[format];
+			if (buf != null) {
+				subscriber.offer(buf);
+			} else {
+				subscriber.mUnavailableFrames.incrementAndGet();
+			}
+		}
+		for (int i = 0; i < NUM_PIXEL_FORMATS; i++) {
+			if (mFrames[i] != null) {
+				mFrames[i].release();
+				mFrames[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * convert the frame into FrameBuffer of specific pixel format
+	 * @return null if no FrameBuffer is available
+	 */
+	private FrameBuffer convert(final ByteBuffer frame, final int format, final int width, final int height) {
+		final FramePool pool = mPools[format];
+		final FrameBuffer buf = pool != null ? pool.acquire() : null;
+		if (buf != null) {
+			try {
+				final LumaStats stats = mLumaStats;
+				// accumulate statistics only once for each frame
+				final LumaStats pending = (stats != null) && !mLumaStatsReady ? stats : null;
+				final FrameTransformer transformer = mTransformer;
+				if ((transformer != null) && FrameTransformer.isSupported(format)) {
+					transformer.convert(frame, mSourceFormat, width, height, buf.getBuffer(), format);
+					buf.getInfo().set(mInfo).setFormat(
+						transformer.getOutputWidth(width, height), transformer.getOutputHeight(width, height), format);
+				} else {
+					if ((format == UVCCamera.PIXEL_FORMAT_RAW) && (mSourceFormat == format)
+						&& (mFrameFormat == UVCCamera.FRAME_FORMAT_MJPEG) && MjpegPassthrough.isJpeg(frame)) {
+						// compressed frame, deliver as standalone JPEG
+						buf.ensureCapacity(MjpegPassthrough.getRepairedBytes(frame));
+						MjpegPassthrough.repair(frame, buf.getBuffer());
+					} else if (format == mSourceFormat) {
+						buf.copyFrom(frame);
+					} else if ((mSourceFormat == UVCCamera.PIXEL_FORMAT_YUV) && YuvConverter.isSupported(format)) {
+						if (mYuvConverter == null) {
+							mYuvConverter = new YuvConverter();
+						}
+						mYuvConverter.convert(frame, width, height, buf.getBuffer(), format, pending);
+						mLumaStatsReady |= pending != null;
+					} else if ((mSourceFormat == UVCCamera.PIXEL_FORMAT_YUV) && (format == UVCCamera.PIXEL_FORMAT_GRAY)) {
+						LumaExtractor.extract(frame, mSourceFormat, width, height, buf.getBuffer(), width, pending);
+						mLumaStatsReady |= pending != null;
+					} else {
+						FrameConverter.convert(frame, mSourceFormat, width, height, buf.getBuffer(), format);
+					}
+					buf.getInfo().set(mInfo).setFormat(width, height, format);
+				}
+				if (stats != null) {
+					if (!mLumaStatsReady) {
+						if (LumaExtractor.isSupported(mSourceFormat)) {
+							stats.compute(frame, mSourceFormat, width, height);
+							mLumaStatsReady = true;
+						}
+					}
+					if (mLumaStatsReady) {
+						buf.setLumaStats(stats);
+					}
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+				buf.release();
+				return null;
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * subscriber of FrameHub, frames are queued and delivered on its own Executor
+	 */
+	public static class Subscriber implements Runnable {
+		private final FrameHub mParent;
+		private final int mPixelFormat;
+		private final Executor mExecutor;
+		private final IFrameBufferCallback mCallback;
+		private final DeliveryPolicy mPolicy;
+		private final ArrayBlockingQueue<FrameBuffer> mQueue;
+		/**
+		 * hand-off slot of DeliveryPolicy#POLICY_BLOCK, guarded by mQueue
+		 */
+		private FrameBuffer mPending;
+		private long mPendingDeadlineNs;
+		private final AtomicBoolean mScheduled = new AtomicBoolean();
+		private final AtomicLong mDeliveredFrames = new AtomicLong();
+		private final AtomicLong mDroppedFrames = new AtomicLong();
+		private final AtomicLong mUnavailableFrames = new AtomicLong();
+		private volatile FrameDecimator mDecimator;
+		private final LatencyHistogram mLatency = new LatencyHistogram("subscriber");
+		/**
+		 * only updated from the frame callback thread
+		 */
+		private volatile long mSkippedFrames;
+		private volatile boolean mClosed;
+
+		private Subscriber(final FrameHub parent, final int pixelFormat, final Executor executor,
+			final IFrameBufferCallback callback, final DeliveryPolicy policy) {
+
+			mParent = parent;
+			mPixelFormat = pixelFormat;
+			mExecutor = executor;
+			mCallback = callback;
+			mPolicy = policy;
+			mQueue = new ArrayBlockingQueue<FrameBuffer>(policy.depth);
+		}
+
+		public int getPixelFormat() {
+			return mPixelFormat;
+		}
+
+		public DeliveryPolicy getPolicy() {
+			return mPolicy;
+		}
+
+		/**
+		 * reduce frame rate of this subscriber
+		 * @param decimator null: deliver all frames
+		 */
+		public void setDecimator(final FrameDecimator decimator) {
+			mDecimator = decimator;
+		}
+
+		/**
+		 * deliver every Nth frame
+		 * @param n 1 means all frames
+		 */
+		public void setFrameInterval(final int n) {
+			setDecimator(n > 1 ? FrameDecimator.everyNth(n) : null);
+		}
+
+		/**
+		 * deliver frames at the target frame rate
+		 * @param fps 0 or negative value means all frames
+		 */
+		public void setTargetFps(final float fps) {
+			setDecimator(fps > 0 ? FrameDecimator.targetFps(fps) : null);
+		}
+
+		public FrameDecimator getDecimator() {
+			return mDecimator;
+		}
+
+		/**
+		 * @return time from capture to the return of the callback of this subscriber
+		 */
+		public LatencyHistogram getLatency() {
+			return mLatency;
+		}
+
+		/**
+		 * @return number of frames that were skipped by the decimator
+		 */
+		public long getSkippedFrames() {
+			return mSkippedFrames;
+		}
+
+		/**
+		 * @return number of frames that are waiting for delivery
+		 */
+		public int getQueuedFrames() {
+			return mQueue.size();
+		}
+
+		/**
+		 * @return number of frames that were passed to the callback
+		 */
+		public long getDeliveredFrames() {
+			return mDeliveredFrames.get();
+		}
+
+		/**
+		 * @return number of frames that were dropped by DeliveryPolicy because the queue was full
+		 */
+		public long getDroppedFrames() {
+			return mDroppedFrames.get();
+		}
+
+		/**
+		 * @return number of frames that were not delivered because no FrameBuffer was available
+		 */
+		public long getUnavailableFrames() {
+			return mUnavailableFrames.get();
+		}
+
+		/**
+		 * called from the frame callback thread
+		 * @param frame
+		 */
+		private void offer(final FrameBuffer frame) {
+			if (mClosed) return;
+			frame.retain();
+			if (enqueue(frame)) {
+				if (mClosed) {
+					// closed while queueing
+					close();
+				} else {
+					schedule();
+				}
+			} else {
+				frame.release();
+				mDroppedFrames.incrementAndGet();
+			}
+		}
+
+		/**
+		 * queue the frame according to the DeliveryPolicy
+		 * @param frame
+		 * @return false if the frame should be dropped
+		 */
+		private boolean enqueue(final FrameBuffer frame) {
+			switch (mPolicy.policy) {
+			case DeliveryPolicy.POLICY_LATEST:
+			case DeliveryPolicy.POLICY_DROP_OLDEST:
+				while (!mQueue.offer(frame)) {
+					final FrameBuffer old = mQueue.poll();
+					if (old != null) {
+						old.release();
+						mDroppedFrames.incrementAndGet();
+					}
+				}
+				return true;
+			case DeliveryPolicy.POLICY_BLOCK:
+				// never wait on the frame callback thread,
+				// the frame waits in the hand-off slot until the queue has space instead
+				synchronized (mQueue) {
+					if ((mPending == null) && mQueue.offer(frame)) return true;
+					final long now = SystemClock.elapsedRealtimeNanos();
+					if (mPending != null) {
+						// newer frames are dropped while waiting, same as blocked producer
+						if (now - mPendingDeadlineNs < 0) return false;
+						mPending.release();
+						mDroppedFrames.incrementAndGet();
+					}
+					mPending = frame;
+					mPendingDeadlineNs = now + mPolicy.timeoutNs;
+					return true;
+				}
+			case DeliveryPolicy.POLICY_DROP_NEWEST:
+			default:
+				return mQueue.offer(frame);
+			}
+		}
+
+		/**
+		 * take the next frame from the queue, called on the Executor
+		 * @return null if no frame is queued
+		 */
+		private FrameBuffer poll() {
+			if (mPolicy.policy != DeliveryPolicy.POLICY_BLOCK) {
+				return mQueue.poll();
+			}
+			synchronized (mQueue) {
+				final FrameBuffer result = mQueue.poll();
+				if (mPending != null) {
+					if (SystemClock.elapsedRealtimeNanos() - mPendingDeadlineNs > 0) {
+						// timeout
+						mPending.release();
+						mDroppedFrames.incrementAndGet();
+					} else {
+						mQueue.offer(mPending);
+					}
+					mPending = null;
+				}
+				return result;
+			}
+		}
+
+		private void schedule() {
+			if (mScheduled.compareAndSet(false, true)) {
+				try {
+					mExecutor.execute(this);
+				} catch (final Exception e) {
+					// RejectedExecutionException
+					Log.w(TAG, e);
+					mScheduled.set(false);
+				}
+			}
+		}
+
+		/**
+		 * deliver queued frames, called on the Executor
+		 */
+		@Override
+		public void run() {
+			for ( ; ; ) {
+				FrameBuffer frame;
+				while ((frame = poll()) != null) {
+					if (mClosed) {
+						frame.release();
+						continue;
+					}
+					// the callback may release the frame, so keep capture time here
+					final long captureTimeNs = frame.getInfo().captureTimeNs;
+					try {
+						mCallback.onFrame(frame);
+						mDeliveredFrames.incrementAndGet();
+					} catch (final Exception e) {
+						// the callback did not take the ownership of the frame, see IFrameBufferCallback#onFrame
+						Log.w(TAG, e);
+						frame.release();
+					}
+					final long latency = SystemClock.elapsedRealtimeNanos() - captureTimeNs;
+					mLatency.record(latency);
+					final FrameStats stats = mParent.mStats;
+					if (stats != null) {
+						stats.recordConsumerLatency(captureTimeNs);
+					}
+				}
+				mScheduled.set(false);
+				// check again because frames may be queued before clearing the flag
+				if (mQueue.isEmpty() || !mScheduled.compareAndSet(false, true)) {
+					break;
+				}
+			}
+		}
+
+		private void close() {
+			mClosed = true;
+			FrameBuffer frame;
+			while ((frame = poll()) != null) {
+				frame.release();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Subscriber{pixelFormat=" + mPixelFormat
+				+ ",policy=" + mPolicy
+				+ ",decimator=" + mDecimator
+				+ ",delivered=" + mDeliveredFrames.get()
+				+ ",skipped=" + mSkippedFrames
+				+ ",dropped=" + mDroppedFrames.get()
+				+ ",unavailable=" + mUnavailableFrames.get() + "}";
+		}
+	}
+}
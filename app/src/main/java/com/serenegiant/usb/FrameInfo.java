@@ -0,0 +1,151 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+
+/**
+ * Metadata of a frame, delivered with IFrameInfoCallback or FrameBuffer#getInfo.
+ * Instances are reused for every frame to avoid allocation,
+ * copy it with #set if you want to keep it after the callback returns.
+ */
+public class FrameInfo {
+	/**
+	 * value of #pts/#scr when the timestamp is not available
+	 */
+	public static final long TIMESTAMP_UNAVAILABLE = -1;
+
+	/**
+	 * frame counter that starts from 0 and increases by one for each frame the source delivers.
+	 * It only counts frames that reached the source: frames dropped before that
+	 * (e.g. corrupted MJPEG frames rejected by FrameHub, or frames arriving without subscribers)
+	 * get no number, so gaps do not reveal every dropped frame.
+	 * A gap seen by a FrameHub subscriber means that subscriber's queue dropped frames.
+	 */
+	public long sequence;
+	/**
+	 * monotonic time when the frame reached Java side, same time base as SystemClock#elapsedRealtimeNanos
+	 * so you can compare it with timestamps of other sensors
+	 */
+	public long captureTimeNs;
+	/**
+	 * UVC presentation time stamp of the payload header, TIMESTAMP_UNAVAILABLE if native side does not provide it
+	 */
+	public long pts = TIMESTAMP_UNAVAILABLE;
+	/**
+	 * UVC source clock reference of the payload header, TIMESTAMP_UNAVAILABLE if native side does not provide it
+	 */
+	public long scr = TIMESTAMP_UNAVAILABLE;
+	public int width;
+	public int height;
+	/**
+	 * bytes per row(of Y plane for YUV420SP/NV21)
+	 */
+	public int stride;
+	/**
+	 * one of UVCCamera#PIXEL_FORMAT_XXX
+	 */
+	public int pixelFormat;
+	/**
+	 * UVCCamera#FRAME_FORMAT_YUYV or UVCCamera#FRAME_FORMAT_MJPEG
+	 */
+	public int frameFormat;
+
+	public FrameInfo() {
+	}
+
+	/**
+	 * copy constructor
+	 * @param other
+	 */
+	public FrameInfo(final FrameInfo other) {
+		set(other);
+	}
+
+	public FrameInfo set(final FrameInfo other) {
+		if (other != null) {
+			sequence = other.sequence;
+			captureTimeNs = other.captureTimeNs;
+			pts = other.pts;
+			scr = other.scr;
+			width = other.width;
+			height = other.height;
+			stride = other.stride;
+			pixelFormat = other.pixelFormat;
+			frameFormat = other.frameFormat;
+		}
+		return this;
+	}
+
+	/**
+	 * set frame size and pixel format and update #stride
+	 * @param _width
+	 * @param _height
+	 * @param _pixelFormat
+	 * @return
+	 */
+	public FrameInfo setFormat(final int _width, final int _height, final int _pixelFormat) {
+		width = _width;
+		height = _height;
+		pixelFormat = _pixelFormat;
+		stride = getStride(_width, _pixelFormat);
+		return this;
+	}
+
+	/**
+	 * @return true if UVC PTS is available
+	 */
+	public boolean hasPts() {
+		return pts != TIMESTAMP_UNAVAILABLE;
+	}
+
+	/**
+	 * get bytes per row
+	 * @param width
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @return
+	 */
+	public static int getStride(final int width, final int pixelFormat) {
+		switch (pixelFormat) {
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+			return width * 4;
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+			return width;
+		case UVCCamera.PIXEL_FORMAT_RAW:
+		case UVCCamera.PIXEL_FORMAT_YUV:
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+		default:
+			return width * 2;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "FrameInfo(#%d,time=%d,pts=%d,scr=%d,%dx%d,stride=%d,pixel:%d,frame:%d)",
+			sequence, captureTimeNs, pts, scr, width, height, stride, pixelFormat, frameFormat);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed number of pre-allocated FrameBuffers for IFrameCallback consumers.
+ * Copy the frame that came from IFrameCallback#onFrame into a FrameBuffer with #obtain,
+ * pass it to other thread and call FrameBuffer#release when you finished to use it.
+ * This class never allocate memory on steady state.
+ */
+public class FramePool {
+	private final int mMaxFrames;
+	private final ArrayBlockingQueue<FrameBuffer> mFreeFrames;
+	private final AtomicLong mExhaustedCount = new AtomicLong();
+	private volatile int mGeneration;
+	private volatile int mWidth, mHeight, mPixelFormat, mFrameBytes;
+
+	/**
+	 * @param size
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param maxFrames
+	 */
+	public FramePool(final Size size, final int pixelFormat, final int maxFrames) {
+		this(size.width, size.height, pixelFormat, maxFrames);
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @param maxFrames
+	 */
+	public FramePool(final int width, final int height, final int pixelFormat, final int maxFrames) {
+		if (maxFrames <= 0)
+			throw new IllegalArgumentException("maxFrames should be positive");
+		mMaxFrames = maxFrames;
+		mFreeFrames = new ArrayBlockingQueue<FrameBuffer>(maxFrames);
+		mWidth = width;
+		mHeight = height;
+		mPixelFormat = pixelFormat;
+		mFrameBytes = getFrameBytes(width, height, pixelFormat);
+		for (int i = 0; i < maxFrames; i++) {
+			final FrameBuffer frame = new FrameBuffer(this, mFrameBytes);
+			setup(frame);
+			mFreeFrames.offer(frame);
+		}
+	}
+
+	/**
+	 * get required buffer size for the frame
+	 * @param width
+	 * @param height
+	 * @param pixelFormat one of UVCCamera#PIXEL_FORMAT_XXX
+	 * @return
+	 */
+	public static int getFrameBytes(final int width, final int height, final int pixelFormat) {
+		switch (pixelFormat) {
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+			return width * height * 4;
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			return width * height * 3 / 2;
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+			return width * height;
+		case UVCCamera.PIXEL_FORMAT_RAW:		// MJPEG frame is usually smaller than this
+		case UVCCamera.PIXEL_FORMAT_YUV:
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+		default:
+			return width * height * 2;
+		}
+	}
+
+	/**
+	 * change frame size and/or pixel format.
+	 * FrameBuffers that are held by consumers are re-sized when they are released.
+	 * @param width
+	 * @param height
+	 * @param pixelFormat
+	 */
+	public synchronized void resize(final int width, final int height, final int pixelFormat) {
+		if ((width != mWidth) || (height != mHeight) || (pixelFormat != mPixelFormat)) {
+			mWidth = width;
+			mHeight = height;
+			mPixelFormat = pixelFormat;
+			mFrameBytes = getFrameBytes(width, height, pixelFormat);
+			mGeneration++;
+			final int n = mFreeFrames.size();
+			for (int i = 0; i < n; i++) {
+				final FrameBuffer frame = mFreeFrames.poll();
+				if (frame == null) break;
+				setup(frame);
+				mFreeFrames.offer(frame);
+			}
+		}
+	}
+
+	/**
+	 * get a free FrameBuffer without blocking
+	 * @return null if all FrameBuffers are in use
+	 */
+	public FrameBuffer acquire() {
+		final FrameBuffer frame = mFreeFrames.poll();
+		if (frame != null) {
+			frame.obtain();
+		} else {
+			mExhaustedCount.incrementAndGet();
+		}
+		return frame;
+	}
+
+	/**
+	 * get a free FrameBuffer, wait until one of FrameBuffer is released if all of them are in use
+	 * @param timeout
+	 * @param unit
+	 * @return null if timeout
+	 * @throws InterruptedException
+	 */
+	public FrameBuffer acquire(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final FrameBuffer frame = mFreeFrames.poll(timeout, unit);
+		if (frame != null) {
+			frame.obtain();
+		} else {
+			mExhaustedCount.incrementAndGet();
+		}
+		return frame;
+	}
+
+	/**
+	 * get a free FrameBuffer and copy the frame data into it.
+	 * you can call this from IFrameCallback#onFrame.
+	 * @param frame
+	 * @return null if all FrameBuffers are in use, the frame should be dropped
+	 */
+	public FrameBuffer obtain(final ByteBuffer frame) {
+		final FrameBuffer result = acquire();
+		if (result != null) {
+			result.copyFrom(frame);
+		}
+		return result;
+	}
+
+	/**
+	 * get a free FrameBuffer and copy the frame data and its metadata into it.
+	 * you can call this from IFrameInfoCallback#onFrame.
+	 * @param frame
+	 * @param info
+	 * @return null if all FrameBuffers are in use, the frame should be dropped
+	 */
+	public FrameBuffer obtain(final ByteBuffer frame, final FrameInfo info) {
+		final FrameBuffer result = obtain(frame);
+		if (result != null) {
+			result.getInfo().set(info);
+		}
+		return result;
+	}
+
+	public int getMaxFrames() {
+		return mMaxFrames;
+	}
+
+	/**
+	 * @return number of FrameBuffers that are not used now
+	 */
+	public int getAvailableFrames() {
+		return mFreeFrames.size();
+	}
+
+	/**
+	 * @return number of times that #acquire/#obtain failed because all FrameBuffers were in use
+	 */
+	public long getExhaustedCount() {
+		return mExhaustedCount.get();
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getPixelFormat() {
+		return mPixelFormat;
+	}
+
+	public int getFrameBytes() {
+		return mFrameBytes;
+	}
+
+	/*package*/void recycle(final FrameBuffer frame) {
+		if (frame.mGeneration != mGeneration) {
+			synchronized (this) {
+				setup(frame);
+			}
+		}
+		mFreeFrames.offer(frame);
+	}
+
+	private void setup(final FrameBuffer frame) {
+		frame.ensureCapacity(mFrameBytes);
+		frame.mGeneration = mGeneration;
+		frame.mWidth = mWidth;
+		frame.mHeight = mHeight;
+		frame.mPixelFormat = mPixelFormat;
+		frame.getInfo().setFormat(mWidth, mHeight, mPixelFormat);
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.SystemClock;
+
+/**
+ * Pre-allocated single-producer/multi-consumer ring buffer of frame slots
+ * to hand frames from the frame callback thread to worker threads without locks.
+ * Each frame is taken by exactly one consumer.
+ * The producer(IFrameCallback#onFrame) never blocks, the frame is dropped when all slots are in use,
+ * so the handoff latency is bounded by the number of slots.
+ */
+public class FrameRing implements IFrameCallback, IFrameInfoCallback {
+
+	/**
+	 * how consumers wait for next frame
+	 */
+	public interface WaitStrategy {
+		/**
+		 * called repeatedly while no frame is available
+		 * @param counter 0 at first call, incremented on each call and saturated at Integer.MAX_VALUE
+		 */
+		public void idle(int counter);
+	}
+
+	/**
+	 * spin without releasing CPU, lowest latency but one core is used for each waiting consumer
+	 */
+	public static final WaitStrategy BUSY_SPIN = new WaitStrategy() {
+		@Override
+		public void idle(final int counter) {
+			// just spin
+		}
+	};
+
+	/**
+	 * spin for a while and then park the thread for short time
+	 */
+	public static final class ParkingWaitStrategy implements WaitStrategy {
+		private final int mSpinTries;
+		private final long mParkNanos;
+
+		/**
+		 * @param spinTries number of spins before parking
+		 * @param parkNanos max latency that parking adds
+		 */
+		public ParkingWaitStrategy(final int spinTries, final long parkNanos) {
+			mSpinTries = spinTries;
+			mParkNanos = parkNanos;
+		}
+
+		@Override
+		public void idle(final int counter) {
+			if (counter < mSpinTries) {
+				return;
+			} else if (counter < mSpinTries * 2) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(mParkNanos);
+			}
+		}
+	}
+
+	/**
+	 * default WaitStrategy, adds 100 micro seconds at most to the handoff latency
+	 */
+	public static final WaitStrategy PARKING = new ParkingWaitStrategy(100, 100000L);
+
+	/**
+	 * a frame in the ring, valid until FrameRing#release
+	 */
+	public static final class Slot {
+		private ByteBuffer mBuffer;
+		private final FrameInfo mInfo = new FrameInfo();
+		private long mSequence;
+
+		private Slot(final int capacity) {
+			mBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+		}
+
+		/**
+		 * @return frame data, position is 0 and limit is the data length
+		 */
+		public ByteBuffer getBuffer() {
+			return mBuffer;
+		}
+
+		public FrameInfo getInfo() {
+			return mInfo;
+		}
+
+		/**
+		 * @return sequence number in this ring
+		 */
+		public long getSequence() {
+			return mSequence;
+		}
+
+		private void copyFrom(final ByteBuffer frame) {
+			final int pos = frame.position();
+			if (mBuffer.capacity() < frame.remaining()) {
+				mBuffer = ByteBuffer.allocateDirect(frame.remaining()).order(ByteOrder.nativeOrder());
+			}
+			mBuffer.clear();
+			mBuffer.put(frame);
+			mBuffer.flip();
+			frame.position(pos);
+		}
+	}
+
+	private final int mMask;
+	private final Slot[] mSlots;
+	/**
+	 * last sequence that was released by consumer for each slot
+	 */
+	private final AtomicLongArray mReleased;
+	/**
+	 * last published sequence
+	 */
+	private final AtomicLong mCursor = new AtomicLong(-1);
+	/**
+	 * next sequence that consumers claim
+	 */
+	private final AtomicLong mClaim = new AtomicLong(0);
+	private final AtomicLong mDroppedFrames = new AtomicLong();
+	private final WaitStrategy mWaitStrategy;
+	/**
+	 * only accessed from the producer thread
+	 */
+	private long mNextSequence;
+	/**
+	 * number of frames that came to #onFrame(ByteBuffer) including dropped frames,
+	 * only accessed from the producer thread
+	 */
+	private long mFrameCount;
+	private final FrameInfo mInfo = new FrameInfo();
+	private volatile int mWidth, mHeight, mPixelFormat;
+	private volatile boolean mClosed;
+
+	/**
+	 * @param size number of slots, rounded up to power of 2
+	 * @param width
+	 * @param height
+	 * @param pixelFormat pixel format passed to UVCCamera#setFrameCallback
+	 * @param waitStrategy BUSY_SPIN, PARKING or your own WaitStrategy
+	 */
+	public FrameRing(final int size, final int width, final int height,
+		final int pixelFormat, final WaitStrategy waitStrategy) {
+
+		if (size <= 0)
+			throw new IllegalArgumentException("size should be positive");
+		final int n = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+		mMask = n - 1;
+		mSlots = new Slot[n];
+		mReleased = new AtomicLongArray(n);
+		final int bytes = FramePool.getFrameBytes(width, height, pixelFormat);
+		for (int i = 0; i < n; i++) {
+			mSlots[i] = new Slot(bytes);
+			mReleased.set(i, i - n);
+		}
+		mWidth = width;
+		mHeight = height;
+		mPixelFormat = pixelFormat;
+		mWaitStrategy = waitStrategy != null ? waitStrategy : PARKING;
+	}
+
+	/**
+	 * change frame size, slot buffers are re-allocated on producer thread when the frame does not fit
+	 * @param width
+	 * @param height
+	 */
+	public void resize(final int width, final int height) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	public int getSize() {
+		return mSlots.length;
+	}
+
+	/**
+	 * @return number of frames that were dropped because all slots were in use
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames.get();
+	}
+
+	/**
+	 * @return number of frames that are published but not taken yet
+	 */
+	public int getPendingFrames() {
+		return (int)Math.max(0, mCursor.get() + 1 - mClaim.get());
+	}
+
+	/**
+	 * IFrameCallback, producer side
+	 * @param frame
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame) {
+		mInfo.captureTimeNs = SystemClock.elapsedRealtimeNanos();
+		// dropped frames leave gaps of sequence
+		mInfo.sequence = mFrameCount++;
+		mInfo.setFormat(mWidth, mHeight, mPixelFormat);
+		publish(frame, mInfo);
+	}
+
+	/**
+	 * IFrameInfoCallback, producer side
+	 * @param frame
+	 * @param info
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame, final FrameInfo info) {
+		publish(frame, info);
+	}
+
+	/**
+	 * copy the frame into next slot, only one thread can call this
+	 * @param frame
+	 * @param info
+	 * @return false if the frame was dropped
+	 */
+	public boolean publish(final ByteBuffer frame, final FrameInfo info) {
+		if (mClosed) return false;
+		final long seq = mNextSequence;
+		final int index = (int)(seq & mMask);
+		if (mReleased.get(index) != seq - mSlots.length) {
+			// consumer still holds the slot or it is not consumed yet
+			mDroppedFrames.incrementAndGet();
+			return false;
+		}
+		final Slot slot = mSlots[index];
+		slot.copyFrom(frame);
+		slot.mInfo.set(info);
+		slot.mSequence = seq;
+		mNextSequence = seq + 1;
+		mCursor.lazySet(seq);
+		return true;
+	}
+
+	/**
+	 * take next frame without waiting
+	 * @return null if no frame is available
+	 */
+	public Slot poll() {
+		for ( ; ; ) {
+			final long seq = mClaim.get();
+			if (seq > mCursor.get()) {
+				return null;
+			}
+			if (mClaim.compareAndSet(seq, seq + 1)) {
+				return mSlots[(int)(seq & mMask)];
+			}
+		}
+	}
+
+	/**
+	 * take next frame, wait with the WaitStrategy until a frame is published
+	 * @return null if this ring is closed
+	 * @throws InterruptedException
+	 */
+	public Slot take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * take next frame, wait with the WaitStrategy until a frame is published or timeout
+	 * @param timeout
+	 * @param unit
+	 * @return null if timeout or this ring is closed
+	 * @throws InterruptedException
+	 */
+	public Slot poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long timeoutNs = unit.toNanos(timeout);
+		final long start = timeoutNs != Long.MAX_VALUE ? System.nanoTime() : 0;
+		for (int counter = 0; ; ) {
+			final Slot slot = poll();
+			if (slot != null) {
+				return slot;
+			}
+			if (mClosed) return null;
+			if (Thread.interrupted()) throw new InterruptedException();
+			if ((timeoutNs != Long.MAX_VALUE) && (System.nanoTime() - start >= timeoutNs)) {
+				return null;
+			}
+			mWaitStrategy.idle(counter);
+			if (counter < Integer.MAX_VALUE) {
+				// saturate, otherwise parked waiter would start spinning after overflow
+				counter++;
+			}
+		}
+	}
+
+	/**
+	 * return the slot to the ring, you should not access the slot after calling this
+	 * @param slot
+	 */
+	public void release(final Slot slot) {
+		mReleased.lazySet((int)(slot.mSequence & mMask), slot.mSequence);
+	}
+
+	/**
+	 * stop publishing and wake up consumers, #take returns null after all published frames are taken
+	 */
+	public void close() {
+		mClosed = true;
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+}
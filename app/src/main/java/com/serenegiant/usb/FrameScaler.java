@@ -0,0 +1,406 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single pass pixel format conversion and downscaling for analytics,
+ * ex. 1920x1080 YUYV to 320x180 gray/RGBX without converting the full frame to RGBX first.
+ * Source frame should be UVCCamera#PIXEL_FORMAT_YUV(YUYV), PIXEL_FORMAT_NV21 or PIXEL_FORMAT_YUV420SP,
+ * output is UVCCamera#PIXEL_FORMAT_GRAY, PIXEL_FORMAT_RGBX or PIXEL_FORMAT_RGB565.
+ * All sampling positions are calculated in the constructor, so #scale never allocate memory.
+ * This class is not thread safe, use one instance for each thread.
+ */
+public class FrameScaler {
+	/**
+	 * average of all source pixels that are covered by the output pixel, good for large downscale factor.
+	 * this can not be used for upscaling.
+	 */
+	public static final int FILTER_BOX = 0;
+	/**
+	 * bilinear interpolation of luma(chroma is nearest neighbor), faster but aliasing on large downscale factor
+	 */
+	public static final int FILTER_BILINEAR = 1;
+
+	private final int mSrcWidth, mSrcHeight, mSrcFormat;
+	private final int mDstWidth, mDstHeight, mDstFormat;
+	private final int mFilter;
+	private final int mCropX, mCropY, mCropWidth, mCropHeight;
+	// layout of source frame
+	private final int mYRowStride, mYPixelStride;
+	private final int mCOffset, mCRowShift, mCRowStride, mCPixelStride, mUOffset, mVOffset;
+	// FILTER_BOX: boundary of source columns/rows for each output pixel (absolute position)
+	// FILTER_BILINEAR: top-left source columns/rows (absolute position)
+	private final int[] mCols, mRows;
+	// FILTER_BILINEAR: fraction of sampling position(0-255)
+	private final int[] mColFrac, mRowFrac;
+	// FILTER_BOX: accumulators for each output column
+	private final int[] mSumY, mSumU, mSumV;
+
+	/**
+	 * constructor, whole source frame is scaled (aspect ratio may change)
+	 * @param srcWidth
+	 * @param srcHeight
+	 * @param srcFormat UVCCamera#PIXEL_FORMAT_YUV, PIXEL_FORMAT_NV21 or PIXEL_FORMAT_YUV420SP
+	 * @param dstWidth
+	 * @param dstHeight
+	 * @param dstFormat UVCCamera#PIXEL_FORMAT_GRAY, PIXEL_FORMAT_RGBX or PIXEL_FORMAT_RGB565
+	 * @param filter #FILTER_BOX or #FILTER_BILINEAR
+	 */
+	public FrameScaler(final int srcWidth, final int srcHeight, final int srcFormat,
+		final int dstWidth, final int dstHeight, final int dstFormat, final int filter) {
+
+		this(srcWidth, srcHeight, srcFormat, dstWidth, dstHeight, dstFormat, filter, false);
+	}
+
+	/**
+	 * constructor
+	 * @param srcWidth
+	 * @param srcHeight
+	 * @param srcFormat UVCCamera#PIXEL_FORMAT_YUV, PIXEL_FORMAT_NV21 or PIXEL_FORMAT_YUV420SP
+	 * @param dstWidth
+	 * @param dstHeight
+	 * @param dstFormat UVCCamera#PIXEL_FORMAT_GRAY, PIXEL_FORMAT_RGBX or PIXEL_FORMAT_RGB565
+	 * @param filter #FILTER_BOX or #FILTER_BILINEAR
+	 * @param cropToAspect true: crop center of the source frame to keep aspect ratio of output
+	 * @throws IllegalArgumentException
+	 */
+	public FrameScaler(final int srcWidth, final int srcHeight, final int srcFormat,
+		final int dstWidth, final int dstHeight, final int dstFormat,
+		final int filter, final boolean cropToAspect) throws IllegalArgumentException {
+
+		if ((srcWidth <= 0) || (srcHeight <= 0) || ((srcWidth & 1) != 0)
+			|| (dstWidth <= 0) || (dstHeight <= 0))
+			throw new IllegalArgumentException("invalid frame size");
+		if ((filter != FILTER_BOX) && (filter != FILTER_BILINEAR))
+			throw new IllegalArgumentException("unknown filter:" + filter);
+		mSrcWidth = srcWidth;
+		mSrcHeight = srcHeight;
+		mSrcFormat = srcFormat;
+		mDstWidth = dstWidth;
+		mDstHeight = dstHeight;
+		mDstFormat = dstFormat;
+		mFilter = filter;
+		switch (srcFormat) {
+		case UVCCamera.PIXEL_FORMAT_YUV:
+			mYRowStride = srcWidth * 2;
+			mYPixelStride = 2;
+			mCOffset = 0;
+			mCRowShift = 0;
+			mCRowStride = srcWidth * 2;
+			mCPixelStride = 2;
+			mUOffset = 1;
+			mVOffset = 3;
+			break;
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+			if ((srcHeight & 1) != 0)
+				throw new IllegalArgumentException("invalid frame size");
+			mYRowStride = srcWidth;
+			mYPixelStride = 1;
+			mCOffset = srcWidth * srcHeight;
+			mCRowShift = 1;
+			mCRowStride = srcWidth;
+			mCPixelStride = 1;
+			mUOffset = srcFormat == UVCCamera.PIXEL_FORMAT_NV21 ? 1 : 0;
+			mVOffset = srcFormat == UVCCamera.PIXEL_FORMAT_NV21 ? 0 : 1;
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported source pixel format:" + srcFormat);
+		}
+		switch (dstFormat) {
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported output pixel format:" + dstFormat);
+		}
+		if (cropToAspect) {
+			// keep even position so that chroma pairs/rows are not split
+			if ((long)srcWidth * dstHeight > (long)srcHeight * dstWidth) {
+				mCropHeight = srcHeight;
+				mCropWidth = (int)Math.min(srcWidth, ((long)srcHeight * dstWidth / dstHeight + 1) & ~1);
+			} else {
+				mCropWidth = srcWidth;
+				mCropHeight = (int)Math.min(srcHeight, ((long)srcWidth * dstHeight / dstWidth + 1) & ~1);
+			}
+			mCropX = ((srcWidth - mCropWidth) / 2) & ~1;
+			mCropY = ((srcHeight - mCropHeight) / 2) & ~1;
+		} else {
+			mCropX = mCropY = 0;
+			mCropWidth = srcWidth;
+			mCropHeight = srcHeight;
+		}
+		if (filter == FILTER_BOX) {
+			if ((dstWidth > mCropWidth) || (dstHeight > mCropHeight))
+				throw new IllegalArgumentException("FILTER_BOX can not upscale");
+			mCols = boxBoundary(mCropX, mCropWidth, dstWidth);
+			mRows = boxBoundary(mCropY, mCropHeight, dstHeight);
+			mColFrac = mRowFrac = null;
+			mSumY = new int[dstWidth];
+			mSumU = new int[dstWidth];
+			mSumV = new int[dstWidth];
+		} else {
+			mCols = new int[dstWidth];
+			mColFrac = new int[dstWidth];
+			mRows = new int[dstHeight];
+			mRowFrac = new int[dstHeight];
+			bilinearPosition(mCropX, mCropWidth, dstWidth, mCols, mColFrac);
+			bilinearPosition(mCropY, mCropHeight, dstHeight, mRows, mRowFrac);
+			mSumY = mSumU = mSumV = null;
+		}
+	}
+
+	public int getWidth() {
+		return mDstWidth;
+	}
+
+	public int getHeight() {
+		return mDstHeight;
+	}
+
+	/**
+	 * @return output pixel format
+	 */
+	public int getPixelFormat() {
+		return mDstFormat;
+	}
+
+	/**
+	 * @return required buffer size for output
+	 */
+	public int getFrameBytes() {
+		return FramePool.getFrameBytes(mDstWidth, mDstHeight, mDstFormat);
+	}
+
+	/**
+	 * @return left of the region of source frame that is used for output
+	 */
+	public int getCropX() {
+		return mCropX;
+	}
+
+	/**
+	 * @return top of the region of source frame that is used for output
+	 */
+	public int getCropY() {
+		return mCropY;
+	}
+
+	public int getCropWidth() {
+		return mCropWidth;
+	}
+
+	public int getCropHeight() {
+		return mCropHeight;
+	}
+
+	/**
+	 * create FramePool for the output of this scaler
+	 * @param maxFrames
+	 * @return
+	 */
+	public FramePool createFramePool(final int maxFrames) {
+		return new FramePool(mDstWidth, mDstHeight, mDstFormat, maxFrames);
+	}
+
+	/**
+	 * scale the frame into a FrameBuffer of the pool,
+	 * the pool should be created by #createFramePool
+	 * @param src
+	 * @param pool
+	 * @return null if no FrameBuffer is available
+	 */
+	public FrameBuffer scale(final ByteBuffer src, final FramePool pool) {
+		final FrameBuffer result = pool.acquire();
+		if (result != null) {
+			try {
+				scale(src, result.getBuffer());
+			} catch (final RuntimeException e) {
+				result.release();
+				throw e;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * scale the frame.
+	 * data from position of src are read and position of src is not changed.
+	 * dst is written from 0, its position is 0 and limit is the data length after this call.
+	 * @param src
+	 * @param dst
+	 * @throws IllegalArgumentException
+	 */
+	public void scale(final ByteBuffer src, final ByteBuffer dst) throws IllegalArgumentException {
+		if (src.remaining() < FramePool.getFrameBytes(mSrcWidth, mSrcHeight, mSrcFormat))
+			throw new IllegalArgumentException("source frame is too small");
+		final int bytes = getFrameBytes();
+		if (dst.capacity() < bytes)
+			throw new IllegalArgumentException("destination buffer is too small");
+		if (mFilter == FILTER_BOX) {
+			box(src, src.position(), dst);
+		} else {
+			bilinear(src, src.position(), dst);
+		}
+		dst.position(0);
+		dst.limit(bytes);
+	}
+
+	private void box(final ByteBuffer src, final int base, final ByteBuffer dst) {
+		final boolean gray = mDstFormat == UVCCamera.PIXEL_FORMAT_GRAY;
+		final int[] cols = mCols;
+		final int[] sumY = mSumY, sumU = mSumU, sumV = mSumV;
+		final int x0 = cols[0], x1 = cols[mDstWidth];
+		int d = 0;
+		for (int r = 0; r < mDstHeight; r++) {
+			final int y0 = mRows[r], y1 = mRows[r + 1];
+			for (int c = 0; c < mDstWidth; c++) {
+				sumY[c] = sumU[c] = sumV[c] = 0;
+			}
+			// read source rows sequentially and add each pixel to the accumulator of its column
+			for (int y = y0; y < y1; y++) {
+				final int row = base + y * mYRowStride;
+				final int crow = base + mCOffset + (y >> mCRowShift) * mCRowStride;
+				int c = 0;
+				int end = cols[1];
+				int sy = 0, su = 0, sv = 0;
+				for (int x = x0; x < x1; x++) {
+					if (x == end) {
+						sumY[c] += sy;
+						sumU[c] += su;
+						sumV[c] += sv;
+						sy = su = sv = 0;
+						end = cols[++c + 1];
+					}
+					sy += src.get(row + x * mYPixelStride) & 0xff;
+					if (!gray) {
+						final int p = crow + (x & ~1) * mCPixelStride;
+						su += src.get(p + mUOffset) & 0xff;
+						sv += src.get(p + mVOffset) & 0xff;
+					}
+				}
+				sumY[c] += sy;
+				sumU[c] += su;
+				sumV[c] += sv;
+			}
+			final int h = y1 - y0;
+			for (int c = 0; c < mDstWidth; c++) {
+				final int n = (cols[c + 1] - cols[c]) * h;
+				final int half = n >> 1;
+				d = put(dst, d, (sumY[c] + half) / n, (sumU[c] + half) / n, (sumV[c] + half) / n);
+			}
+		}
+	}
+
+	private void bilinear(final ByteBuffer src, final int base, final ByteBuffer dst) {
+		final boolean gray = mDstFormat == UVCCamera.PIXEL_FORMAT_GRAY;
+		final int lastX = mCropX + mCropWidth - 1, lastY = mCropY + mCropHeight - 1;
+		final int ps = mYPixelStride;
+		int d = 0;
+		for (int r = 0; r < mDstHeight; r++) {
+			final int y = mRows[r];
+			final int fy = mRowFrac[r];
+			final int row0 = base + y * mYRowStride;
+			final int row1 = base + Math.min(y + 1, lastY) * mYRowStride;
+			final int crow = base + mCOffset + (y >> mCRowShift) * mCRowStride;
+			for (int c = 0; c < mDstWidth; c++) {
+				final int x = mCols[c];
+				final int fx = mColFrac[c];
+				final int x1 = Math.min(x + 1, lastX);
+				final int top = (src.get(row0 + x * ps) & 0xff) * (256 - fx) + (src.get(row0 + x1 * ps) & 0xff) * fx;
+				final int bottom = (src.get(row1 + x * ps) & 0xff) * (256 - fx) + (src.get(row1 + x1 * ps) & 0xff) * fx;
+				final int luma = (top * (256 - fy) + bottom * fy + 32768) >> 16;
+				if (gray) {
+					d = put(dst, d, luma, 0, 0);
+				} else {
+					final int p = crow + (x & ~1) * mCPixelStride;
+					d = put(dst, d, luma, src.get(p + mUOffset) & 0xff, src.get(p + mVOffset) & 0xff);
+				}
+			}
+		}
+	}
+
+	/**
+	 * write one output pixel
+	 * @return next write position
+	 */
+	private int put(final ByteBuffer dst, final int d, final int y, final int u, final int v) {
+		switch (mDstFormat) {
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+			dst.put(d, (byte)y);
+			return d + 1;
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+		{
+			final int c = 298 * (y - 16);
+			dst.put(d, clamp((c + 409 * (v - 128) + 128) >> 8));
+			dst.put(d + 1, clamp((c - 100 * (u - 128) - 208 * (v - 128) + 128) >> 8));
+			dst.put(d + 2, clamp((c + 516 * (u - 128) + 128) >> 8));
+			dst.put(d + 3, (byte)0xff);
+			return d + 4;
+		}
+		default:	// UVCCamera.PIXEL_FORMAT_RGB565
+		{
+			final int c = 298 * (y - 16);
+			final int r = clamp((c + 409 * (v - 128) + 128) >> 8) & 0xff;
+			final int g = clamp((c - 100 * (u - 128) - 208 * (v - 128) + 128) >> 8) & 0xff;
+			final int b = clamp((c + 516 * (u - 128) + 128) >> 8) & 0xff;
+			final int rgb = ((r & 0xf8) << 8) | ((g & 0xfc) << 3) | (b >> 3);
+			dst.put(d, (byte)rgb);
+			dst.put(d + 1, (byte)(rgb >> 8));
+			return d + 2;
+		}
+		}
+	}
+
+	/**
+	 * @return boundaries of n boxes, length should not be smaller than n
+	 */
+	private static int[] boxBoundary(final int start, final int length, final int n) {
+		final int[] result = new int[n + 1];
+		for (int i = 0; i <= n; i++) {
+			result[i] = start + (int)((long)length * i / n);
+		}
+		return result;
+	}
+
+	private static void bilinearPosition(final int start, final int length, final int n,
+		final int[] pos, final int[] frac) {
+
+		for (int i = 0; i < n; i++) {
+			// align centers of the pixels, 8 bit fixed point
+			int p = (int)(((2L * i + 1) * length * 256 / n - 256) / 2);
+			if (p < 0) p = 0;
+			if (p > (length - 1) * 256) p = (length - 1) * 256;
+			pos[i] = start + (p >> 8);
+			frac[i] = p & 0xff;
+		}
+	}
+
+	private static byte clamp(final int v) {
+		return (byte)(v < 0 ? 0 : (v > 255 ? 255 : v));
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+import android.os.SystemClock;
+
+/**
+ * Instrumentation of the frame path of UVCCamera.
+ * UVCCamera records callback duration and inter-arrival time of frames,
+ * FrameHub records end-to-end latency from capture to the return of each subscriber's callback.
+ * Recording never allocates memory, you can read snapshots at runtime.
+ */
+public class FrameStats {
+	private final LatencyHistogram mCallbackDuration = new LatencyHistogram("callback");
+	private final LatencyHistogram mInterArrival = new LatencyHistogram("interArrival");
+	private final LatencyHistogram mConsumerLatency = new LatencyHistogram("consumerLatency");
+	private volatile boolean mEnabled = true;
+
+	/**
+	 * @return time between entering and returning from IFrameCallback#onFrame
+	 */
+	public LatencyHistogram getCallbackDuration() {
+		return mCallbackDuration;
+	}
+
+	/**
+	 * @return interval between frames that reached Java side
+	 */
+	public LatencyHistogram getInterArrival() {
+		return mInterArrival;
+	}
+
+	/**
+	 * @return time from capture(FrameInfo#captureTimeNs) to the return of subscriber's callback
+	 */
+	public LatencyHistogram getConsumerLatency() {
+		return mConsumerLatency;
+	}
+
+	public void setEnabled(final boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	public void reset() {
+		mCallbackDuration.reset();
+		mInterArrival.reset();
+		mConsumerLatency.reset();
+	}
+
+	/**
+	 * record consumer latency of the frame
+	 * @param captureTimeNs
+	 */
+	public void recordConsumerLatency(final long captureTimeNs) {
+		if (mEnabled) {
+			mConsumerLatency.record(SystemClock.elapsedRealtimeNanos() - captureTimeNs);
+		}
+	}
+
+	/**
+	 * create IFrameCallback that records callback duration and inter-arrival time
+	 * and passes the frame to the callback
+	 * @param callback
+	 * @return
+	 */
+	/*package*/IFrameCallback wrap(final IFrameCallback callback) {
+		return new IFrameCallback() {
+			private long mLastTimeNs;
+
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				if (!mEnabled) {
+					callback.onFrame(frame);
+					return;
+				}
+				final long start = SystemClock.elapsedRealtimeNanos();
+				if (mLastTimeNs != 0) {
+					mInterArrival.record(start - mLastTimeNs);
+				}
+				mLastTimeNs = start;
+				try {
+					callback.onFrame(frame);
+				} finally {
+					mCallbackDuration.record(SystemClock.elapsedRealtimeNanos() - start);
+				}
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "FrameStats{" + mCallbackDuration.snapshot()
+			+ "," + mInterArrival.snapshot()
+			+ "," + mConsumerLatency.snapshot() + "}";
+	}
+}
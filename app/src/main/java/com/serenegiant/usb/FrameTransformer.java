@@ -0,0 +1,331 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Rotation(90/180/270 clockwise) and mirroring of frames for cameras that are mounted
+ * in portrait or upside-down. Frames are processed in 32x32 pixel tiles, so transposition
+ * does not thrash cache and costs about the same as a copy.
+ * Flip is applied first and then rotation.
+ * Supported pixel formats are UVCCamera#PIXEL_FORMAT_GRAY, PIXEL_FORMAT_RGB565, PIXEL_FORMAT_RGBX,
+ * PIXEL_FORMAT_YUV420SP, PIXEL_FORMAT_NV21 and PIXEL_FORMAT_I420,
+ * YUYV can not be rotated by 90/270 because 2 pixels share chroma, convert it with #convert.
+ * This class is not thread safe, use one instance for each thread.
+ */
+public class FrameTransformer {
+	public static final int ROTATION_0 = 0;
+	public static final int ROTATION_90 = 90;
+	public static final int ROTATION_180 = 180;
+	public static final int ROTATION_270 = 270;
+
+	public static final int FLIP_NONE = 0;
+	public static final int FLIP_HORIZONTAL = 0x01;
+	public static final int FLIP_VERTICAL = 0x02;
+
+	private static final int TILE_SIZE = 32;
+
+	private final int mRotation;
+	private final int mFlip;
+	/**
+	 * work buffer for #convert, re-allocated only when frame size becomes larger
+	 */
+	private ByteBuffer mWork;
+
+	/**
+	 * constructor
+	 * @param rotation #ROTATION_0, #ROTATION_90, #ROTATION_180 or #ROTATION_270 (clockwise)
+	 * @param flip combination of #FLIP_HORIZONTAL and #FLIP_VERTICAL
+	 * @throws IllegalArgumentException
+	 */
+	public FrameTransformer(final int rotation, final int flip) throws IllegalArgumentException {
+		if ((rotation != ROTATION_0) && (rotation != ROTATION_90)
+			&& (rotation != ROTATION_180) && (rotation != ROTATION_270))
+			throw new IllegalArgumentException("invalid rotation:" + rotation);
+		if ((flip & ~(FLIP_HORIZONTAL | FLIP_VERTICAL)) != 0)
+			throw new IllegalArgumentException("invalid flip:" + flip);
+		mRotation = rotation;
+		mFlip = flip;
+	}
+
+	public int getRotation() {
+		return mRotation;
+	}
+
+	public int getFlip() {
+		return mFlip;
+	}
+
+	/**
+	 * @return true if this transformer does not change frames
+	 */
+	public boolean isIdentity() {
+		return (mRotation == ROTATION_0) && (mFlip == FLIP_NONE);
+	}
+
+	/**
+	 * @return true if width and height are swapped
+	 */
+	public boolean isSwapSize() {
+		return (mRotation == ROTATION_90) || (mRotation == ROTATION_270);
+	}
+
+	public int getOutputWidth(final int width, final int height) {
+		return isSwapSize() ? height : width;
+	}
+
+	public int getOutputHeight(final int width, final int height) {
+		return isSwapSize() ? width : height;
+	}
+
+	/**
+	 * @param pixelFormat
+	 * @return true if #transform supports the pixel format
+	 */
+	public static boolean isSupported(final int pixelFormat) {
+		switch (pixelFormat) {
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * convert pixel format with FrameConverter and transform.
+	 * when the pixel formats are same, the frame is transformed directly without work buffer.
+	 * @param src frame from its position, position is not changed
+	 * @param srcFormat
+	 * @param width width of source frame
+	 * @param height height of source frame
+	 * @param dst written from 0, its position is 0 and limit is the data length after this call
+	 * @param dstFormat
+	 * @throws IllegalArgumentException
+	 */
+	public void convert(final ByteBuffer src, final int srcFormat,
+		final int width, final int height,
+		final ByteBuffer dst, final int dstFormat) throws IllegalArgumentException {
+
+		if (isIdentity()) {
+			FrameConverter.convert(src, srcFormat, width, height, dst, dstFormat);
+			return;
+		}
+		if (srcFormat == dstFormat) {
+			transform(src, width, height, dstFormat, dst);
+			return;
+		}
+		if (!isSupported(dstFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + dstFormat);
+		final int bytes = FramePool.getFrameBytes(width, height, dstFormat);
+		if ((mWork == null) || (mWork.capacity() < bytes)) {
+			mWork = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		}
+		FrameConverter.convert(src, srcFormat, width, height, mWork, dstFormat);
+		transform(mWork, width, height, dstFormat, dst);
+	}
+
+	/**
+	 * transform the frame without changing pixel format
+	 * @param src frame from its position, position is not changed
+	 * @param width width of source frame
+	 * @param height height of source frame
+	 * @param pixelFormat
+	 * @param dst written from 0, its position is 0 and limit is the data length after this call
+	 * @throws IllegalArgumentException
+	 */
+	public void transform(final ByteBuffer src, final int width, final int height,
+		final int pixelFormat, final ByteBuffer dst) throws IllegalArgumentException {
+
+		if (!isSupported(pixelFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + pixelFormat);
+		final int bytes = FramePool.getFrameBytes(width, height, pixelFormat);
+		if (src.remaining() < bytes)
+			throw new IllegalArgumentException("source frame is too small");
+		if (dst.capacity() < bytes)
+			throw new IllegalArgumentException("destination buffer is too small");
+		final int offset = src.position();
+		final int ySize = width * height;
+		switch (pixelFormat) {
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+			transformPlane(src, offset, width, height, 1, dst, 0);
+			break;
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+			transformPlane(src, offset, width, height, 2, dst, 0);
+			break;
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+			transformPlane(src, offset, width, height, 4, dst, 0);
+			break;
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+			checkYuv420(width, height);
+			transformPlane(src, offset, width, height, 1, dst, 0);
+			// move UV/VU pairs as 2 bytes pixels
+			transformPlane(src, offset + ySize, width / 2, height / 2, 2, dst, ySize);
+			break;
+		case UVCCamera.PIXEL_FORMAT_I420:
+		{
+			checkYuv420(width, height);
+			final int cSize = (width / 2) * (height / 2);
+			transformPlane(src, offset, width, height, 1, dst, 0);
+			transformPlane(src, offset + ySize, width / 2, height / 2, 1, dst, ySize);
+			transformPlane(src, offset + ySize + cSize, width / 2, height / 2, 1, dst, ySize + cSize);
+			break;
+		}
+		}
+		dst.position(0);
+		dst.limit(bytes);
+	}
+
+	private static void checkYuv420(final int width, final int height) {
+		if (((width & 1) != 0) || ((height & 1) != 0))
+			throw new IllegalArgumentException("invalid frame size");
+	}
+
+	/**
+	 * transform a plane in tiles
+	 * @param src
+	 * @param srcOffset
+	 * @param width width of the plane
+	 * @param height height of the plane
+	 * @param bpp bytes per pixel, 1, 2 or 4
+	 * @param dst
+	 * @param dstOffset
+	 */
+	private void transformPlane(final ByteBuffer src, final int srcOffset,
+		final int width, final int height, final int bpp,
+		final ByteBuffer dst, final int dstOffset) {
+
+		final int outWidth = getOutputWidth(width, height);
+		// output pixel index of source pixel(x, y) is c0 + x * cx + y * cy
+		final int c0 = map(0, 0, width, height, outWidth);
+		final int cx = map(1, 0, width, height, outWidth) - c0;
+		final int cy = map(0, 1, width, height, outWidth) - c0;
+		if ((c0 == 0) && (cx == 1) && (cy == width)) {
+			// no transform
+			final int limit = src.limit(), pos = src.position();
+			src.limit(srcOffset + width * height * bpp).position(srcOffset);
+			final ByteBuffer out = dst.duplicate();
+			out.position(dstOffset);
+			out.put(src);
+			src.limit(limit).position(pos);
+			return;
+		}
+		final boolean swap = src.order() != dst.order();
+		for (int ty = 0; ty < height; ty += TILE_SIZE) {
+			final int yEnd = Math.min(ty + TILE_SIZE, height);
+			for (int tx = 0; tx < width; tx += TILE_SIZE) {
+				final int xEnd = Math.min(tx + TILE_SIZE, width);
+				switch (bpp) {
+				case 1:
+					tile8(src, srcOffset, width, dst, dstOffset, c0, cx, cy, tx, xEnd, ty, yEnd);
+					break;
+				case 2:
+					tile16(src, srcOffset, width, dst, dstOffset, c0, cx, cy, tx, xEnd, ty, yEnd, swap);
+					break;
+				default:
+					tile32(src, srcOffset, width, dst, dstOffset, c0, cx, cy, tx, xEnd, ty, yEnd, swap);
+					break;
+				}
+			}
+		}
+	}
+
+	private static void tile8(final ByteBuffer src, final int srcOffset, final int width,
+		final ByteBuffer dst, final int dstOffset, final int c0, final int cx, final int cy,
+		final int tx, final int xEnd, final int ty, final int yEnd) {
+
+		for (int y = ty; y < yEnd; y++) {
+			int s = srcOffset + y * width + tx;
+			int d = dstOffset + c0 + tx * cx + y * cy;
+			for (int x = tx; x < xEnd; x++, s++, d += cx) {
+				dst.put(d, src.get(s));
+			}
+		}
+	}
+
+	private static void tile16(final ByteBuffer src, final int srcOffset, final int width,
+		final ByteBuffer dst, final int dstOffset, final int c0, final int cx, final int cy,
+		final int tx, final int xEnd, final int ty, final int yEnd, final boolean swap) {
+
+		final int dx = cx * 2;
+		for (int y = ty; y < yEnd; y++) {
+			int s = srcOffset + (y * width + tx) * 2;
+			int d = dstOffset + (c0 + tx * cx + y * cy) * 2;
+			for (int x = tx; x < xEnd; x++, s += 2, d += dx) {
+				final short v = src.getShort(s);
+				dst.putShort(d, swap ? Short.reverseBytes(v) : v);
+			}
+		}
+	}
+
+	private static void tile32(final ByteBuffer src, final int srcOffset, final int width,
+		final ByteBuffer dst, final int dstOffset, final int c0, final int cx, final int cy,
+		final int tx, final int xEnd, final int ty, final int yEnd, final boolean swap) {
+
+		final int dx = cx * 4;
+		for (int y = ty; y < yEnd; y++) {
+			int s = srcOffset + (y * width + tx) * 4;
+			int d = dstOffset + (c0 + tx * cx + y * cy) * 4;
+			for (int x = tx; x < xEnd; x++, s += 4, d += dx) {
+				final int v = src.getInt(s);
+				dst.putInt(d, swap ? Integer.reverseBytes(v) : v);
+			}
+		}
+	}
+
+	/**
+	 * @return output pixel index of source pixel(x, y)
+	 */
+	private int map(final int x, final int y, final int width, final int height, final int outWidth) {
+		final int fx = (mFlip & FLIP_HORIZONTAL) != 0 ? width - 1 - x : x;
+		final int fy = (mFlip & FLIP_VERTICAL) != 0 ? height - 1 - y : y;
+		final int dx, dy;
+		switch (mRotation) {
+		case ROTATION_90:
+			dx = height - 1 - fy;
+			dy = fx;
+			break;
+		case ROTATION_180:
+			dx = width - 1 - fx;
+			dy = height - 1 - fy;
+			break;
+		case ROTATION_270:
+			dx = fy;
+			dy = width - 1 - fx;
+			break;
+		default:
+			dx = fx;
+			dy = fy;
+			break;
+		}
+		return dy * outWidth + dx;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Callback interface for FrameHub subscribers
+ */
+public interface IFrameBufferCallback {
+	/**
+	 * This method is called on the Executor that was passed to FrameHub#subscribe.
+	 * The frame is already converted to the pixel format of the subscriber.
+	 * You can hold the frame and pass it to other threads,
+	 * but you must call FrameBuffer#release when you finished to use it.
+	 * If this method throws an exception, the frame is released by FrameHub,
+	 * so do not release it before throwing.
+	 * Metadata of the frame(sequence number, capture time etc.) is available with FrameBuffer#getInfo.
+	 * @param frame
+	 */
+	public void onFrame(FrameBuffer frame);
+}
@@ -35,10 +35,14 @@ public interface IFrameCallback {
 	 * but it is better to use either for better performance.
 	 * You can also pass pixel format type to UVCCamera#setFrameCallback for this method.
 	 * Some frames may drops if this method takes a time.
+	 * If you need to control which frames are dropped, use FrameHub with DeliveryPolicy.
 	 * When you use some color format like NV21, this library never execute color space conversion,
 	 * just execute pixel format conversion. If you want to get same result as on screen, please try to
 	 * consider to get images via texture(SurfaceTexture) and read pixel buffer from it using OpenGL|ES2/3
 	 * instead of using IFrameCallback(this way is much efficient in most case than using IFrameCallback).
+	 * If you need RGB with specific color matrix/range on Java side, use YuvToRgbConverter.
+	 * The frame buffer is owned and reused by JNI layer, if you want to use the frame on other thread,
+	 * copy it into FrameBuffer with FramePool#obtain instead of allocating new buffer every frame.
 	 * @param frame this is direct ByteBuffer from JNI layer and you should handle it's byte order and limitation.
 	 */
 	public void onFrame(ByteBuffer frame);
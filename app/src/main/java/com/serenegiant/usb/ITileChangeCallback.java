@@ -0,0 +1,38 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * Callback interface for TileChangeStage consumers
+ */
+public interface ITileChangeCallback {
+	/**
+	 * This method is called on the thread that delivers frames to TileChangeStage.
+	 * The TileChangeMap is updated for the next frame, so you should read it
+	 * before returning from this method. You can skip the frame when TileChangeMap#isUnchanged is true.
+	 * @param map
+	 * @param info metadata of the frame
+	 */
+	public void onTileChange(TileChangeMap map, FrameInfo info);
+}
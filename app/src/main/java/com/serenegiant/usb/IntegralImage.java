@@ -0,0 +1,246 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Integral image(summed-area table) of luma plane for constant time rectangle sum/mean queries,
+ * ex. ROI brightness, privacy-zone checks and block-based motion.
+ * Sums are kept in int[] when they can not overflow, otherwise in long[].
+ * Optional squared sums(long[]) give rectangle variance as well.
+ * Tables are reused across frames and re-allocated only when the frame size becomes larger.
+ * This class is not thread safe, #compute should not be called while other threads are querying.
+ */
+public class IntegralImage {
+	private final boolean mWithSquares;
+	private int mWidth, mHeight;
+	/**
+	 * (width + 1) x (height + 1) tables, first row and column are zero
+	 */
+	private int[] mIntSums;
+	private long[] mLongSums;
+	private long[] mSquares;
+	private boolean mUseLong;
+
+	public IntegralImage() {
+		this(false);
+	}
+
+	/**
+	 * @param withSquares true: also keep squared sums for #variance
+	 */
+	public IntegralImage(final boolean withSquares) {
+		mWithSquares = withSquares;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * build from PIXEL_FORMAT_GRAY FrameBuffer(or luma view)
+	 * @param frame
+	 */
+	public void compute(final FrameBuffer frame) {
+		compute(frame.getBuffer(), frame.getWidth(), frame.getHeight(), frame.getInfo().stride);
+	}
+
+	/**
+	 * build from a level of LumaPyramid
+	 * @param pyramid
+	 * @param level
+	 */
+	public void compute(final LumaPyramid pyramid, final int level) {
+		compute(pyramid.getLevel(level), pyramid.getWidth(level), pyramid.getHeight(level), pyramid.getWidth(level));
+	}
+
+	/**
+	 * build from luma plane
+	 * @param luma from its position, position is not changed
+	 * @param width
+	 * @param height
+	 * @param stride row stride of the luma plane
+	 * @throws IllegalArgumentException
+	 */
+	public void compute(final ByteBuffer luma, final int width, final int height,
+		final int stride) throws IllegalArgumentException {
+
+		if ((width <= 0) || (height <= 0) || (stride < width))
+			throw new IllegalArgumentException("invalid frame size");
+		if (luma.remaining() < stride * (height - 1) + width)
+			throw new IllegalArgumentException("luma plane is too small");
+		allocate(width, height);
+		final int offset = luma.position();
+		final int w1 = width + 1;
+		if (mUseLong) {
+			final long[] sums = mLongSums;
+			for (int j = 0; j < height; j++) {
+				final int s = offset + j * stride;
+				final int prev = j * w1 + 1, cur = prev + w1;
+				long row = 0;
+				for (int i = 0; i < width; i++) {
+					row += luma.get(s + i) & 0xff;
+					sums[cur + i] = sums[prev + i] + row;
+				}
+			}
+		} else {
+			final int[] sums = mIntSums;
+			for (int j = 0; j < height; j++) {
+				final int s = offset + j * stride;
+				final int prev = j * w1 + 1, cur = prev + w1;
+				int row = 0;
+				for (int i = 0; i < width; i++) {
+					row += luma.get(s + i) & 0xff;
+					sums[cur + i] = sums[prev + i] + row;
+				}
+			}
+		}
+		if (mWithSquares) {
+			final long[] squares = mSquares;
+			for (int j = 0; j < height; j++) {
+				final int s = offset + j * stride;
+				final int prev = j * w1 + 1, cur = prev + w1;
+				long row = 0;
+				for (int i = 0; i < width; i++) {
+					final int v = luma.get(s + i) & 0xff;
+					row += v * v;
+					squares[cur + i] = squares[prev + i] + row;
+				}
+			}
+		}
+	}
+
+	/**
+	 * sum of luma in the rectangle, the rectangle is clipped by the frame
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public long sum(final int x, final int y, final int width, final int height) {
+		final int x0 = clamp(x, mWidth), y0 = clamp(y, mHeight);
+		final int x1 = clamp(x + width, mWidth), y1 = clamp(y + height, mHeight);
+		if ((x1 <= x0) || (y1 <= y0)) return 0;
+		final int w1 = mWidth + 1;
+		final int a = y0 * w1 + x0, b = y0 * w1 + x1, c = y1 * w1 + x0, d = y1 * w1 + x1;
+		if (mUseLong) {
+			final long[] s = mLongSums;
+			return s[d] - s[b] - s[c] + s[a];
+		} else {
+			final int[] s = mIntSums;
+			return s[d] - s[b] - s[c] + s[a];
+		}
+	}
+
+	/**
+	 * mean luma in the rectangle, the rectangle is clipped by the frame
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return 0 if the rectangle is out of the frame
+	 */
+	public float mean(final int x, final int y, final int width, final int height) {
+		final int n = area(x, y, width, height);
+		return n > 0 ? sum(x, y, width, height) / (float)n : 0;
+	}
+
+	/**
+	 * variance of luma in the rectangle, only available when this is created with squared sums
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return 0 if the rectangle is out of the frame
+	 * @throws IllegalStateException squared sums are not kept
+	 */
+	public float variance(final int x, final int y, final int width, final int height) throws IllegalStateException {
+		if (!mWithSquares)
+			throw new IllegalStateException("squared sums are not enabled");
+		final int n = area(x, y, width, height);
+		if (n <= 0) return 0;
+		final int x0 = clamp(x, mWidth), y0 = clamp(y, mHeight);
+		final int x1 = clamp(x + width, mWidth), y1 = clamp(y + height, mHeight);
+		final int w1 = mWidth + 1;
+		final long[] s = mSquares;
+		final long sq = s[y1 * w1 + x1] - s[y0 * w1 + x1] - s[y1 * w1 + x0] + s[y0 * w1 + x0];
+		final double mean = sum(x, y, width, height) / (double)n;
+		return (float)Math.max(0, sq / (double)n - mean * mean);
+	}
+
+	private int area(final int x, final int y, final int width, final int height) {
+		final int w = clamp(x + width, mWidth) - clamp(x, mWidth);
+		final int h = clamp(y + height, mHeight) - clamp(y, mHeight);
+		return (w > 0) && (h > 0) ? w * h : 0;
+	}
+
+	private static int clamp(final int v, final int max) {
+		return v < 0 ? 0 : (v > max ? max : v);
+	}
+
+	private void allocate(final int width, final int height) {
+		final int n = (width + 1) * (height + 1);
+		mUseLong = (long)width * height * 255 > Integer.MAX_VALUE;
+		if (mUseLong) {
+			if ((mLongSums == null) || (mLongSums.length < n)) {
+				mLongSums = new long[n];
+			}
+		} else if ((mIntSums == null) || (mIntSums.length < n)) {
+			mIntSums = new int[n];
+		}
+		if (mWithSquares && ((mSquares == null) || (mSquares.length < n))) {
+			mSquares = new long[n];
+		}
+		// first row and first column should be zero
+		final int w1 = width + 1;
+		for (int j = 0; j <= height; j++) {
+			if (mUseLong) {
+				mLongSums[j * w1] = 0;
+			} else {
+				mIntSums[j * w1] = 0;
+			}
+			if (mWithSquares) {
+				mSquares[j * w1] = 0;
+			}
+		}
+		for (int i = 0; i < w1; i++) {
+			if (mUseLong) {
+				mLongSums[i] = 0;
+			} else {
+				mIntSums[i] = 0;
+			}
+			if (mWithSquares) {
+				mSquares[i] = 0;
+			}
+		}
+		mWidth = width;
+		mHeight = height;
+	}
+}
@@ -0,0 +1,1190 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Baseline JPEG decoder on Java side for thumbnails and analytics of MJPEG frames.
+ * Frames can be decoded directly at 1/2, 1/4 and 1/8 scale with reduced size IDCT,
+ * 1/8 scale uses only DC coefficients, so it is much faster than decoding full frame and downscaling it.
+ * Supports 8 bit baseline(SOF0/SOF1) Huffman coded frames with single scan,
+ * grayscale or YCbCr with any sampling factors and restart intervals.
+ * The standard Huffman tables are used when the frame does not have DHT, like most of UVC cameras.
+ * Output is UVCCamera#PIXEL_FORMAT_GRAY or PIXEL_FORMAT_RGBX(BT.601 full range as JFIF).
+ * Work buffers are reused, so #decode never allocate memory on steady state.
+ * If the decoder has ForkJoinPool(see constructors), entropy coded data of the frames that have
+ * restart intervals(DRI) is split at restart markers and the segments are decoded in parallel,
+ * color conversion is also split into row stripes. Frames without restart intervals are
+ * Huffman decoded on the caller thread.
+ * #decode can be called from any thread but frames are decoded one by one.
+ */
+public class JpegDecoder {
+	public static final int SCALE_1 = 1;
+	public static final int SCALE_1_2 = 2;
+	public static final int SCALE_1_4 = 4;
+	/**
+	 * only DC coefficients are used
+	 */
+	public static final int SCALE_1_8 = 8;
+
+	private static final int MAX_COMPONENTS = 4;
+	/**
+	 * frames that have less output rows than this are decoded on the caller thread
+	 */
+	private static final int MIN_ROWS_PER_TASK = 16;
+	private static final int LOOKUP_BITS = 9;
+
+	private static final int MARKER_SOF0 = 0xc0;
+	private static final int MARKER_SOF1 = 0xc1;
+	private static final int MARKER_DHT = 0xc4;
+	private static final int MARKER_SOI = 0xd8;
+	private static final int MARKER_EOI = 0xd9;
+	private static final int MARKER_SOS = 0xda;
+	private static final int MARKER_DQT = 0xdb;
+	private static final int MARKER_DRI = 0xdd;
+	private static final int MARKER_TEM = 0x01;
+	private static final int MARKER_RST0 = 0xd0;
+	private static final int MARKER_RST7 = 0xd7;
+
+	/**
+	 * natural(row major) index of coefficients in zigzag order
+	 */
+	private static final int[] NATURAL_ORDER = {
+		 0,  1,  8, 16,  9,  2,  3, 10,
+		17, 24, 32, 25, 18, 11,  4,  5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13,  6,  7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63,
+	};
+
+	// fixed point constants of islow IDCT (same as jidctint.c of libjpeg)
+	private static final int CONST_BITS = 13;
+	private static final int PASS1_BITS = 2;
+	private static final int FIX_0_298631336 = 2446;
+	private static final int FIX_0_390180644 = 3196;
+	private static final int FIX_0_541196100 = 4433;
+	private static final int FIX_0_765366865 = 6270;
+	private static final int FIX_0_899976223 = 7373;
+	private static final int FIX_1_175875602 = 9633;
+	private static final int FIX_1_501321110 = 12299;
+	private static final int FIX_1_847759065 = 15137;
+	private static final int FIX_1_961570560 = 16069;
+	private static final int FIX_2_053119869 = 16819;
+	private static final int FIX_2_562915447 = 20995;
+	private static final int FIX_3_072711026 = 25172;
+
+	/**
+	 * basis of reduced size IDCT, [x * n + u] = C(u) / 2 * cos((2x + 1)uπ / 2n) << CONST_BITS,
+	 * each output sample is the value of 8x8 IDCT at the center of (8 / n) x (8 / n) pixels
+	 */
+	private static final int[] IDCT4 = createReducedIdct(4);
+	private static final int[] IDCT2 = createReducedIdct(2);
+
+	/**
+	 * saturation of samples, index is (value + 384) & 1023
+	 */
+	private static final byte[] RANGE_LIMIT = new byte[1024];
+	// YCbCr to RGB, 16.16 fixed point (same as jdcolor.c of libjpeg)
+	private static final int[] CR_R = new int[256];
+	private static final int[] CB_B = new int[256];
+	private static final int[] CR_G = new int[256];
+	private static final int[] CB_G = new int[256];
+	static {
+		for (int i = 0; i < 1024; i++) {
+			RANGE_LIMIT[i] = (byte)(i < 384 ? 0 : (i < 384 + 256 ? i - 384 : 255));
+		}
+		for (int i = 0; i < 256; i++) {
+			final int x = i - 128;
+			CR_R[i] = (int)(1.40200 * 65536 * x + 32768) >> 16;
+			CB_B[i] = (int)(1.77200 * 65536 * x + 32768) >> 16;
+			CR_G[i] = (int)(-0.71414 * 65536 * x);
+			CB_G[i] = (int)(-0.34414 * 65536 * x) + 32768;
+		}
+	}
+
+	private static final HuffmanTable STD_DC_LUMINANCE = new HuffmanTable().set(
+		MjpegPassthrough.STD_DC_LUMINANCE_BITS, 0, MjpegPassthrough.STD_DC_LUMINANCE_VALUES, 0);
+	private static final HuffmanTable STD_AC_LUMINANCE = new HuffmanTable().set(
+		MjpegPassthrough.STD_AC_LUMINANCE_BITS, 0, MjpegPassthrough.STD_AC_LUMINANCE_VALUES, 0);
+	private static final HuffmanTable STD_DC_CHROMINANCE = new HuffmanTable().set(
+		MjpegPassthrough.STD_DC_CHROMINANCE_BITS, 0, MjpegPassthrough.STD_DC_CHROMINANCE_VALUES, 0);
+	private static final HuffmanTable STD_AC_CHROMINANCE = new HuffmanTable().set(
+		MjpegPassthrough.STD_AC_CHROMINANCE_BITS, 0, MjpegPassthrough.STD_AC_CHROMINANCE_VALUES, 0);
+
+	private final int mScale;
+	private final int mPixelFormat;
+	/**
+	 * size of output block for each 8x8 block
+	 */
+	private final int mBlockSize;
+	/**
+	 * whether each coefficient in zigzag order is used for the output scale
+	 */
+	private final boolean[] mNeeded = new boolean[64];
+	private final int[][] mQuant = new int[4][64];
+	private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+	private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+	private final boolean[] mDcDefined = new boolean[4];
+	private final boolean[] mAcDefined = new boolean[4];
+	private final Component[] mComponents = new Component[MAX_COMPONENTS];
+	/**
+	 * components in the order of SOS
+	 */
+	private final Component[] mScanComponents = new Component[MAX_COMPONENTS];
+	private final EntropyDecoder mEntropyDecoder;
+	/**
+	 * null: decode on the caller thread
+	 */
+	private final ForkJoinPool mPool;
+	private final boolean mOwnPool;
+	private final Segment[] mSegments;
+	private final RootTask mRoot;
+	/**
+	 * absolute index of the entropy coded data after each restart marker of current frame
+	 */
+	private int[] mRestarts = new int[0];
+	// parameters of current frame for parallel decoding, set before invoking the tasks
+	private ByteBuffer mSrc, mDst;
+	private int mNumTasks;
+	private boolean mParallelEntropy;
+	private int mNumComponents, mNumScanComponents;
+	private int mWidth, mHeight;
+	private int mMcusX, mMcusY, mMaxH, mMaxV;
+	private int mRestartInterval;
+	/**
+	 * absolute index of entropy coded data in the source buffer
+	 */
+	private int mScanStart;
+	// work buffer of color conversion
+	private byte[] mRow;
+	private int[] mColMap;
+
+	/**
+	 * constructor for full scale, frames are decoded on the caller thread
+	 * @param pixelFormat UVCCamera#PIXEL_FORMAT_GRAY or PIXEL_FORMAT_RGBX
+	 */
+	public JpegDecoder(final int pixelFormat) {
+		this(SCALE_1, pixelFormat);
+	}
+
+	/**
+	 * constructor, frames are decoded on the caller thread
+	 * @param scale #SCALE_1, #SCALE_1_2, #SCALE_1_4 or #SCALE_1_8
+	 * @param pixelFormat UVCCamera#PIXEL_FORMAT_GRAY or PIXEL_FORMAT_RGBX
+	 * @throws IllegalArgumentException
+	 */
+	public JpegDecoder(final int scale, final int pixelFormat) throws IllegalArgumentException {
+		this(scale, pixelFormat, null, false);
+	}
+
+	/**
+	 * constructor for parallel decoding
+	 * @param scale #SCALE_1, #SCALE_1_2, #SCALE_1_4 or #SCALE_1_8
+	 * @param pixelFormat UVCCamera#PIXEL_FORMAT_GRAY or PIXEL_FORMAT_RGBX
+	 * @param parallelism number of threads to decode a frame, 1: decode on the caller thread
+	 * @throws IllegalArgumentException
+	 */
+	public JpegDecoder(final int scale, final int pixelFormat, final int parallelism) throws IllegalArgumentException {
+		this(scale, pixelFormat, parallelism > 1 ? new ForkJoinPool(parallelism) : null, true);
+	}
+
+	/**
+	 * constructor for parallel decoding with your own ForkJoinPool, the pool is not shutdown with #release
+	 * @param scale #SCALE_1, #SCALE_1_2, #SCALE_1_4 or #SCALE_1_8
+	 * @param pixelFormat UVCCamera#PIXEL_FORMAT_GRAY or PIXEL_FORMAT_RGBX
+	 * @param pool
+	 * @throws IllegalArgumentException
+	 */
+	public JpegDecoder(final int scale, final int pixelFormat, final ForkJoinPool pool) throws IllegalArgumentException {
+		this(scale, pixelFormat, pool, false);
+	}
+
+	private JpegDecoder(final int scale, final int pixelFormat,
+		final ForkJoinPool pool, final boolean ownPool) throws IllegalArgumentException {
+
+		switch (scale) {
+		case SCALE_1:
+		case SCALE_1_2:
+		case SCALE_1_4:
+		case SCALE_1_8:
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported scale:" + scale);
+		}
+		if (!isSupported(pixelFormat))
+			throw new IllegalArgumentException("unsupported output pixel format:" + pixelFormat);
+		mScale = scale;
+		mPixelFormat = pixelFormat;
+		mBlockSize = 8 / scale;
+		for (int k = 0; k < 64; k++) {
+			final int natural = NATURAL_ORDER[k];
+			mNeeded[k] = ((natural & 7) < mBlockSize) && ((natural >> 3) < mBlockSize);
+		}
+		for (int i = 0; i < 4; i++) {
+			mDcTables[i] = new HuffmanTable();
+			mAcTables[i] = new HuffmanTable();
+		}
+		for (int i = 0; i < MAX_COMPONENTS; i++) {
+			mComponents[i] = new Component();
+		}
+		mEntropyDecoder = new EntropyDecoder();
+		mPool = pool;
+		mOwnPool = ownPool;
+		if (pool != null) {
+			// a few more segments than threads to balance the load
+			final int n = Math.max(2, pool.getParallelism() * 2);
+			mSegments = new Segment[n];
+			for (int i = 0; i < n; i++) {
+				mSegments[i] = new Segment();
+			}
+			mRoot = new RootTask();
+		} else {
+			mSegments = null;
+			mRoot = null;
+		}
+	}
+
+	/**
+	 * shutdown internal thread pool
+	 */
+	public void release() {
+		if (mOwnPool && (mPool != null)) {
+			mPool.shutdown();
+		}
+	}
+
+	/**
+	 * @return true if this decoder decodes frames on multiple threads
+	 */
+	public boolean isParallel() {
+		return mPool != null;
+	}
+
+	/**
+	 * @param pixelFormat
+	 * @return true if the pixel format can be used as output
+	 */
+	public static boolean isSupported(final int pixelFormat) {
+		return (pixelFormat == UVCCamera.PIXEL_FORMAT_GRAY) || (pixelFormat == UVCCamera.PIXEL_FORMAT_RGBX);
+	}
+
+	public int getScale() {
+		return mScale;
+	}
+
+	public int getPixelFormat() {
+		return mPixelFormat;
+	}
+
+	/**
+	 * @param width width of the JPEG frame
+	 * @return width of decoded frame
+	 */
+	public int getOutputWidth(final int width) {
+		return (width + mScale - 1) / mScale;
+	}
+
+	/**
+	 * @param height height of the JPEG frame
+	 * @return height of decoded frame
+	 */
+	public int getOutputHeight(final int height) {
+		return (height + mScale - 1) / mScale;
+	}
+
+	/**
+	 * @param width width of the JPEG frame
+	 * @param height height of the JPEG frame
+	 * @return required buffer size for decoded frame
+	 */
+	public int getFrameBytes(final int width, final int height) {
+		return FramePool.getFrameBytes(getOutputWidth(width), getOutputHeight(height), mPixelFormat);
+	}
+
+	/**
+	 * create FramePool for decoded frames
+	 * @param width width of the JPEG frame
+	 * @param height height of the JPEG frame
+	 * @param maxFrames
+	 * @return
+	 */
+	public FramePool createFramePool(final int width, final int height, final int maxFrames) {
+		return new FramePool(getOutputWidth(width), getOutputHeight(height), mPixelFormat, maxFrames);
+	}
+
+	/**
+	 * @return width of the JPEG frame that was decoded last time
+	 */
+	public synchronized int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * @return height of the JPEG frame that was decoded last time
+	 */
+	public synchronized int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * decode JPEG frame into FrameBuffer that came from the pool,
+	 * metadata of the result except pixel format and size are not set.
+	 * @param src JPEG frame, position is not changed
+	 * @param pool FramePool that was created with #createFramePool for the frame size
+	 * @return null if all FrameBuffers are in use
+	 * @throws IllegalArgumentException the frame is broken, not supported or different size from the pool
+	 */
+	public FrameBuffer decode(final ByteBuffer src, final FramePool pool) throws IllegalArgumentException {
+		final FrameBuffer result = pool.acquire();
+		if (result != null) {
+			try {
+				synchronized (this) {
+					readHeader(src);
+					if ((getOutputWidth(mWidth) != pool.getWidth()) || (getOutputHeight(mHeight) != pool.getHeight())
+						|| (pool.getPixelFormat() != mPixelFormat))
+						throw new IllegalArgumentException("frame size does not match the pool:" + mWidth + "x" + mHeight);
+					decodeFrame(src, result.getBuffer());
+				}
+			} catch (final RuntimeException e) {
+				result.release();
+				throw e;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * decode JPEG frame.
+	 * data from position of src are read and position of src is not changed.
+	 * dst is written from 0 and flipped so its position is 0 and limit is the data length.
+	 * @param src JPEG frame
+	 * @param dst should have #getFrameBytes bytes at least
+	 * @throws IllegalArgumentException the frame is broken, not supported or dst is too small
+	 */
+	public synchronized void decode(final ByteBuffer src, final ByteBuffer dst) throws IllegalArgumentException {
+		readHeader(src);
+		decodeFrame(src, dst);
+	}
+
+	private void decodeFrame(final ByteBuffer src, final ByteBuffer dst) {
+		final int bytes = getFrameBytes(mWidth, mHeight);
+		if (dst.capacity() < bytes)
+			throw new IllegalArgumentException("dst is too small:" + dst.capacity() + "<" + bytes);
+		prepare();
+		final int height = getOutputHeight(mHeight);
+		final int numTasks = mSegments != null
+			? Math.min(mSegments.length, Math.max(1, height / MIN_ROWS_PER_TASK)) : 1;
+		final boolean parallelEntropy = (numTasks > 1) && findRestarts(src);
+		if (!parallelEntropy) {
+			final EntropyDecoder decoder = mEntropyDecoder;
+			decoder.start(src, mScanStart);
+			decoder.decode(0, mMcusX * mMcusY);
+		}
+		dst.clear();
+		if (numTasks <= 1) {
+			outputRows(dst, 0, height, mRow);
+		} else {
+			mSrc = src;
+			mDst = dst;
+			mNumTasks = numTasks;
+			mParallelEntropy = parallelEntropy;
+			try {
+				mRoot.reinitialize();
+				mPool.invoke(mRoot);
+			} finally {
+				mSrc = mDst = null;
+			}
+			dst.position(getFrameBytes(mWidth, mHeight));
+		}
+		dst.flip();
+	}
+
+	/**
+	 * find restart markers of current frame
+	 * @param src
+	 * @return true if the frame has two or more restart intervals and all of restart markers were found
+	 */
+	private boolean findRestarts(final ByteBuffer src) {
+		final int interval = mRestartInterval;
+		if (interval <= 0) return false;
+		final int intervals = (mMcusX * mMcusY + interval - 1) / interval;
+		if (intervals < 2) return false;
+		if (mRestarts.length < intervals - 1) {
+			mRestarts = new int[intervals - 1];
+		}
+		final int[] restarts = mRestarts;
+		final int limit = src.limit();
+		int found = 0;
+		int i = mScanStart;
+		while ((i + 1 < limit) && (found < intervals - 1)) {
+			// skip 8 bytes at once while they do not have 0xff
+			while (i + 8 <= limit) {
+				final long x = ~src.getLong(i);
+				if (((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0) break;
+				i += 8;
+			}
+			if ((src.get(i) & 0xff) != 0xff) {
+				i++;
+				continue;
+			}
+			if (i + 1 >= limit) break;
+			final int marker = src.get(i + 1) & 0xff;
+			if ((marker >= MARKER_RST0) && (marker <= MARKER_RST7)) {
+				if (marker - MARKER_RST0 != (found & 7)) return false;
+				restarts[found++] = i + 2;
+				i += 2;
+			} else if ((marker == 0) || (marker == 0xff)) {
+				i += marker == 0 ? 2 : 1;
+			} else {
+				// end of scan
+				break;
+			}
+		}
+		// broken frame is decoded on the caller thread, it can resync at restart markers
+		return found == intervals - 1;
+	}
+
+	/**
+	 * parse marker segments until SOS
+	 * @param src
+	 */
+	private void readHeader(final ByteBuffer src) {
+		final int pos = src.position();
+		final int limit = src.limit();
+		if ((limit - pos < 4) || ((src.get(pos) & 0xff) != 0xff) || ((src.get(pos + 1) & 0xff) != MARKER_SOI))
+			throw new IllegalArgumentException("not JPEG");
+		Arrays.fill(mDcDefined, false);
+		Arrays.fill(mAcDefined, false);
+		mNumComponents = 0;
+		mRestartInterval = 0;
+		int i = pos + 2;
+		for ( ; ; ) {
+			if (i + 3 >= limit) throw new IllegalArgumentException("no SOS");
+			if ((src.get(i) & 0xff) != 0xff) throw new IllegalArgumentException("broken marker");
+			final int marker = src.get(i + 1) & 0xff;
+			if (marker == 0xff) {
+				i++;
+				continue;
+			}
+			if ((marker == MARKER_SOI) || (marker == MARKER_EOI) || (marker == MARKER_TEM)
+				|| ((marker >= MARKER_RST0) && (marker <= MARKER_RST7)))
+				throw new IllegalArgumentException("unexpected marker:" + marker);
+			final int length = readShort(src, i + 2);
+			final int end = i + 2 + length;
+			if ((length < 2) || (end > limit)) throw new IllegalArgumentException("broken segment");
+			final int data = i + 4;
+			switch (marker) {
+			case MARKER_SOF0:
+			case MARKER_SOF1:
+				readFrameHeader(src, data, end);
+				break;
+			case MARKER_DHT:
+				readHuffmanTables(src, data, end);
+				break;
+			case MARKER_DQT:
+				readQuantizationTables(src, data, end);
+				break;
+			case MARKER_DRI:
+				if (length != 4) throw new IllegalArgumentException("broken DRI");
+				mRestartInterval = readShort(src, data);
+				break;
+			case MARKER_SOS:
+				readScanHeader(src, data, end);
+				mScanStart = end;
+				return;
+			default:
+				if ((marker >= 0xc2) && (marker <= 0xcf) && (marker != 0xc8) && (marker != 0xcc))
+					throw new IllegalArgumentException("only baseline JPEG is supported:" + marker);
+				// APPn, COM etc.
+				break;
+			}
+			i = end;
+		}
+	}
+
+	private void readFrameHeader(final ByteBuffer src, final int data, final int end) {
+		if (end - data < 6) throw new IllegalArgumentException("broken SOF");
+		if ((src.get(data) & 0xff) != 8) throw new IllegalArgumentException("only 8 bit precision is supported");
+		final int height = readShort(src, data + 1);
+		final int width = readShort(src, data + 3);
+		final int n = src.get(data + 5) & 0xff;
+		if ((width == 0) || (height == 0)) throw new IllegalArgumentException("invalid frame size");
+		if ((n != 1) && (n != 3)) throw new IllegalArgumentException("unsupported number of components:" + n);
+		if (end - data != 6 + 3 * n) throw new IllegalArgumentException("broken SOF");
+		int maxH = 1, maxV = 1;
+		for (int c = 0; c < n; c++) {
+			final Component comp = mComponents[c];
+			final int offset = data + 6 + 3 * c;
+			comp.id = src.get(offset) & 0xff;
+			final int sampling = src.get(offset + 1) & 0xff;
+			comp.h = n == 1 ? 1 : sampling >> 4;
+			comp.v = n == 1 ? 1 : sampling & 0x0f;
+			comp.tq = src.get(offset + 2) & 0x03;
+			if ((comp.h < 1) || (comp.h > 4) || (comp.v < 1) || (comp.v > 4))
+				throw new IllegalArgumentException("invalid sampling factor");
+			maxH = Math.max(maxH, comp.h);
+			maxV = Math.max(maxV, comp.v);
+		}
+		mWidth = width;
+		mHeight = height;
+		mNumComponents = n;
+		mMaxH = maxH;
+		mMaxV = maxV;
+		mMcusX = (width + 8 * maxH - 1) / (8 * maxH);
+		mMcusY = (height + 8 * maxV - 1) / (8 * maxV);
+	}
+
+	private void readHuffmanTables(final ByteBuffer src, final int data, final int end) {
+		int i = data;
+		while (i < end) {
+			final int tc = (src.get(i) & 0xff) >> 4;
+			final int th = src.get(i) & 0x0f;
+			if ((tc > 1) || (th > 3) || (i + 17 > end)) throw new IllegalArgumentException("broken DHT");
+			int count = 0;
+			for (int l = 0; l < 16; l++) {
+				count += src.get(i + 1 + l) & 0xff;
+			}
+			if ((count > 256) || (i + 17 + count > end)) throw new IllegalArgumentException("broken DHT");
+			final HuffmanTable table = tc == 0 ? mDcTables[th] : mAcTables[th];
+			table.set(src, i + 1, src, i + 17);
+			if (tc == 0) {
+				mDcDefined[th] = true;
+			} else {
+				mAcDefined[th] = true;
+			}
+			i += 17 + count;
+		}
+	}
+
+	private void readQuantizationTables(final ByteBuffer src, final int data, final int end) {
+		int i = data;
+		while (i < end) {
+			final int pq = (src.get(i) & 0xff) >> 4;
+			final int tq = src.get(i) & 0x0f;
+			if ((pq > 1) || (tq > 3) || (i + 1 + 64 * (pq + 1) > end)) throw new IllegalArgumentException("broken DQT");
+			final int[] table = mQuant[tq];
+			for (int k = 0; k < 64; k++) {
+				table[k] = pq == 0 ? src.get(i + 1 + k) & 0xff : readShort(src, i + 1 + 2 * k);
+			}
+			i += 1 + 64 * (pq + 1);
+		}
+	}
+
+	private void readScanHeader(final ByteBuffer src, final int data, final int end) {
+		if (mNumComponents == 0) throw new IllegalArgumentException("no SOF");
+		if (end - data < 1) throw new IllegalArgumentException("broken SOS");
+		final int n = src.get(data) & 0xff;
+		if (end - data != 4 + 2 * n) throw new IllegalArgumentException("broken SOS");
+		if (n != mNumComponents) throw new IllegalArgumentException("only single scan JPEG is supported");
+		for (int s = 0; s < n; s++) {
+			final int id = src.get(data + 1 + 2 * s) & 0xff;
+			final int tables = src.get(data + 2 + 2 * s) & 0xff;
+			Component comp = null;
+			for (int c = 0; c < mNumComponents; c++) {
+				if (mComponents[c].id == id) {
+					comp = mComponents[c];
+					break;
+				}
+			}
+			if (comp == null) throw new IllegalArgumentException("unknown component:" + id);
+			final int td = (tables >> 4) & 0x03;
+			final int ta = tables & 0x03;
+			// use the standard tables if the frame does not have DHT
+			comp.dcTable = mDcDefined[td] ? mDcTables[td] : (td == 0 ? STD_DC_LUMINANCE : STD_DC_CHROMINANCE);
+			comp.acTable = mAcDefined[ta] ? mAcTables[ta] : (ta == 0 ? STD_AC_LUMINANCE : STD_AC_CHROMINANCE);
+			mScanComponents[s] = comp;
+		}
+		mNumScanComponents = n;
+	}
+
+	/**
+	 * allocate component planes and work buffers for current frame
+	 */
+	private void prepare() {
+		final int n = mBlockSize;
+		for (int c = 0; c < mNumComponents; c++) {
+			final Component comp = mComponents[c];
+			comp.quant = mQuant[comp.tq];
+			// chroma is not required for gray output
+			comp.output = (c == 0) || (mPixelFormat == UVCCamera.PIXEL_FORMAT_RGBX);
+			comp.stride = mMcusX * comp.h * n;
+			final int bytes = comp.stride * mMcusY * comp.v * n;
+			if (comp.output && ((comp.plane == null) || (comp.plane.length < bytes))) {
+				comp.plane = new byte[bytes];
+			}
+		}
+		final int width = getOutputWidth(mWidth);
+		final int rowBytes = width * (mPixelFormat == UVCCamera.PIXEL_FORMAT_RGBX ? 4 : 1);
+		if ((mRow == null) || (mRow.length < rowBytes)) {
+			mRow = new byte[rowBytes];
+		}
+		if ((mColMap == null) || (mColMap.length < width * 2)) {
+			mColMap = new int[width * 2];
+		}
+		if (mNumComponents == 3) {
+			// column of chroma samples for each output column
+			final Component cb = mComponents[1], cr = mComponents[2];
+			for (int i = 0; i < width; i++) {
+				mColMap[i] = i * cb.h / mMaxH;
+				mColMap[width + i] = i * cr.h / mMaxH;
+			}
+		}
+	}
+
+	/**
+	 * write rows of decoded planes into dst from its position as the output pixel format
+	 * @param dst
+	 * @param rowStart
+	 * @param rowEnd
+	 * @param row work buffer for a row
+	 */
+	private void outputRows(final ByteBuffer dst, final int rowStart, final int rowEnd, final byte[] row) {
+		final int width = getOutputWidth(mWidth);
+		final Component y = mComponents[0];
+		if ((mPixelFormat == UVCCamera.PIXEL_FORMAT_GRAY) || (mNumComponents == 1)) {
+			if (mPixelFormat == UVCCamera.PIXEL_FORMAT_GRAY) {
+				for (int j = rowStart; j < rowEnd; j++) {
+					dst.put(y.plane, j * y.stride, width);
+				}
+			} else {
+				for (int j = rowStart; j < rowEnd; j++) {
+					final int offset = j * y.stride;
+					for (int i = 0, d = 0; i < width; i++, d += 4) {
+						final byte v = y.plane[offset + i];
+						row[d] = v;
+						row[d + 1] = v;
+						row[d + 2] = v;
+						row[d + 3] = (byte)0xff;
+					}
+					dst.put(row, 0, width * 4);
+				}
+			}
+		} else {
+			final Component cb = mComponents[1], cr = mComponents[2];
+			final int[] colMap = mColMap;
+			final byte[] range = RANGE_LIMIT;
+			for (int j = rowStart; j < rowEnd; j++) {
+				final int yOffset = j * y.stride;
+				final int cbOffset = (j * cb.v / mMaxV) * cb.stride;
+				final int crOffset = (j * cr.v / mMaxV) * cr.stride;
+				for (int i = 0, d = 0; i < width; i++, d += 4) {
+					final int yy = (y.plane[yOffset + i] & 0xff) + 384;
+					final int u = cb.plane[cbOffset + colMap[i]] & 0xff;
+					final int v = cr.plane[crOffset + colMap[width + i]] & 0xff;
+					row[d] = range[(yy + CR_R[v]) & 1023];
+					row[d + 1] = range[(yy + ((CB_G[u] + CR_G[v]) >> 16)) & 1023];
+					row[d + 2] = range[(yy + CB_B[u]) & 1023];
+					row[d + 3] = (byte)0xff;
+				}
+				dst.put(row, 0, width * 4);
+			}
+		}
+	}
+
+	private static int readShort(final ByteBuffer src, final int index) {
+		return ((src.get(index) & 0xff) << 8) | (src.get(index + 1) & 0xff);
+	}
+
+	private static int[] createReducedIdct(final int n) {
+		final int[] result = new int[n * n];
+		for (int x = 0; x < n; x++) {
+			for (int u = 0; u < n; u++) {
+				final double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+				result[x * n + u] = (int)Math.round(c / 2 * Math.cos((2 * x + 1) * u * Math.PI / (2 * n)) * (1 << CONST_BITS));
+			}
+		}
+		return result;
+	}
+
+	private final class RootTask extends RecursiveAction {
+		@Override
+		protected void compute() {
+			final int n = mNumTasks;
+			final Segment[] segments = mSegments;
+			if (mParallelEntropy) {
+				// split restart intervals into n groups
+				final int interval = mRestartInterval;
+				final int mcus = mMcusX * mMcusY;
+				final int intervals = (mcus + interval - 1) / interval;
+				for (int i = 0; i < n; i++) {
+					final int first = (int)((long)intervals * i / n);
+					final int last = (int)((long)intervals * (i + 1) / n);
+					segments[i].reinitialize();
+					segments[i].setEntropy(first == 0 ? mScanStart : mRestarts[first - 1],
+						first * interval, Math.min(last * interval, mcus));
+				}
+				invokeSegments(n);
+			}
+			// color conversion
+			final int height = getOutputHeight(mHeight);
+			final int rowBytes = getOutputWidth(mWidth) * (mPixelFormat == UVCCamera.PIXEL_FORMAT_RGBX ? 4 : 1);
+			for (int i = 0; i < n; i++) {
+				segments[i].reinitialize();
+				segments[i].setRows(height * i / n, height * (i + 1) / n, rowBytes);
+			}
+			invokeSegments(n);
+		}
+
+		private void invokeSegments(final int n) {
+			for (int i = 1; i < n; i++) {
+				mSegments[i].fork();
+			}
+			mSegments[0].compute();
+			for (int i = 1; i < n; i++) {
+				mSegments[i].join();
+			}
+		}
+	}
+
+	/**
+	 * a group of restart intervals or rows of the frame
+	 */
+	private final class Segment extends RecursiveAction {
+		private final EntropyDecoder mDecoder = new EntropyDecoder();
+		private byte[] mRowBuffer;
+		/**
+		 * duplicate of the output buffer to write rows from different position on each thread
+		 */
+		private ByteBuffer mView, mViewSource;
+		private boolean mEntropy;
+		private int mOffset, mStart, mEnd, mRowBytes;
+
+		private void setEntropy(final int offset, final int mcuStart, final int mcuEnd) {
+			mEntropy = true;
+			mOffset = offset;
+			mStart = mcuStart;
+			mEnd = mcuEnd;
+		}
+
+		private void setRows(final int rowStart, final int rowEnd, final int rowBytes) {
+			mEntropy = false;
+			mStart = rowStart;
+			mEnd = rowEnd;
+			mRowBytes = rowBytes;
+			if ((mRowBuffer == null) || (mRowBuffer.length < mRow.length)) {
+				mRowBuffer = new byte[mRow.length];
+			}
+			if (mViewSource != mDst) {
+				mView = mDst.duplicate();
+				mViewSource = mDst;
+			}
+		}
+
+		@Override
+		protected void compute() {
+			if (mEntropy) {
+				mDecoder.start(mSrc, mOffset);
+				mDecoder.decode(mStart, mEnd);
+			} else if (mStart < mEnd) {
+				final ByteBuffer view = mView;
+				view.limit(view.capacity());
+				view.position(mStart * mRowBytes);
+				outputRows(view, mStart, mEnd, mRowBuffer);
+			}
+		}
+	}
+
+	/**
+	 * component of the frame and its decoded plane
+	 */
+	private static final class Component {
+		private int id, h, v, tq;
+		private HuffmanTable dcTable, acTable;
+		private int[] quant;
+		private boolean output;
+		private byte[] plane;
+		private int stride;
+	}
+
+	/**
+	 * Huffman table with lookup table for the codes up to LOOKUP_BITS bits
+	 */
+	private static final class HuffmanTable {
+		/**
+		 * (code length << 8) | value, 0: code is longer than LOOKUP_BITS
+		 */
+		private final int[] lookup = new int[1 << LOOKUP_BITS];
+		private final int[] maxCode = new int[18];
+		private final int[] minCode = new int[17];
+		private final int[] valuePtr = new int[17];
+		private final int[] values = new int[256];
+
+		private HuffmanTable set(final byte[] bits, final int bitsOffset, final byte[] values, final int valuesOffset) {
+			return set(ByteBuffer.wrap(bits), bitsOffset, ByteBuffer.wrap(values), valuesOffset);
+		}
+
+		private HuffmanTable set(final ByteBuffer bits, final int bitsOffset,
+			final ByteBuffer values, final int valuesOffset) {
+
+			Arrays.fill(lookup, 0);
+			int code = 0, k = 0;
+			for (int l = 1; l <= 16; l++) {
+				final int n = bits.get(bitsOffset + l - 1) & 0xff;
+				valuePtr[l] = k;
+				minCode[l] = code;
+				for (int i = 0; i < n; i++, code++, k++) {
+					final int value = values.get(valuesOffset + k) & 0xff;
+					this.values[k] = value;
+					if (l <= LOOKUP_BITS) {
+						final int shift = LOOKUP_BITS - l;
+						final int base = code << shift;
+						if (base + (1 << shift) > lookup.length)
+							throw new IllegalArgumentException("broken Huffman table");
+						Arrays.fill(lookup, base, base + (1 << shift), (l << 8) | value);
+					}
+				}
+				maxCode[l] = n > 0 ? code - 1 : -1;
+				code <<= 1;
+			}
+			maxCode[17] = Integer.MAX_VALUE;
+			return this;
+		}
+	}
+
+	/**
+	 * Huffman decoding and IDCT of MCUs, this has its own bit reader and DC predictors
+	 */
+	private final class EntropyDecoder {
+		private final int[] mCoef = new int[64];
+		private final int[] mWork = new int[64];
+		private final int[] mPredictors = new int[MAX_COMPONENTS];
+		private ByteBuffer mSrc;
+		private int mPos, mLimit;
+		private long mBits;
+		private int mBitCount;
+		private boolean mHitMarker;
+
+		/**
+		 * start decoding from the entropy coded data at the index
+		 * @param src
+		 * @param index
+		 */
+		private void start(final ByteBuffer src, final int index) {
+			mSrc = src;
+			mPos = index;
+			mLimit = src.limit();
+			reset();
+		}
+
+		private void reset() {
+			mBits = 0;
+			mBitCount = 0;
+			mHitMarker = false;
+			Arrays.fill(mPredictors, 0);
+		}
+
+		/**
+		 * decode MCUs, restart markers are processed on the interval boundaries
+		 * @param mcuStart index of the first MCU, this should be on the restart interval boundary
+		 * @param mcuEnd
+		 */
+		private void decode(final int mcuStart, final int mcuEnd) {
+			final int mcusX = mMcusX;
+			final int interval = mRestartInterval;
+			final int n = mBlockSize;
+			final int scanComponents = mNumScanComponents;
+			for (int m = mcuStart; m < mcuEnd; m++) {
+				if ((interval > 0) && (m != mcuStart) && (m % interval == 0)) {
+					restart();
+				}
+				final int mx = m % mcusX;
+				final int my = m / mcusX;
+				for (int s = 0; s < scanComponents; s++) {
+					final Component comp = mScanComponents[s];
+					for (int v = 0; v < comp.v; v++) {
+						final int offset = ((my * comp.v + v) * n) * comp.stride + (mx * comp.h) * n;
+						for (int h = 0; h < comp.h; h++) {
+							decodeBlock(comp, s, offset + h * n);
+						}
+					}
+				}
+			}
+		}
+
+		private void decodeBlock(final Component comp, final int index, final int offset) {
+			final int[] coef = mCoef;
+			final int[] quant = comp.quant;
+			final boolean[] needed = mNeeded;
+			final boolean output = comp.output;
+			// DC
+			int s = decodeHuffman(comp.dcTable);
+			if (s != 0) {
+				mPredictors[index] += extend(receive(s), s);
+			}
+			coef[0] = mPredictors[index] * quant[0];
+			// AC
+			for (int k = 1; k < 64; k++) {
+				final int rs = decodeHuffman(comp.acTable);
+				s = rs & 0x0f;
+				final int r = rs >> 4;
+				if (s != 0) {
+					k += r;
+					if (k > 63) throw new IllegalArgumentException("broken entropy coded data");
+					final int value = extend(receive(s), s);
+					if (output && needed[k]) {
+						coef[NATURAL_ORDER[k]] = value * quant[k];
+					}
+				} else {
+					if (r != 15) break;
+					k += 15;
+				}
+			}
+			if (output) {
+				switch (mBlockSize) {
+				case 8:
+					idct8(coef, mWork, comp.plane, offset, comp.stride);
+					break;
+				case 4:
+					idctReduced(coef, 4, IDCT4, mWork, comp.plane, offset, comp.stride);
+					break;
+				case 2:
+					idctReduced(coef, 2, IDCT2, mWork, comp.plane, offset, comp.stride);
+					break;
+				default:
+					// DC only
+					comp.plane[offset] = RANGE_LIMIT[((((coef[0] + 4) >> 3) + 128) + 384) & 1023];
+					coef[0] = 0;
+					break;
+				}
+			}
+		}
+
+		private int decodeHuffman(final HuffmanTable table) {
+			if (mBitCount < 16) fill();
+			final int entry = table.lookup[(int)(mBits >>> (mBitCount - LOOKUP_BITS)) & ((1 << LOOKUP_BITS) - 1)];
+			if (entry != 0) {
+				mBitCount -= entry >> 8;
+				return entry & 0xff;
+			}
+			int l = LOOKUP_BITS + 1;
+			int code = (int)(mBits >>> (mBitCount - l)) & ((1 << l) - 1);
+			while (code > table.maxCode[l]) {
+				l++;
+				code = (int)(mBits >>> (mBitCount - l)) & ((1 << l) - 1);
+			}
+			if (l > 16) throw new IllegalArgumentException("broken Huffman code");
+			mBitCount -= l;
+			return table.values[(table.valuePtr[l] + code - table.minCode[l]) & 0xff];
+		}
+
+		private int receive(final int s) {
+			if (mBitCount < s) fill();
+			mBitCount -= s;
+			return (int)(mBits >>> mBitCount) & ((1 << s) - 1);
+		}
+
+		/**
+		 * read bytes into the bit buffer, zeros are fed after a marker
+		 */
+		private void fill() {
+			final ByteBuffer src = mSrc;
+			while (mBitCount <= 56) {
+				int b = 0;
+				if (!mHitMarker && (mPos < mLimit)) {
+					b = src.get(mPos) & 0xff;
+					if (b == 0xff) {
+						final int next = mPos + 1 < mLimit ? src.get(mPos + 1) & 0xff : MARKER_EOI;
+						if (next == 0) {
+							// stuffed zero byte
+							mPos += 2;
+						} else {
+							// keep position at the marker
+							mHitMarker = true;
+							b = 0;
+						}
+					} else {
+						mPos++;
+					}
+				}
+				mBits = (mBits << 8) | b;
+				mBitCount += 8;
+			}
+		}
+
+		/**
+		 * skip to the next restart marker and reset the decoder
+		 */
+		private void restart() {
+			final ByteBuffer src = mSrc;
+			int i = mPos;
+			while ((i + 1 < mLimit) && !(((src.get(i) & 0xff) == 0xff)
+				&& ((src.get(i + 1) & 0xff) >= MARKER_RST0) && ((src.get(i + 1) & 0xff) <= MARKER_RST7))) {
+				i++;
+			}
+			mPos = Math.min(i + 2, mLimit);
+			reset();
+		}
+	}
+
+	private static int extend(final int v, final int s) {
+		return v < (1 << (s - 1)) ? v - (1 << s) + 1 : v;
+	}
+
+	/**
+	 * 8x8 integer IDCT, same as jpeg_idct_islow of libjpeg.
+	 * coefficients are cleared after the transform.
+	 */
+	private static void idct8(final int[] coef, final int[] work, final byte[] out, final int offset, final int stride) {
+		final byte[] range = RANGE_LIMIT;
+		// pass 1: columns
+		for (int col = 0; col < 8; col++) {
+			final int d0 = coef[col], d1 = coef[8 + col], d2 = coef[16 + col], d3 = coef[24 + col];
+			final int d4 = coef[32 + col], d5 = coef[40 + col], d6 = coef[48 + col], d7 = coef[56 + col];
+			if ((d1 | d2 | d3 | d4 | d5 | d6 | d7) == 0) {
+				final int dc = d0 << PASS1_BITS;
+				for (int row = 0; row < 64; row += 8) {
+					work[row + col] = dc;
+				}
+				continue;
+			}
+			int z1 = (d2 + d6) * FIX_0_541196100;
+			int tmp2 = z1 - d6 * FIX_1_847759065;
+			int tmp3 = z1 + d2 * FIX_0_765366865;
+			int tmp0 = (d0 + d4) << CONST_BITS;
+			int tmp1 = (d0 - d4) << CONST_BITS;
+			final int tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+			final int tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+			tmp0 = d7; tmp1 = d5; tmp2 = d3; tmp3 = d1;
+			z1 = tmp0 + tmp3;
+			int z2 = tmp1 + tmp2;
+			int z3 = tmp0 + tmp2;
+			int z4 = tmp1 + tmp3;
+			final int z5 = (z3 + z4) * FIX_1_175875602;
+			tmp0 *= FIX_0_298631336;
+			tmp1 *= FIX_2_053119869;
+			tmp2 *= FIX_3_072711026;
+			tmp3 *= FIX_1_501321110;
+			z1 *= -FIX_0_899976223;
+			z2 *= -FIX_2_562915447;
+			z3 = z3 * -FIX_1_961570560 + z5;
+			z4 = z4 * -FIX_0_390180644 + z5;
+			tmp0 += z1 + z3;
+			tmp1 += z2 + z4;
+			tmp2 += z2 + z3;
+			tmp3 += z1 + z4;
+			final int shift = CONST_BITS - PASS1_BITS;
+			final int round = 1 << (shift - 1);
+			work[col] = (tmp10 + tmp3 + round) >> shift;
+			work[56 + col] = (tmp10 - tmp3 + round) >> shift;
+			work[8 + col] = (tmp11 + tmp2 + round) >> shift;
+			work[48 + col] = (tmp11 - tmp2 + round) >> shift;
+			work[16 + col] = (tmp12 + tmp1 + round) >> shift;
+			work[40 + col] = (tmp12 - tmp1 + round) >> shift;
+			work[24 + col] = (tmp13 + tmp0 + round) >> shift;
+			work[32 + col] = (tmp13 - tmp0 + round) >> shift;
+		}
+		Arrays.fill(coef, 0);
+		// pass 2: rows
+		final int shift = CONST_BITS + PASS1_BITS + 3;
+		final int round = 1 << (shift - 1);
+		for (int row = 0, o = offset; row < 64; row += 8, o += stride) {
+			final int d0 = work[row], d1 = work[row + 1], d2 = work[row + 2], d3 = work[row + 3];
+			final int d4 = work[row + 4], d5 = work[row + 5], d6 = work[row + 6], d7 = work[row + 7];
+			if ((d1 | d2 | d3 | d4 | d5 | d6 | d7) == 0) {
+				final byte dc = range[((((d0 + (1 << (PASS1_BITS + 2))) >> (PASS1_BITS + 3)) + 128) + 384) & 1023];
+				for (int i = 0; i < 8; i++) {
+					out[o + i] = dc;
+				}
+				continue;
+			}
+			int z1 = (d2 + d6) * FIX_0_541196100;
+			int tmp2 = z1 - d6 * FIX_1_847759065;
+			int tmp3 = z1 + d2 * FIX_0_765366865;
+			int tmp0 = (d0 + d4) << CONST_BITS;
+			int tmp1 = (d0 - d4) << CONST_BITS;
+			final int tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+			final int tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+			tmp0 = d7; tmp1 = d5; tmp2 = d3; tmp3 = d1;
+			z1 = tmp0 + tmp3;
+			int z2 = tmp1 + tmp2;
+			int z3 = tmp0 + tmp2;
+			int z4 = tmp1 + tmp3;
+			final int z5 = (z3 + z4) * FIX_1_175875602;
+			tmp0 *= FIX_0_298631336;
+			tmp1 *= FIX_2_053119869;
+			tmp2 *= FIX_3_072711026;
+			tmp3 *= FIX_1_501321110;
+			z1 *= -FIX_0_899976223;
+			z2 *= -FIX_2_562915447;
+			z3 = z3 * -FIX_1_961570560 + z5;
+			z4 = z4 * -FIX_0_390180644 + z5;
+			tmp0 += z1 + z3;
+			tmp1 += z2 + z4;
+			tmp2 += z2 + z3;
+			tmp3 += z1 + z4;
+			out[o] = range[(((tmp10 + tmp3 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 7] = range[(((tmp10 - tmp3 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 1] = range[(((tmp11 + tmp2 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 6] = range[(((tmp11 - tmp2 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 2] = range[(((tmp12 + tmp1 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 5] = range[(((tmp12 - tmp1 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 3] = range[(((tmp13 + tmp0 + round) >> shift) + 128 + 384) & 1023];
+			out[o + 4] = range[(((tmp13 - tmp0 + round) >> shift) + 128 + 384) & 1023];
+		}
+	}
+
+	/**
+	 * n x n IDCT that uses only n x n low frequency coefficients of 8x8 block.
+	 * coefficients are cleared after the transform.
+	 */
+	private static void idctReduced(final int[] coef, final int n, final int[] basis,
+		final int[] work, final byte[] out, final int offset, final int stride) {
+
+		final byte[] range = RANGE_LIMIT;
+		// pass 1: columns, keep PASS1_BITS fraction bits
+		final int shift1 = CONST_BITS - PASS1_BITS;
+		for (int u = 0; u < n; u++) {
+			for (int y = 0; y < n; y++) {
+				int sum = 0;
+				for (int v = 0; v < n; v++) {
+					sum += basis[y * n + v] * coef[v * 8 + u];
+				}
+				work[y * n + u] = (sum + (1 << (shift1 - 1))) >> shift1;
+			}
+		}
+		for (int v = 0; v < n; v++) {
+			for (int u = 0; u < n; u++) {
+				coef[v * 8 + u] = 0;
+			}
+		}
+		// pass 2: rows
+		final int shift2 = CONST_BITS + PASS1_BITS;
+		for (int y = 0, o = offset; y < n; y++, o += stride) {
+			for (int x = 0; x < n; x++) {
+				int sum = 0;
+				for (int u = 0; u < n; u++) {
+					sum += basis[x * n + u] * work[y * n + u];
+				}
+				out[o + x] = range[(((sum + (1 << (shift2 - 1))) >> shift2) + 128 + 384) & 1023];
+			}
+		}
+	}
+}
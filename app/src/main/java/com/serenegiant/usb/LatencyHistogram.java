@@ -0,0 +1,188 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free and allocation-free histogram of durations in nanoseconds,
+ * with log-linear buckets like HdrHistogram(about 6% precision over whole range).
+ * #record can be called from any thread, #snapshot returns a consistent-enough copy for monitoring.
+ */
+public class LatencyHistogram {
+	/**
+	 * 2^SUB_BUCKET_BITS linear buckets for small values, then 2^(SUB_BUCKET_BITS-1) buckets per power of 2
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	/**
+	 * covers up to 2^40 ns(about 18 minutes), larger values are counted in the last bucket
+	 */
+	private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF;
+
+	private final String mName;
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong mMax = new AtomicLong();
+
+	public LatencyHistogram(final String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @param valueNs negative value is ignored
+	 */
+	public void record(final long valueNs) {
+		if (valueNs < 0) return;
+		mCounts.incrementAndGet(bucketIndex(valueNs));
+		mCount.incrementAndGet();
+		mSum.addAndGet(valueNs);
+		long current;
+		while (valueNs < (current = mMin.get())) {
+			if (mMin.compareAndSet(current, valueNs)) break;
+		}
+		while (valueNs > (current = mMax.get())) {
+			if (mMax.compareAndSet(current, valueNs)) break;
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mCounts.set(i, 0);
+		}
+		mCount.set(0);
+		mSum.set(0);
+		mMin.set(Long.MAX_VALUE);
+		mMax.set(0);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * copy current values, you can call this on any thread while recording
+	 * @return
+	 */
+	public Snapshot snapshot() {
+		final long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mCounts.get(i);
+		}
+		final long count = mCount.get();
+		return new Snapshot(mName, counts, count, mSum.get(),
+			count > 0 ? mMin.get() : 0, mMax.get());
+	}
+
+	/*package*/static int bucketIndex(final long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+		if (shift > MAX_SHIFT) {
+			return BUCKET_COUNT - 1;
+		}
+		final int sub = (int)(value >>> shift);	// [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (sub - SUB_BUCKET_HALF);
+	}
+
+	/**
+	 * @return the largest value that is counted in the bucket
+	 */
+	/*package*/static long bucketUpperBound(final int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		final long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * immutable copy of LatencyHistogram
+	 */
+	public static final class Snapshot {
+		public final String name;
+		public final long count;
+		public final long sum;
+		public final long min;
+		public final long max;
+		private final long[] mCounts;
+
+		private Snapshot(final String _name, final long[] counts,
+			final long _count, final long _sum, final long _min, final long _max) {
+
+			name = _name;
+			mCounts = counts;
+			count = _count;
+			sum = _sum;
+			min = _min;
+			max = _max;
+		}
+
+		public double getMean() {
+			return count > 0 ? (double)sum / count : 0;
+		}
+
+		/**
+		 * @param percentile [0,100]
+		 * @return upper bound of the bucket that contains the percentile value[ns]
+		 */
+		public long getPercentile(final double percentile) {
+			long total = 0;
+			for (final long c: mCounts) {
+				total += c;
+			}
+			if (total == 0) return 0;
+			final long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+			long accum = 0;
+			for (int i = 0; i < mCounts.length; i++) {
+				accum += mCounts[i];
+				if (accum >= target) {
+					return Math.min(bucketUpperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"%s(n=%d,mean=%.3fms,min=%.3fms,p50=%.3fms,p90=%.3fms,p99=%.3fms,max=%.3fms)",
+				name, count, getMean() / 1e6, min / 1e6,
+				getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6,
+				max / 1e6);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.os.SystemClock;
+
+/**
+ * Wait-free triple buffer that always holds the most recent frame
+ * for readers like snapshot, overlay or status page.
+ * The producer(IFrameCallback#onFrame) never blocks and never waits readers,
+ * readers get consistent frame that is never overwritten while they are reading.
+ * Readers are serialized with each other but they never block the producer.
+ */
+public class LatestFrameHolder implements IFrameCallback, IFrameInfoCallback {
+	private static final int INDEX_MASK = 0x03;
+	/**
+	 * set when the middle buffer has a frame that readers have not seen yet
+	 */
+	private static final int DIRTY = 0x04;
+
+	/**
+	 * a frame in the holder, valid until LatestFrameHolder#release
+	 */
+	public static final class Frame {
+		private ByteBuffer mBuffer;
+		private final FrameInfo mInfo = new FrameInfo();
+
+		private Frame(final int capacity) {
+			mBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+			mBuffer.limit(0);
+		}
+
+		/**
+		 * @return frame data, position is 0 and limit is the data length
+		 */
+		public ByteBuffer getBuffer() {
+			return mBuffer;
+		}
+
+		public FrameInfo getInfo() {
+			return mInfo;
+		}
+
+		private void copyFrom(final ByteBuffer frame) {
+			final int pos = frame.position();
+			if (mBuffer.capacity() < frame.remaining()) {
+				mBuffer = ByteBuffer.allocateDirect(frame.remaining()).order(ByteOrder.nativeOrder());
+			}
+			mBuffer.clear();
+			mBuffer.put(frame);
+			mBuffer.flip();
+			frame.position(pos);
+		}
+	}
+
+	private final Frame[] mFrames = new Frame[3];
+	/**
+	 * index of middle buffer and DIRTY flag
+	 */
+	private final AtomicInteger mState = new AtomicInteger(1);
+	private final ReentrantLock mReaderLock = new ReentrantLock();
+	/**
+	 * only accessed from the producer thread
+	 */
+	private int mBack = 0;
+	private long mSequence;
+	private final FrameInfo mInfo = new FrameInfo();
+	/**
+	 * only accessed by readers with mReaderLock
+	 */
+	private int mFront = 2;
+	private boolean mHasFrame;
+	private volatile int mWidth, mHeight, mPixelFormat;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param pixelFormat pixel format passed to UVCCamera#setFrameCallback
+	 */
+	public LatestFrameHolder(final int width, final int height, final int pixelFormat) {
+		final int bytes = FramePool.getFrameBytes(width, height, pixelFormat);
+		for (int i = 0; i < 3; i++) {
+			mFrames[i] = new Frame(bytes);
+		}
+		mWidth = width;
+		mHeight = height;
+		mPixelFormat = pixelFormat;
+	}
+
+	/**
+	 * change frame size, buffers are re-allocated on producer thread when the frame does not fit
+	 * @param width
+	 * @param height
+	 */
+	public void resize(final int width, final int height) {
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * IFrameCallback, producer side
+	 * @param frame
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame) {
+		mInfo.captureTimeNs = SystemClock.elapsedRealtimeNanos();
+		mInfo.sequence = mSequence++;
+		mInfo.setFormat(mWidth, mHeight, mPixelFormat);
+		publish(frame, mInfo);
+	}
+
+	/**
+	 * IFrameInfoCallback, producer side
+	 * @param frame
+	 * @param info
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame, final FrameInfo info) {
+		publish(frame, info);
+	}
+
+	/**
+	 * copy the frame into back buffer and swap it with middle buffer,
+	 * only one thread can call this
+	 * @param frame
+	 * @param info
+	 */
+	public void publish(final ByteBuffer frame, final FrameInfo info) {
+		final Frame back = mFrames[mBack];
+		back.copyFrom(frame);
+		back.mInfo.set(info);
+		mBack = mState.getAndSet(mBack | DIRTY) & INDEX_MASK;
+	}
+
+	/**
+	 * @return true if a new frame was published since last #acquire
+	 */
+	public boolean hasNewFrame() {
+		return (mState.get() & DIRTY) != 0;
+	}
+
+	/**
+	 * get the latest frame, you must call #release on the same thread after using it.
+	 * other readers wait until #release but the producer is never blocked.
+	 * @return null if no frame was published yet
+	 */
+	public Frame acquire() {
+		mReaderLock.lock();
+		if ((mState.get() & DIRTY) != 0) {
+			mFront = mState.getAndSet(mFront) & INDEX_MASK;
+			mHasFrame = true;
+		}
+		if (!mHasFrame) {
+			mReaderLock.unlock();
+			return null;
+		}
+		return mFrames[mFront];
+	}
+
+	/**
+	 * release the frame that was returned by #acquire
+	 */
+	public void release() {
+		mReaderLock.unlock();
+	}
+
+	/**
+	 * copy the latest frame
+	 * @param dst
+	 * @param info metadata of the frame is copied into this if not null
+	 * @return false if no frame was published yet
+	 */
+	public boolean copyTo(final ByteBuffer dst, final FrameInfo info) {
+		final Frame frame = acquire();
+		if (frame != null) {
+			try {
+				final ByteBuffer src = frame.getBuffer();
+				dst.clear();
+				dst.put(src);
+				dst.flip();
+				src.position(0);
+				if (info != null) {
+					info.set(frame.getInfo());
+				}
+			} finally {
+				release();
+			}
+			return true;
+		}
+		return false;
+	}
+}
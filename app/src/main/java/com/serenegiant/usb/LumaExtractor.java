@@ -0,0 +1,247 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Y plane(UVCCamera#PIXEL_FORMAT_GRAY) extraction for consumers that only use luma.
+ * For YUV420SP/NV21/I420 frames, Y plane is the first plane and you can get it without copying
+ * by #view or FrameBuffer#getLumaView. For YUYV frames, every other byte is copied.
+ */
+public final class LumaExtractor {
+
+	private LumaExtractor() {
+		// static utility class
+	}
+
+	/**
+	 * @param srcFormat
+	 * @return true if Y plane can be extracted from the pixel format
+	 */
+	public static boolean isSupported(final int srcFormat) {
+		switch (srcFormat) {
+		case UVCCamera.PIXEL_FORMAT_YUV:
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param srcFormat
+	 * @return true if Y plane is contiguous in the frame and #view is available
+	 */
+	public static boolean hasLumaPlane(final int srcFormat) {
+		return (srcFormat == UVCCamera.PIXEL_FORMAT_YUV420SP)
+			|| (srcFormat == UVCCamera.PIXEL_FORMAT_NV21)
+			|| (srcFormat == UVCCamera.PIXEL_FORMAT_I420)
+			|| (srcFormat == UVCCamera.PIXEL_FORMAT_GRAY);
+	}
+
+	/**
+	 * get Y plane as a view of the frame without copying.
+	 * the view shares the memory, so it is valid only while the frame is valid,
+	 * ex. you can not hold the view of the ByteBuffer of IFrameCallback#onFrame after returning.
+	 * @param frame frame from its position
+	 * @param srcFormat UVCCamera#PIXEL_FORMAT_YUV420SP, PIXEL_FORMAT_NV21, PIXEL_FORMAT_I420 or PIXEL_FORMAT_GRAY
+	 * @param width
+	 * @param height
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public static ByteBuffer view(final ByteBuffer frame, final int srcFormat,
+		final int width, final int height) throws IllegalArgumentException {
+
+		if (!hasLumaPlane(srcFormat))
+			throw new IllegalArgumentException("no Y plane:" + srcFormat);
+		if (frame.remaining() < width * height)
+			throw new IllegalArgumentException("frame is too small");
+		final ByteBuffer result = frame.duplicate();
+		result.limit(result.position() + width * height);
+		return result.slice().order(frame.order());
+	}
+
+	/**
+	 * extract Y plane into a FrameBuffer of the pool.
+	 * the pool should be UVCCamera#PIXEL_FORMAT_GRAY and same frame size.
+	 * @param src frame from its position
+	 * @param srcFormat
+	 * @param pool
+	 * @param stride row stride of output, should be equal or larger than width
+	 * @return null if no FrameBuffer is available
+	 * @throws IllegalArgumentException
+	 */
+	public static FrameBuffer extract(final ByteBuffer src, final int srcFormat,
+		final FramePool pool, final int stride) throws IllegalArgumentException {
+
+		final FrameBuffer result = pool.acquire();
+		if (result != null) {
+			try {
+				final int width = result.getWidth(), height = result.getHeight();
+				result.ensureCapacity(stride * height);
+				extract(src, srcFormat, width, height, result.getBuffer(), stride);
+				result.getInfo().setFormat(width, height, UVCCamera.PIXEL_FORMAT_GRAY).stride = stride;
+			} catch (final RuntimeException e) {
+				result.release();
+				throw e;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * extract Y plane.
+	 * data from position of src are read and position of src is not changed.
+	 * dst is written from 0, its position is 0 and limit is stride x height after this call.
+	 * padding bytes of each row are not written.
+	 * @param src
+	 * @param srcFormat
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param stride row stride of output, should be equal or larger than width
+	 * @throws IllegalArgumentException
+	 */
+	public static void extract(final ByteBuffer src, final int srcFormat,
+		final int width, final int height,
+		final ByteBuffer dst, final int stride) throws IllegalArgumentException {
+
+		extract(src, srcFormat, width, height, dst, stride, null);
+	}
+
+	/**
+	 * extract Y plane and calculate luma statistics.
+	 * statistics are accumulated while copying YUYV frames,
+	 * for other pixel formats they are calculated after copying the plane.
+	 * @param src
+	 * @param srcFormat
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param stride row stride of output, should be equal or larger than width
+	 * @param stats null: do not calculate statistics
+	 * @throws IllegalArgumentException
+	 */
+	public static void extract(final ByteBuffer src, final int srcFormat,
+		final int width, final int height,
+		final ByteBuffer dst, final int stride, final LumaStats stats) throws IllegalArgumentException {
+
+		if (!isSupported(srcFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + srcFormat);
+		if (stride < width)
+			throw new IllegalArgumentException("stride should be equal or larger than width");
+		if (dst.capacity() < stride * height)
+			throw new IllegalArgumentException("destination buffer is too small");
+		final int offset = src.position();
+		if (srcFormat == UVCCamera.PIXEL_FORMAT_YUV) {
+			if (src.remaining() < width * height * 2)
+				throw new IllegalArgumentException("source frame is too small");
+			if (stats != null) {
+				stats.begin(width, height);
+			}
+			yuyv2y(src, offset, width, height, dst, stride, stats);
+			if (stats != null) {
+				stats.finish();
+			}
+		} else {
+			if (src.remaining() < width * height)
+				throw new IllegalArgumentException("source frame is too small");
+			final int limit = src.limit();
+			// both branches write from 0 regardless of position/limit of dst
+			dst.clear();
+			try {
+				if (stride == width) {
+					src.limit(offset + width * height);
+					dst.put(src);
+				} else {
+					for (int j = 0; j < height; j++) {
+						dst.position(j * stride);
+						src.limit(offset + (j + 1) * width);
+						src.position(offset + j * width);
+						dst.put(src);
+					}
+				}
+			} finally {
+				src.limit(limit);
+				src.position(offset);
+			}
+			if (stats != null) {
+				stats.compute(src, srcFormat, width, height);
+			}
+		}
+		dst.position(0);
+		dst.limit(stride * height);
+	}
+
+	/**
+	 * copy every other byte, 8 pixels are read as two 64-bit words and written as one
+	 */
+	private static void yuyv2y(final ByteBuffer src, final int offset,
+		final int width, final int height, final ByteBuffer dst, final int stride, final LumaStats stats) {
+
+		final boolean srcLE = src.order() == ByteOrder.LITTLE_ENDIAN;
+		final int s0 = srcLE ? 0 : 56, s2 = srcLE ? 16 : 40, s4 = srcLE ? 32 : 24, s6 = srcLE ? 48 : 8;
+		final boolean dstLE = dst.order() == ByteOrder.LITTLE_ENDIAN;
+		final int d0 = dstLE ? 0 : 56, d1 = dstLE ? 8 : 48, d2 = dstLE ? 16 : 40, d3 = dstLE ? 24 : 32;
+		final int d4 = dstLE ? 32 : 24, d5 = dstLE ? 40 : 16, d6 = dstLE ? 48 : 8, d7 = dstLE ? 56 : 0;
+		final int w8 = width & ~7;
+		for (int j = 0; j < height; j++) {
+			final int s = offset + j * width * 2;
+			final int y = j * stride;
+			final int tile = stats != null ? stats.getTileBase(j) : 0;
+			int x = 0;
+			for ( ; x < w8; x += 8) {
+				final long a = src.getLong(s + x * 2);
+				final long b = src.getLong(s + x * 2 + 8);
+				final long y0 = (a >>> s0) & 0xff, y1 = (a >>> s2) & 0xff, y2 = (a >>> s4) & 0xff, y3 = (a >>> s6) & 0xff;
+				final long y4 = (b >>> s0) & 0xff, y5 = (b >>> s2) & 0xff, y6 = (b >>> s4) & 0xff, y7 = (b >>> s6) & 0xff;
+				dst.putLong(y + x, (y0 << d0) | (y1 << d1) | (y2 << d2) | (y3 << d3)
+					| (y4 << d4) | (y5 << d5) | (y6 << d6) | (y7 << d7));
+				if (stats != null) {
+					stats.add(tile, x, (int)y0);
+					stats.add(tile, x + 1, (int)y1);
+					stats.add(tile, x + 2, (int)y2);
+					stats.add(tile, x + 3, (int)y3);
+					stats.add(tile, x + 4, (int)y4);
+					stats.add(tile, x + 5, (int)y5);
+					stats.add(tile, x + 6, (int)y6);
+					stats.add(tile, x + 7, (int)y7);
+				}
+			}
+			for ( ; x < width; x++) {
+				final byte v = src.get(s + x * 2);
+				dst.put(y + x, v);
+				if (stats != null) {
+					stats.add(tile, x, v & 0xff);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-level luma(UVCCamera#PIXEL_FORMAT_GRAY) pyramid of a frame that is built by LumaPyramidStage.
+ * Level 0 is full resolution and each level is half width and half height of the previous level.
+ * This is shared read-only by the consumers with reference counting.
+ */
+public final class LumaPyramid {
+	private final LumaPyramidStage mStage;
+	private final AtomicInteger mRefCount = new AtomicInteger();
+	private final FrameBuffer[] mLevels;
+	/**
+	 * read only views of the levels, re-created only when the buffer of the level is re-allocated
+	 */
+	private final ByteBuffer[] mViews;
+	private final ByteBuffer[] mViewSources;
+	private int mLevelCount;
+
+	/*package*/LumaPyramid(final LumaPyramidStage stage, final int maxLevels) {
+		mStage = stage;
+		mLevels = new FrameBuffer[maxLevels];
+		mViews = new ByteBuffer[maxLevels];
+		mViewSources = new ByteBuffer[maxLevels];
+	}
+
+	/**
+	 * @return number of levels of this pyramid
+	 */
+	public int getLevelCount() {
+		return mLevelCount;
+	}
+
+	/**
+	 * get luma plane of the level as read only buffer, position is 0 and limit is width x height.
+	 * the buffer is shared by the consumers, use absolute get or ByteBuffer#duplicate
+	 * when you read it on multiple threads.
+	 * @param level
+	 * @return
+	 */
+	public ByteBuffer getLevel(final int level) {
+		final ByteBuffer buffer = mLevels[checkLevel(level)].getBuffer();
+		if (mViewSources[level] != buffer) {
+			mViews[level] = buffer.asReadOnlyBuffer();
+			mViewSources[level] = buffer;
+		}
+		final ByteBuffer result = mViews[level];
+		result.clear();
+		result.limit(getWidth(level) * getHeight(level));
+		return result;
+	}
+
+	public int getWidth(final int level) {
+		return mLevels[checkLevel(level)].getWidth();
+	}
+
+	public int getHeight(final int level) {
+		return mLevels[checkLevel(level)].getHeight();
+	}
+
+	/**
+	 * get metadata of the source frame
+	 * @return
+	 */
+	public FrameInfo getInfo() {
+		return mLevels[0].getInfo();
+	}
+
+	/**
+	 * get luma statistics of the source frame
+	 * @return null if statistics were not calculated
+	 */
+	public LumaStats getLumaStats() {
+		return mLevels[0].getLumaStats();
+	}
+
+	/**
+	 * increment reference count, you should call #release for each call of this method.
+	 * @return this
+	 */
+	public LumaPyramid retain() {
+		if (mRefCount.getAndIncrement() <= 0) {
+			mRefCount.decrementAndGet();
+			throw new IllegalStateException("already released");
+		}
+		return this;
+	}
+
+	/**
+	 * decrement reference count, buffers of all levels are returned to the pools when it becomes zero
+	 */
+	public void release() {
+		final int count = mRefCount.decrementAndGet();
+		if (count == 0) {
+			for (int i = 0; i < mLevelCount; i++) {
+				mLevels[i].release();
+				mLevels[i] = null;
+			}
+			mLevelCount = 0;
+			mStage.recycle(this);
+		} else if (count < 0) {
+			mRefCount.set(0);
+			throw new IllegalStateException("already released");
+		}
+	}
+
+	/*package*/void obtain() {
+		mRefCount.set(1);
+	}
+
+	/*package*/void setLevel(final int level, final FrameBuffer frame) {
+		mLevels[level] = frame;
+		mLevelCount = level + 1;
+	}
+
+	/*package*/FrameBuffer getFrame(final int level) {
+		return mLevels[checkLevel(level)];
+	}
+
+	private int checkLevel(final int level) {
+		if ((level < 0) || (level >= mLevelCount))
+			throw new IndexOutOfBoundsException("level=" + level + ",levels=" + mLevelCount);
+		return level;
+	}
+}
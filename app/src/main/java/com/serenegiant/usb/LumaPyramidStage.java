@@ -0,0 +1,299 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline stage that builds luma pyramid once for each frame and shares it with all consumers,
+ * so CPU time scales with frames rather than with the number of consumers.
+ * Subscribe this to FrameHub with UVCCamera#PIXEL_FORMAT_GRAY, then level 0 is the FrameBuffer
+ * from FrameHub itself(no copy) and other levels are 2x2 box filtered into pooled buffers.
+ * You can also pass frames with #build by yourself.
+ */
+public class LumaPyramidStage implements IFrameBufferCallback {
+	private static final boolean DEBUG = false;	// TODO set false when releasing
+	private static final String TAG = LumaPyramidStage.class.getSimpleName();
+
+	public static final int DEFAULT_LEVELS = 3;
+	public static final int DEFAULT_MAX_PYRAMIDS = 4;
+	private static final ILumaPyramidCallback[] EMPTY = new ILumaPyramidCallback[0];
+	/**
+	 * metadata of the frames that came without FrameInfo
+	 */
+	private static final FrameInfo EMPTY_INFO = new FrameInfo();
+
+	private final Object mSync = new Object();
+	private final int mMaxLevels;
+	private final int mMaxPyramids;
+	private final ArrayBlockingQueue<LumaPyramid> mFreePyramids;
+	/**
+	 * FramePool for each level, level 0 is only used when #build is called with ByteBuffer
+	 */
+	private final FramePool[] mPools;
+	private final AtomicLong mDroppedFrames = new AtomicLong();
+	private volatile ILumaPyramidCallback[] mCallbacks = EMPTY;
+
+	/**
+	 * constructor with DEFAULT_LEVELS and DEFAULT_MAX_PYRAMIDS
+	 */
+	public LumaPyramidStage() {
+		this(DEFAULT_LEVELS, DEFAULT_MAX_PYRAMIDS);
+	}
+
+	/**
+	 * constructor
+	 * @param levels number of levels including full resolution level
+	 * @param maxPyramids number of pyramids that can be used at the same time
+	 */
+	public LumaPyramidStage(final int levels, final int maxPyramids) {
+		if ((levels <= 0) || (maxPyramids <= 0))
+			throw new IllegalArgumentException("levels and maxPyramids should be positive");
+		mMaxLevels = levels;
+		mMaxPyramids = maxPyramids;
+		mPools = new FramePool[levels];
+		mFreePyramids = new ArrayBlockingQueue<LumaPyramid>(maxPyramids);
+		for (int i = 0; i < maxPyramids; i++) {
+			mFreePyramids.offer(new LumaPyramid(this, levels));
+		}
+	}
+
+	public int getMaxLevels() {
+		return mMaxLevels;
+	}
+
+	/**
+	 * @return number of frames that were dropped because all pyramids or buffers were in use
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames.get();
+	}
+
+	public void addCallback(final ILumaPyramidCallback callback) {
+		synchronized (mSync) {
+			final ILumaPyramidCallback[] callbacks = new ILumaPyramidCallback[mCallbacks.length + 1];
+			System.arraycopy(mCallbacks, 0, callbacks, 0, mCallbacks.length);
+			callbacks[callbacks.length - 1] = callback;
+			mCallbacks = callbacks;
+		}
+	}
+
+	public void removeCallback(final ILumaPyramidCallback callback) {
+		synchronized (mSync) {
+			final ILumaPyramidCallback[] current = mCallbacks;
+			final int n = current.length;
+			for (int i = 0; i < n; i++) {
+				if (current[i] == callback) {
+					final ILumaPyramidCallback[] callbacks = new ILumaPyramidCallback[n - 1];
+					System.arraycopy(current, 0, callbacks, 0, i);
+					System.arraycopy(current, i + 1, callbacks, i, n - i - 1);
+					mCallbacks = callbacks;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * IFrameBufferCallback
+	 * build pyramid and pass it to all callbacks
+	 * @param frame
+	 */
+	@Override
+	public void onFrame(final FrameBuffer frame) {
+		try {
+			final LumaPyramid pyramid = build(frame);
+			if (pyramid != null) {
+				try {
+					dispatch(pyramid);
+				} finally {
+					pyramid.release();
+				}
+			}
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * pass the pyramid to all callbacks
+	 * @param pyramid
+	 */
+	public void dispatch(final LumaPyramid pyramid) {
+		for (final ILumaPyramidCallback callback: mCallbacks) {
+			try {
+				callback.onPyramid(pyramid);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * build pyramid from the frame, the frame is retained as level 0 when it is PIXEL_FORMAT_GRAY
+	 * or its luma view is used when it has Y plane.
+	 * @param frame
+	 * @return null if no pyramid or buffer is available, you should call LumaPyramid#release
+	 * @throws IllegalArgumentException
+	 */
+	public LumaPyramid build(final FrameBuffer frame) throws IllegalArgumentException {
+		final FrameBuffer level0;
+		if (frame.getPixelFormat() == UVCCamera.PIXEL_FORMAT_GRAY) {
+			level0 = frame;
+		} else if (LumaExtractor.hasLumaPlane(frame.getPixelFormat())) {
+			level0 = frame.getLumaView();
+		} else {
+			return build(frame.getBuffer(), frame.getPixelFormat(), frame.getWidth(), frame.getHeight(), frame.getInfo());
+		}
+		final LumaPyramid pyramid = obtainPyramid();
+		if (pyramid != null) {
+			pyramid.setLevel(0, level0.retain());
+			buildLevels(pyramid);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * build pyramid from the frame, Y plane is copied into pooled buffer as level 0.
+	 * metadata of the pyramid has only the frame size and pixel format,
+	 * use #build(ByteBuffer, int, int, int, FrameInfo) to pass sequence number, capture time etc.
+	 * @param frame
+	 * @param pixelFormat
+	 * @param width
+	 * @param height
+	 * @return null if no pyramid or buffer is available, you should call LumaPyramid#release
+	 * @throws IllegalArgumentException
+	 */
+	public LumaPyramid build(final ByteBuffer frame, final int pixelFormat,
+		final int width, final int height) throws IllegalArgumentException {
+
+		return build(frame, pixelFormat, width, height, null);
+	}
+
+	/**
+	 * build pyramid from the frame, Y plane is copied into pooled buffer as level 0
+	 * @param frame
+	 * @param pixelFormat
+	 * @param width
+	 * @param height
+	 * @param info metadata of the frame, copied into all levels, null: only the frame size and pixel format are set
+	 * @return null if no pyramid or buffer is available, you should call LumaPyramid#release
+	 * @throws IllegalArgumentException
+	 */
+	public LumaPyramid build(final ByteBuffer frame, final int pixelFormat,
+		final int width, final int height, final FrameInfo info) throws IllegalArgumentException {
+
+		final LumaPyramid pyramid = obtainPyramid();
+		if (pyramid != null) {
+			final FrameBuffer level0 = getPool(0, width, height).acquire();
+			if (level0 == null) {
+				pyramid.release();
+				mDroppedFrames.incrementAndGet();
+				return null;
+			}
+			// buffers from the pool still have metadata of the previous frame
+			level0.getInfo().set(info != null ? info : EMPTY_INFO)
+				.setFormat(width, height, UVCCamera.PIXEL_FORMAT_GRAY);
+			pyramid.setLevel(0, level0);
+			try {
+				LumaExtractor.extract(frame, pixelFormat, width, height, level0.getBuffer(), width);
+			} catch (final RuntimeException e) {
+				pyramid.release();
+				throw e;
+			}
+			buildLevels(pyramid);
+		}
+		return pyramid;
+	}
+
+	private LumaPyramid obtainPyramid() {
+		final LumaPyramid result = mFreePyramids.poll();
+		if (result != null) {
+			result.obtain();
+		} else {
+			mDroppedFrames.incrementAndGet();
+		}
+		return result;
+	}
+
+	/*package*/void recycle(final LumaPyramid pyramid) {
+		mFreePyramids.offer(pyramid);
+	}
+
+	private void buildLevels(final LumaPyramid pyramid) {
+		final FrameInfo info = pyramid.getInfo();
+		for (int level = 1; level < mMaxLevels; level++) {
+			final FrameBuffer src = pyramid.getFrame(level - 1);
+			final int width = src.getWidth() / 2, height = src.getHeight() / 2;
+			if ((width <= 0) || (height <= 0)) break;
+			final FrameBuffer dst = getPool(level, width, height).acquire();
+			if (dst == null) {
+				// use levels that are already built
+				if (DEBUG) Log.v(TAG, "no buffer for level " + level);
+				break;
+			}
+			downsample(src.getBuffer(), src.getWidth(), dst.getBuffer(), width, height);
+			dst.getInfo().set(info).setFormat(width, height, UVCCamera.PIXEL_FORMAT_GRAY);
+			pyramid.setLevel(level, dst);
+		}
+	}
+
+	private FramePool getPool(final int level, final int width, final int height) {
+		synchronized (mSync) {
+			FramePool pool = mPools[level];
+			if (pool == null) {
+				pool = mPools[level] = new FramePool(width, height, UVCCamera.PIXEL_FORMAT_GRAY, mMaxPyramids);
+			} else if ((pool.getWidth() != width) || (pool.getHeight() != height)) {
+				pool.resize(width, height, UVCCamera.PIXEL_FORMAT_GRAY);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * 2x2 box filter, last column/row of odd size is ignored
+	 */
+	private static void downsample(final ByteBuffer src, final int srcWidth,
+		final ByteBuffer dst, final int width, final int height) {
+
+		for (int j = 0; j < height; j++) {
+			int s0 = j * 2 * srcWidth;
+			int s1 = s0 + srcWidth;
+			int d = j * width;
+			for (int i = 0; i < width; i++, s0 += 2, s1 += 2, d++) {
+				final int sum = (src.get(s0) & 0xff) + (src.get(s0 + 1) & 0xff)
+					+ (src.get(s1) & 0xff) + (src.get(s1 + 1) & 0xff);
+				dst.put(d, (byte)((sum + 2) >> 2));
+			}
+		}
+		dst.position(0);
+		dst.limit(width * height);
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-frame luma statistics for exposure monitoring, clipping alarms and software AE:
+ * histogram, mean, min/max, per-tile means and number of clipped pixels.
+ * Conversion kernels(YuvConverter, LumaExtractor) accumulate these while they are reading
+ * the pixels, so they don't need their own pass over the frame.
+ * Only histogram and tile sums are accumulated for each pixel,
+ * other values are derived from the histogram by #finish.
+ */
+public class LumaStats {
+	public static final int DEFAULT_LOW_CLIP = 2;
+	public static final int DEFAULT_HIGH_CLIP = 253;
+
+	private final int mTileColumns, mTileRows;
+	private final int mLowClip, mHighClip;
+	private final int[] mHistogram = new int[256];
+	private final long[] mTileSums;
+	private final int[] mTileCounts;
+	/**
+	 * tile column of each x position
+	 */
+	private int[] mColTiles = new int[0];
+	private int mWidth, mHeight;
+	private long mSum;
+	private int mCount, mMin, mMax, mClippedLow, mClippedHigh;
+
+	/**
+	 * constructor with default clipping thresholds
+	 * @param tileColumns
+	 * @param tileRows
+	 */
+	public LumaStats(final int tileColumns, final int tileRows) {
+		this(tileColumns, tileRows, DEFAULT_LOW_CLIP, DEFAULT_HIGH_CLIP);
+	}
+
+	/**
+	 * constructor
+	 * @param tileColumns number of horizontal tiles
+	 * @param tileRows number of vertical tiles
+	 * @param lowClip luma equal or less than this is counted as clipped low(black)
+	 * @param highClip luma equal or larger than this is counted as clipped high(white)
+	 */
+	public LumaStats(final int tileColumns, final int tileRows, final int lowClip, final int highClip) {
+		if ((tileColumns <= 0) || (tileRows <= 0))
+			throw new IllegalArgumentException("number of tiles should be positive");
+		mTileColumns = tileColumns;
+		mTileRows = tileRows;
+		mLowClip = lowClip;
+		mHighClip = highClip;
+		mTileSums = new long[tileColumns * tileRows];
+		mTileCounts = new int[tileColumns * tileRows];
+	}
+
+	/**
+	 * copy constructor
+	 * @param src
+	 */
+	public LumaStats(final LumaStats src) {
+		this(src.mTileColumns, src.mTileRows, src.mLowClip, src.mHighClip);
+		set(src);
+	}
+
+	/**
+	 * copy results
+	 * @param src should have same number of tiles
+	 */
+	public void set(final LumaStats src) {
+		if (!isSameLayout(src))
+			throw new IllegalArgumentException("different tile layout");
+		System.arraycopy(src.mHistogram, 0, mHistogram, 0, 256);
+		System.arraycopy(src.mTileSums, 0, mTileSums, 0, mTileSums.length);
+		System.arraycopy(src.mTileCounts, 0, mTileCounts, 0, mTileCounts.length);
+		mWidth = src.mWidth;
+		mHeight = src.mHeight;
+		mSum = src.mSum;
+		mCount = src.mCount;
+		mMin = src.mMin;
+		mMax = src.mMax;
+		mClippedLow = src.mClippedLow;
+		mClippedHigh = src.mClippedHigh;
+	}
+
+	/**
+	 * @param other
+	 * @return true if the other has same number of tiles and clipping thresholds
+	 */
+	public boolean isSameLayout(final LumaStats other) {
+		return (mTileColumns == other.mTileColumns) && (mTileRows == other.mTileRows)
+			&& (mLowClip == other.mLowClip) && (mHighClip == other.mHighClip);
+	}
+
+	/**
+	 * calculate statistics in its own pass over Y values of the frame
+	 * @param frame from its position, position is not changed
+	 * @param pixelFormat UVCCamera#PIXEL_FORMAT_YUV, PIXEL_FORMAT_YUV420SP, PIXEL_FORMAT_NV21,
+	 * 			PIXEL_FORMAT_I420 or PIXEL_FORMAT_GRAY
+	 * @param width
+	 * @param height
+	 * @throws IllegalArgumentException
+	 */
+	public void compute(final ByteBuffer frame, final int pixelFormat,
+		final int width, final int height) throws IllegalArgumentException {
+
+		if (!LumaExtractor.isSupported(pixelFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + pixelFormat);
+		final int stride = pixelFormat == UVCCamera.PIXEL_FORMAT_YUV ? 2 : 1;
+		if (frame.remaining() < width * height * stride)
+			throw new IllegalArgumentException("frame is too small");
+		begin(width, height);
+		final int offset = frame.position();
+		for (int j = 0; j < height; j++) {
+			final int base = getTileBase(j);
+			int p = offset + j * width * stride;
+			for (int i = 0; i < width; i++, p += stride) {
+				add(base, i, frame.get(p) & 0xff);
+			}
+		}
+		finish();
+	}
+
+	public int getTileColumns() {
+		return mTileColumns;
+	}
+
+	public int getTileRows() {
+		return mTileRows;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return histogram of 256 bins, you should not modify this
+	 */
+	public int[] getHistogram() {
+		return mHistogram;
+	}
+
+	public int getPixelCount() {
+		return mCount;
+	}
+
+	public float getMean() {
+		return mCount > 0 ? mSum / (float)mCount : 0;
+	}
+
+	public int getMin() {
+		return mMin;
+	}
+
+	public int getMax() {
+		return mMax;
+	}
+
+	/**
+	 * @return number of pixels that are equal or less than the low clipping threshold
+	 */
+	public int getClippedLow() {
+		return mClippedLow;
+	}
+
+	/**
+	 * @return number of pixels that are equal or larger than the high clipping threshold
+	 */
+	public int getClippedHigh() {
+		return mClippedHigh;
+	}
+
+	/**
+	 * @param column
+	 * @param row
+	 * @return mean luma of the tile
+	 */
+	public float getTileMean(final int column, final int row) {
+		final int ix = row * mTileColumns + column;
+		return mTileCounts[ix] > 0 ? mTileSums[ix] / (float)mTileCounts[ix] : 0;
+	}
+
+	/**
+	 * reset and prepare for the frame size
+	 * @param width
+	 * @param height
+	 */
+	/*package*/void begin(final int width, final int height) {
+		if ((width != mWidth) || (mColTiles.length != width)) {
+			mColTiles = new int[width];
+			for (int i = 0; i < width; i++) {
+				mColTiles[i] = (int)((long)i * mTileColumns / width);
+			}
+		}
+		mWidth = width;
+		mHeight = height;
+		Arrays.fill(mHistogram, 0);
+		Arrays.fill(mTileSums, 0);
+	}
+
+	/**
+	 * @param row y position
+	 * @return base index of tiles for the row, pass this to #add
+	 */
+	/*package*/int getTileBase(final int row) {
+		return (int)((long)row * mTileRows / mHeight) * mTileColumns;
+	}
+
+	/**
+	 * accumulate a pixel
+	 * @param tileBase value from #getTileBase
+	 * @param x
+	 * @param luma
+	 */
+	/*package*/void add(final int tileBase, final int x, final int luma) {
+		mHistogram[luma]++;
+		mTileSums[tileBase + mColTiles[x]] += luma;
+	}
+
+	/**
+	 * add values that are accumulated by other instance(ex. on other thread) for the same frame
+	 * @param other
+	 */
+	/*package*/void merge(final LumaStats other) {
+		for (int i = 0; i < 256; i++) {
+			mHistogram[i] += other.mHistogram[i];
+		}
+		for (int i = 0; i < mTileSums.length; i++) {
+			mTileSums[i] += other.mTileSums[i];
+		}
+	}
+
+	/**
+	 * calculate other values from the histogram and tile sums
+	 */
+	/*package*/void finish() {
+		long sum = 0;
+		int count = 0, min = -1, max = 0, low = 0, high = 0;
+		for (int i = 0; i < 256; i++) {
+			final int n = mHistogram[i];
+			if (n != 0) {
+				if (min < 0) min = i;
+				max = i;
+				count += n;
+				sum += (long)n * i;
+				if (i <= mLowClip) low += n;
+				if (i >= mHighClip) high += n;
+			}
+		}
+		mSum = sum;
+		mCount = count;
+		mMin = Math.max(min, 0);
+		mMax = max;
+		mClippedLow = low;
+		mClippedHigh = high;
+		// pixel counts of the tiles only depend on the frame size
+		for (int r = 0; r < mTileRows; r++) {
+			final int rows = (int)(((long)(r + 1) * mHeight + mTileRows - 1) / mTileRows
+				- ((long)r * mHeight + mTileRows - 1) / mTileRows);
+			for (int c = 0; c < mTileColumns; c++) {
+				final int cols = (int)(((long)(c + 1) * mWidth + mTileColumns - 1) / mTileColumns
+					- ((long)c * mWidth + mTileColumns - 1) / mTileColumns);
+				mTileCounts[r * mTileColumns + c] = rows * cols;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "LumaStats(%dx%d,mean=%.1f,min=%d,max=%d,clipped=%d/%d)",
+			mWidth, mHeight, getMean(), mMin, mMax, mClippedLow, mClippedHigh);
+	}
+}
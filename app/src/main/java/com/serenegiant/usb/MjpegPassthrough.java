@@ -0,0 +1,346 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers compressed MJPEG frames as standalone JPEG files without decoding them,
+ * so they can be recorded or streamed as is.
+ * Many UVC cameras omit DHT(Huffman table) segment and expect the decoder to use
+ * the standard tables of JPEG spec(ITU-T T.81 Annex K.3). This class inserts them
+ * just before SOS when the frame does not have DHT, other bytes are never changed.
+ * Set this with UVCCamera#setFrameCallback and UVCCamera#PIXEL_FORMAT_RAW(see UVCCamera#setMjpegPassthrough).
+ * Frames that are not JPEG (ex. the native library already decoded them) are passed to the callback as is.
+ */
+public final class MjpegPassthrough implements IFrameCallback {
+
+	private static final int MARKER_SOI = 0xd8;
+	private static final int MARKER_SOS = 0xda;
+	private static final int MARKER_DHT = 0xc4;
+	private static final int MARKER_TEM = 0x01;
+	private static final int MARKER_RST0 = 0xd0;
+	private static final int MARKER_RST7 = 0xd7;
+
+	// standard Huffman tables, ITU-T T.81 Annex K.3
+	/*package*/static final byte[] STD_DC_LUMINANCE_BITS = bytes(
+		0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0);
+	/*package*/static final byte[] STD_DC_LUMINANCE_VALUES = bytes(
+		0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+	/*package*/static final byte[] STD_DC_CHROMINANCE_BITS = bytes(
+		0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0);
+	/*package*/static final byte[] STD_DC_CHROMINANCE_VALUES = bytes(
+		0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+	/*package*/static final byte[] STD_AC_LUMINANCE_BITS = bytes(
+		0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d);
+	/*package*/static final byte[] STD_AC_LUMINANCE_VALUES = bytes(
+		0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+		0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+		0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+		0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+		0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+		0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+		0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+		0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+		0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+		0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+		0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+		0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+		0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+		0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+		0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+		0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+		0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+		0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+		0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+		0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+		0xf9, 0xfa);
+	/*package*/static final byte[] STD_AC_CHROMINANCE_BITS = bytes(
+		0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77);
+	/*package*/static final byte[] STD_AC_CHROMINANCE_VALUES = bytes(
+		0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+		0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+		0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+		0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+		0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+		0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+		0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+		0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+		0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+		0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+		0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+		0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+		0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+		0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+		0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+		0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+		0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+		0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+		0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+		0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+		0xf9, 0xfa);
+
+	/**
+	 * DHT segment that has all of the standard Huffman tables, including its marker
+	 */
+	private static final byte[] STD_DHT = createStandardDht();
+
+	private final IFrameCallback mCallback;
+	private final AtomicLong mJpegFrames = new AtomicLong();
+	private final AtomicLong mRepairedFrames = new AtomicLong();
+	private final AtomicLong mOtherFrames = new AtomicLong();
+	/**
+	 * work buffer for the frames that need DHT, only accessed from the frame callback thread
+	 */
+	private ByteBuffer mWork;
+
+	/**
+	 * @param callback receives the frames that are valid standalone JPEG files
+	 */
+	public MjpegPassthrough(final IFrameCallback callback) {
+		if (callback == null)
+			throw new NullPointerException("callback should not be null");
+		mCallback = callback;
+	}
+
+	/**
+	 * IFrameCallback
+	 * the frame is passed as is if it has DHT, otherwise it is copied into
+	 * the work buffer with the standard DHT.
+	 * @param frame
+	 */
+	@Override
+	public void onFrame(final ByteBuffer frame) {
+		final int sos = isJpeg(frame) ? findMissingDht(frame) : -1;
+		if (sos > 0) {
+			final int bytes = frame.remaining() + STD_DHT.length;
+			if ((mWork == null) || (mWork.capacity() < bytes)) {
+				mWork = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+			}
+			insertDht(frame, sos, mWork);
+			mJpegFrames.incrementAndGet();
+			mRepairedFrames.incrementAndGet();
+			mCallback.onFrame(mWork);
+		} else {
+			if (sos == 0) {
+				mJpegFrames.incrementAndGet();
+			} else {
+				mOtherFrames.incrementAndGet();
+			}
+			mCallback.onFrame(frame);
+		}
+	}
+
+	/**
+	 * @return number of JPEG frames that were passed to the callback
+	 */
+	public long getJpegFrames() {
+		return mJpegFrames.get();
+	}
+
+	/**
+	 * @return number of JPEG frames that the standard DHT was inserted
+	 */
+	public long getRepairedFrames() {
+		return mRepairedFrames.get();
+	}
+
+	/**
+	 * @return number of frames that were passed as is because they are not JPEG or their headers are broken
+	 */
+	public long getOtherFrames() {
+		return mOtherFrames.get();
+	}
+
+	/**
+	 * @param frame
+	 * @return true if the data from position of the frame starts with SOI marker
+	 */
+	public static boolean isJpeg(final ByteBuffer frame) {
+		final int pos = frame.position();
+		return (frame.remaining() >= 4)
+			&& ((frame.get(pos) & 0xff) == 0xff)
+			&& ((frame.get(pos + 1) & 0xff) == MARKER_SOI);
+	}
+
+	/**
+	 * @param frame JPEG frame
+	 * @return true if the frame has DHT segment before SOS
+	 * @throws IllegalArgumentException the frame is not JPEG or its header is broken
+	 */
+	public static boolean hasHuffmanTables(final ByteBuffer frame) throws IllegalArgumentException {
+		if (!isJpeg(frame))
+			throw new IllegalArgumentException("not JPEG");
+		final int sos = findMissingDht(frame);
+		if (sos < 0)
+			throw new IllegalArgumentException("broken JPEG header");
+		return sos == 0;
+	}
+
+	/**
+	 * @param frame JPEG frame
+	 * @return number of bytes that #repair writes
+	 * @throws IllegalArgumentException the frame is not JPEG or its header is broken
+	 */
+	public static int getRepairedBytes(final ByteBuffer frame) throws IllegalArgumentException {
+		return frame.remaining() + (hasHuffmanTables(frame) ? 0 : STD_DHT.length);
+	}
+
+	/**
+	 * copy JPEG frame and insert the standard DHT before SOS if the frame does not have DHT.
+	 * data from position of src are read and position of src is not changed.
+	 * dst is written from 0 and flipped so its position is 0 and limit is the data length.
+	 * @param src JPEG frame
+	 * @param dst should have #getRepairedBytes bytes at least
+	 * @return true if DHT was inserted
+	 * @throws IllegalArgumentException the frame is not JPEG, its header is broken or dst is too small
+	 */
+	public static boolean repair(final ByteBuffer src, final ByteBuffer dst) throws IllegalArgumentException {
+		final boolean hasDht = hasHuffmanTables(src);
+		final int bytes = src.remaining() + (hasDht ? 0 : STD_DHT.length);
+		if (dst.capacity() < bytes)
+			throw new IllegalArgumentException("dst is too small:" + dst.capacity() + "<" + bytes);
+		if (hasDht) {
+			final int pos = src.position();
+			dst.clear();
+			dst.put(src);
+			dst.flip();
+			src.position(pos);
+		} else {
+			insertDht(src, findMissingDht(src), dst);
+		}
+		return !hasDht;
+	}
+
+	/**
+	 * copy JPEG frame into FrameBuffer that came from the pool, inserting DHT if required.
+	 * FrameInfo of the result is not set.
+	 * @param src JPEG frame
+	 * @param pool
+	 * @return null if all FrameBuffers are in use
+	 * @throws IllegalArgumentException the frame is not JPEG or its header is broken
+	 */
+	public static FrameBuffer repair(final ByteBuffer src, final FramePool pool) throws IllegalArgumentException {
+		final int bytes = getRepairedBytes(src);
+		final FrameBuffer result = pool.acquire();
+		if (result != null) {
+			result.ensureCapacity(bytes);
+			repair(src, result.getBuffer());
+		}
+		return result;
+	}
+
+	/**
+	 * walk the marker segments until SOS
+	 * @param frame JPEG frame, SOI is already checked
+	 * @return offset of SOS marker from position of the frame if DHT was not found,
+	 * 			0 if DHT was found, -1 if the header is broken
+	 */
+	private static int findMissingDht(final ByteBuffer frame) {
+		final int pos = frame.position();
+		final int limit = frame.limit();
+		int i = pos + 2;
+		boolean hasDht = false;
+		while (i + 1 < limit) {
+			if ((frame.get(i) & 0xff) != 0xff) return -1;
+			final int marker = frame.get(i + 1) & 0xff;
+			if (marker == 0xff) {
+				// fill byte
+				i++;
+				continue;
+			}
+			if (marker == MARKER_SOS) {
+				return hasDht ? 0 : i - pos;
+			}
+			if ((marker == MARKER_TEM) || ((marker >= MARKER_RST0) && (marker <= MARKER_RST7))) {
+				// markers without length
+				i += 2;
+				continue;
+			}
+			if (i + 3 >= limit) return -1;
+			final int length = ((frame.get(i + 2) & 0xff) << 8) | (frame.get(i + 3) & 0xff);
+			if (length < 2) return -1;
+			hasDht |= marker == MARKER_DHT;
+			i += 2 + length;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param src JPEG frame
+	 * @param sos offset of SOS marker from position of src
+	 * @param dst
+	 */
+	private static void insertDht(final ByteBuffer src, final int sos, final ByteBuffer dst) {
+		final int pos = src.position();
+		final int limit = src.limit();
+		dst.clear();
+		src.limit(pos + sos);
+		dst.put(src);
+		dst.put(STD_DHT);
+		src.limit(limit);
+		dst.put(src);
+		dst.flip();
+		src.position(pos);
+	}
+
+	private static byte[] createStandardDht() {
+		final byte[][] tables = {
+			STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES,
+			STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES,
+			STD_DC_CHROMINANCE_BITS, STD_DC_CHROMINANCE_VALUES,
+			STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES,
+		};
+		// table class(DC=0, AC=1) << 4 | table id
+		final int[] ids = { 0x00, 0x10, 0x01, 0x11 };
+		int length = 2;
+		for (int i = 0; i < tables.length; i += 2) {
+			length += 1 + tables[i].length + tables[i + 1].length;
+		}
+		final byte[] result = new byte[length + 2];
+		result[0] = (byte)0xff;
+		result[1] = (byte)MARKER_DHT;
+		result[2] = (byte)(length >> 8);
+		result[3] = (byte)length;
+		int d = 4;
+		for (int i = 0; i < tables.length; i += 2) {
+			result[d++] = (byte)ids[i / 2];
+			System.arraycopy(tables[i], 0, result, d, tables[i].length);
+			d += tables[i].length;
+			System.arraycopy(tables[i + 1], 0, result, d, tables[i + 1].length);
+			d += tables[i + 1].length;
+		}
+		return result;
+	}
+
+	private static byte[] bytes(final int... values) {
+		final byte[] result = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (byte)values[i];
+		}
+		return result;
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Integrity check of compressed MJPEG frames before decoding or storing them.
+ * Frames that are truncated or corrupted by packet loss of isochronous transfer are detected
+ * in one pass over the frame without decoding: SOI/EOI markers, marker segment lengths,
+ * frame size in SOF, restart marker sequence in the entropy coded data and the frame length
+ * that is expected from the frame size. Results are counted so you can get the corruption rate.
+ * Each UVCCamera has its own instance, see UVCCamera#getMjpegScanner.
+ */
+public class MjpegScanner {
+	public static final int RESULT_OK = 0;
+	/**
+	 * the frame is not JPEG but its length is same as YUYV frame, it was already decoded by native side
+	 */
+	public static final int RESULT_NOT_JPEG = 1;
+	public static final int ERROR_NO_SOI = 2;
+	/**
+	 * unexpected marker or broken length of marker segment
+	 */
+	public static final int ERROR_BAD_SEGMENT = 3;
+	/**
+	 * frame size in SOF is different from the expected size
+	 */
+	public static final int ERROR_SIZE_MISMATCH = 4;
+	/**
+	 * unexpected marker, restart markers out of order or wrong number of restart intervals
+	 * in the entropy coded data
+	 */
+	public static final int ERROR_BAD_SCAN = 5;
+	/**
+	 * the frame ended before EOI
+	 */
+	public static final int ERROR_TRUNCATED = 6;
+	public static final int ERROR_TOO_SMALL = 7;
+	public static final int ERROR_TOO_LARGE = 8;
+	private static final int NUM_RESULTS = ERROR_TOO_LARGE + 1;
+	private static final String[] RESULT_NAMES = {
+		"ok", "notJpeg", "noSoi", "badSegment", "sizeMismatch", "badScan", "truncated", "tooSmall", "tooLarge",
+	};
+
+	private static final int MARKER_SOI = 0xd8;
+	private static final int MARKER_EOI = 0xd9;
+	private static final int MARKER_SOS = 0xda;
+	private static final int MARKER_DRI = 0xdd;
+	private static final int MARKER_DHT = 0xc4;
+	private static final int MARKER_JPG = 0xc8;
+	private static final int MARKER_DAC = 0xcc;
+	private static final int MARKER_TEM = 0x01;
+	private static final int MARKER_RST0 = 0xd0;
+	private static final int MARKER_RST7 = 0xd7;
+	/**
+	 * minimum frame length is width * height / MIN_BYTES_DIVISOR,
+	 * a black 4:2:0 frame with the standard Huffman tables is about width * height / 64 bytes
+	 */
+	private static final int MIN_BYTES_DIVISOR = 256;
+
+	private final AtomicLong[] mCounts = new AtomicLong[NUM_RESULTS];
+	private volatile int mWidth, mHeight;
+	private volatile int mMinBytes, mMaxBytes;
+
+	/**
+	 * constructor, frame size in SOF and the frame length are not checked until #setSize
+	 */
+	public MjpegScanner() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param width expected frame width, 0: do not check
+	 * @param height expected frame height, 0: do not check
+	 */
+	public MjpegScanner(final int width, final int height) {
+		for (int i = 0; i < NUM_RESULTS; i++) {
+			mCounts[i] = new AtomicLong();
+		}
+		setSize(width, height);
+	}
+
+	/**
+	 * set expected frame size, this also resets the limits of the frame length to the default values,
+	 * see #setSizeLimits
+	 * @param size
+	 */
+	public void setSize(final Size size) {
+		setSize(size.width, size.height);
+	}
+
+	/**
+	 * set expected frame size, this also resets the limits of the frame length to the default values,
+	 * see #setSizeLimits
+	 * @param width 0: do not check
+	 * @param height 0: do not check
+	 */
+	public synchronized void setSize(final int width, final int height) {
+		mWidth = width;
+		mHeight = height;
+		mMinBytes = width * height / MIN_BYTES_DIVISOR;
+		mMaxBytes = (width > 0) && (height > 0)
+			? FramePool.getFrameBytes(width, height, UVCCamera.PIXEL_FORMAT_RAW) : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * set limits of the frame length, the defaults are width * height / 256 and
+	 * width * height * 2(same as YUYV frame) for current expected size
+	 * @param minBytes
+	 * @param maxBytes
+	 */
+	public synchronized void setSizeLimits(final int minBytes, final int maxBytes) {
+		if ((minBytes < 0) || (maxBytes < minBytes))
+			throw new IllegalArgumentException("invalid limits:" + minBytes + "," + maxBytes);
+		mMinBytes = minBytes;
+		mMaxBytes = maxBytes;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * validate the frame and count the result.
+	 * data from position of the frame are read and position of the frame is not changed.
+	 * @param frame
+	 * @return RESULT_OK, RESULT_NOT_JPEG or one of ERROR_XXX
+	 */
+	public int scan(final ByteBuffer frame) {
+		final int result = validate(frame, mWidth, mHeight, mMinBytes, mMaxBytes);
+		mCounts[result].incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * create IFrameCallback that passes only the valid frames to the callback,
+	 * you can set it with UVCCamera#setFrameCallback and UVCCamera#PIXEL_FORMAT_RAW.
+	 * frames that the native library already decoded are passed too.
+	 * @param callback
+	 * @return
+	 */
+	public IFrameCallback filter(final IFrameCallback callback) {
+		return new IFrameCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				if (isValid(scan(frame))) {
+					callback.onFrame(frame);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param result return value of #scan or #validate
+	 * @return true if the frame can be used
+	 */
+	public static boolean isValid(final int result) {
+		return (result == RESULT_OK) || (result == RESULT_NOT_JPEG);
+	}
+
+	/**
+	 * @param result RESULT_XXX or ERROR_XXX
+	 * @return number of frames that #scan returned the result
+	 */
+	public long getCount(final int result) {
+		return mCounts[result].get();
+	}
+
+	/**
+	 * @return number of frames that were scanned
+	 */
+	public long getFrames() {
+		long result = 0;
+		for (int i = 0; i < NUM_RESULTS; i++) {
+			result += mCounts[i].get();
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of frames that were rejected
+	 */
+	public long getCorruptFrames() {
+		long result = 0;
+		for (int i = 0; i < NUM_RESULTS; i++) {
+			if (!isValid(i)) {
+				result += mCounts[i].get();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return ratio of rejected frames in all of the scanned frames, [0.0f, 1.0f]
+	 */
+	public float getCorruptionRate() {
+		final long frames = getFrames();
+		return frames > 0 ? getCorruptFrames() / (float)frames : 0.0f;
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUM_RESULTS; i++) {
+			mCounts[i].set(0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("MjpegScanner{");
+		sb.append(String.format(Locale.US, "%dx%d,rate=%.4f", mWidth, mHeight, getCorruptionRate()));
+		for (int i = 0; i < NUM_RESULTS; i++) {
+			sb.append(',').append(RESULT_NAMES[i]).append('=').append(mCounts[i].get());
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * validate the frame without counting the result, the frame length is checked with the default limits.
+	 * data from position of the frame are read and position of the frame is not changed.
+	 * @param frame
+	 * @param width expected frame width, 0: do not check
+	 * @param height expected frame height, 0: do not check
+	 * @return RESULT_OK, RESULT_NOT_JPEG or one of ERROR_XXX
+	 */
+	public static int validate(final ByteBuffer frame, final int width, final int height) {
+		final boolean check = (width > 0) && (height > 0);
+		return validate(frame, width, height, check ? width * height / MIN_BYTES_DIVISOR : 0,
+			check ? FramePool.getFrameBytes(width, height, UVCCamera.PIXEL_FORMAT_RAW) : Integer.MAX_VALUE);
+	}
+
+	private static int validate(final ByteBuffer frame,
+		final int width, final int height, final int minBytes, final int maxBytes) {
+
+		final int pos = frame.position();
+		final int limit = frame.limit();
+		final int bytes = limit - pos;
+		if ((bytes < 4) || ((frame.get(pos) & 0xff) != 0xff) || ((frame.get(pos + 1) & 0xff) != MARKER_SOI)) {
+			return (width > 0) && (bytes == width * height * 2) ? RESULT_NOT_JPEG : ERROR_NO_SOI;
+		}
+		if (bytes < minBytes) return ERROR_TOO_SMALL;
+		if (bytes > maxBytes) return ERROR_TOO_LARGE;
+		int i = pos + 2;
+		int components = 0, mcus = 0, restartInterval = 0;
+		boolean baseline = false, hasScan = false;
+		for ( ; ; ) {
+			if (i + 1 >= limit) return ERROR_TRUNCATED;
+			if ((frame.get(i) & 0xff) != 0xff) return ERROR_BAD_SEGMENT;
+			final int marker = frame.get(i + 1) & 0xff;
+			if (marker == 0xff) {
+				// fill byte
+				i++;
+				continue;
+			}
+			if (marker == MARKER_EOI) {
+				return hasScan ? RESULT_OK : ERROR_BAD_SEGMENT;
+			}
+			if ((marker == 0) || (marker == MARKER_SOI) || (marker == MARKER_TEM)
+				|| ((marker >= MARKER_RST0) && (marker <= MARKER_RST7))) {
+				// these markers never appear between marker segments
+				return ERROR_BAD_SEGMENT;
+			}
+			if (i + 3 >= limit) return ERROR_TRUNCATED;
+			final int length = readShort(frame, i + 2);
+			if (length < 2) return ERROR_BAD_SEGMENT;
+			final int end = i + 2 + length;
+			if (end > limit) return ERROR_TRUNCATED;
+			if (isSof(marker)) {
+				if (length < 8) return ERROR_BAD_SEGMENT;
+				final int h = readShort(frame, i + 5);
+				final int w = readShort(frame, i + 7);
+				components = frame.get(i + 9) & 0xff;
+				if ((components == 0) || (length != 8 + 3 * components)) return ERROR_BAD_SEGMENT;
+				if ((width > 0) && (height > 0) && ((w != width) || (h != height))) return ERROR_SIZE_MISMATCH;
+				int maxH = 1, maxV = 1;
+				for (int c = 0; c < components; c++) {
+					final int sampling = frame.get(i + 11 + 3 * c) & 0xff;
+					maxH = Math.max(maxH, sampling >> 4);
+					maxV = Math.max(maxV, sampling & 0x0f);
+				}
+				mcus = ((w + 8 * maxH - 1) / (8 * maxH)) * ((h + 8 * maxV - 1) / (8 * maxV));
+				baseline = (marker == 0xc0) || (marker == 0xc1);
+			} else if (marker == MARKER_DRI) {
+				if (length != 4) return ERROR_BAD_SEGMENT;
+				restartInterval = readShort(frame, i + 4);
+			} else if (marker == MARKER_SOS) {
+				if ((mcus == 0) || (length < 6)) return ERROR_BAD_SEGMENT;
+				final int scanComponents = frame.get(i + 4) & 0xff;
+				if ((scanComponents == 0) || (length != 6 + 2 * scanComponents)) return ERROR_BAD_SEGMENT;
+				// number of restart markers is only known for the interleaved scan of baseline frame
+				final int expected = baseline && (restartInterval > 0) && (scanComponents == components)
+					? (mcus + restartInterval - 1) / restartInterval - 1 : -1;
+				final int next = scanEntropy(frame, end, limit, expected);
+				if (next < 0) return -next;
+				hasScan = true;
+				i = next;
+				continue;
+			}
+			i = end;
+		}
+	}
+
+	/**
+	 * skip entropy coded data
+	 * @param frame
+	 * @param start
+	 * @param limit
+	 * @param expectedRestarts number of restart markers in the scan, -1: do not check
+	 * @return index of the marker that terminated the scan, or negative error code
+	 */
+	private static int scanEntropy(final ByteBuffer frame, final int start, final int limit,
+		final int expectedRestarts) {
+
+		int i = start;
+		int restarts = 0;
+		while (i < limit) {
+			// skip 8 bytes at once while they do not have 0xff
+			while (i + 8 <= limit) {
+				final long x = ~frame.getLong(i);
+				if (((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0) break;
+				i += 8;
+			}
+			final int end = Math.min(i + 8, limit);
+			while ((i < end) && (frame.get(i) != (byte)0xff)) {
+				i++;
+			}
+			if (i >= end) continue;
+			if (i + 1 >= limit) break;
+			final int marker = frame.get(i + 1) & 0xff;
+			if (marker == 0) {
+				// stuffed zero byte
+				i += 2;
+			} else if ((marker >= MARKER_RST0) && (marker <= MARKER_RST7)) {
+				if ((marker - MARKER_RST0) != (restarts & 7)) return -ERROR_BAD_SCAN;
+				restarts++;
+				i += 2;
+			} else if (marker == 0xff) {
+				// fill byte before the marker
+				i++;
+			} else {
+				if ((expectedRestarts >= 0) && (restarts != expectedRestarts)) return -ERROR_BAD_SCAN;
+				return i;
+			}
+		}
+		return -ERROR_TRUNCATED;
+	}
+
+	private static boolean isSof(final int marker) {
+		return (marker >= 0xc0) && (marker <= 0xcf)
+			&& (marker != MARKER_DHT) && (marker != MARKER_JPG) && (marker != MARKER_DAC);
+	}
+
+	private static int readShort(final ByteBuffer frame, final int index) {
+		return ((frame.get(index) & 0xff) << 8) | (frame.get(index + 1) & 0xff);
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Coarse per-tile change bitmap between consecutive frames.
+ * Each tile is reduced to a small signature (SIGNATURE_SIZE x SIGNATURE_SIZE cell means of luma)
+ * and a tile is dirty when any cell differs from the previous frame more than the threshold.
+ * Consumers can process only dirty tiles, or skip the whole frame when #isUnchanged returns true.
+ * Feeding a downscaled level of LumaPyramid is usually enough and much cheaper than full resolution.
+ * This class is not thread safe.
+ */
+public class TileChangeMap {
+	/**
+	 * number of cells of a tile signature in each direction
+	 */
+	public static final int SIGNATURE_SIZE = 4;
+	/**
+	 * default difference of cell mean luma that is regarded as a change, this ignores sensor noise
+	 */
+	public static final int DEFAULT_THRESHOLD = 12;
+
+	private final int mTileColumns, mTileRows;
+	private final int mThreshold;
+	private final int mCellColumns, mCellRows;
+	/**
+	 * dirty bit of each tile, bit (row * tileColumns + column)
+	 */
+	private final long[] mBits;
+	private final int[] mSums;
+	private final int[] mCounts;
+	private int[] mSignature, mPrevSignature;
+	private int[] mColCells = new int[0];
+	private int[] mRowCells = new int[0];
+	private int mWidth, mHeight;
+	private boolean mHasPrev;
+	private int mDirtyCount;
+	private long mFrames, mUnchangedFrames;
+
+	/**
+	 * constructor with default threshold
+	 * @param tileColumns
+	 * @param tileRows
+	 */
+	public TileChangeMap(final int tileColumns, final int tileRows) {
+		this(tileColumns, tileRows, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * constructor
+	 * @param tileColumns number of horizontal tiles
+	 * @param tileRows number of vertical tiles
+	 * @param threshold difference of cell mean luma that is regarded as a change
+	 */
+	public TileChangeMap(final int tileColumns, final int tileRows, final int threshold) {
+		if ((tileColumns <= 0) || (tileRows <= 0))
+			throw new IllegalArgumentException("number of tiles should be positive");
+		mTileColumns = tileColumns;
+		mTileRows = tileRows;
+		mThreshold = threshold;
+		mCellColumns = tileColumns * SIGNATURE_SIZE;
+		mCellRows = tileRows * SIGNATURE_SIZE;
+		final int cells = mCellColumns * mCellRows;
+		mSums = new int[cells];
+		mCounts = new int[cells];
+		mSignature = new int[cells];
+		mPrevSignature = new int[cells];
+		mBits = new long[(tileColumns * tileRows + 63) / 64];
+	}
+
+	/**
+	 * compare the frame with previous one, from PIXEL_FORMAT_GRAY FrameBuffer(or luma view)
+	 * @param frame
+	 */
+	public void update(final FrameBuffer frame) {
+		update(frame.getBuffer(), frame.getWidth(), frame.getHeight(), frame.getInfo().stride);
+	}
+
+	/**
+	 * compare the frame with previous one, from a level of LumaPyramid
+	 * @param pyramid
+	 * @param level
+	 */
+	public void update(final LumaPyramid pyramid, final int level) {
+		update(pyramid.getLevel(level), pyramid.getWidth(level), pyramid.getHeight(level), pyramid.getWidth(level));
+	}
+
+	/**
+	 * compare the frame with previous one.
+	 * all tiles are dirty for the first frame and after changing the frame size.
+	 * @param luma from its position, position is not changed
+	 * @param width
+	 * @param height
+	 * @param stride
+	 * @throws IllegalArgumentException
+	 */
+	public void update(final ByteBuffer luma, final int width, final int height,
+		final int stride) throws IllegalArgumentException {
+
+		if ((width < mCellColumns) || (height < mCellRows) || (stride < width))
+			throw new IllegalArgumentException("frame is too small for the tiles");
+		if (luma.remaining() < stride * (height - 1) + width)
+			throw new IllegalArgumentException("luma plane is too small");
+		if ((width != mWidth) || (height != mHeight)) {
+			setup(width, height);
+		}
+		// cell sums of this frame
+		Arrays.fill(mSums, 0);
+		final int offset = luma.position();
+		final int[] sums = mSums, colCells = mColCells;
+		for (int j = 0; j < height; j++) {
+			final int base = mRowCells[j] * mCellColumns;
+			final int s = offset + j * stride;
+			for (int i = 0; i < width; i++) {
+				sums[base + colCells[i]] += luma.get(s + i) & 0xff;
+			}
+		}
+		final int[] signature = mSignature;
+		for (int i = 0; i < signature.length; i++) {
+			signature[i] = sums[i] / mCounts[i];
+		}
+		// compare with previous signature
+		Arrays.fill(mBits, 0);
+		int dirty = 0;
+		final int[] prev = mPrevSignature;
+		for (int row = 0; row < mTileRows; row++) {
+			for (int col = 0; col < mTileColumns; col++) {
+				boolean changed = !mHasPrev;
+				for (int cy = 0; !changed && (cy < SIGNATURE_SIZE); cy++) {
+					final int base = (row * SIGNATURE_SIZE + cy) * mCellColumns + col * SIGNATURE_SIZE;
+					for (int cx = 0; cx < SIGNATURE_SIZE; cx++) {
+						if (Math.abs(signature[base + cx] - prev[base + cx]) > mThreshold) {
+							changed = true;
+							break;
+						}
+					}
+				}
+				if (changed) {
+					final int tile = row * mTileColumns + col;
+					mBits[tile >> 6] |= 1L << (tile & 63);
+					dirty++;
+				}
+			}
+		}
+		mDirtyCount = dirty;
+		mFrames++;
+		if (dirty == 0) {
+			mUnchangedFrames++;
+		}
+		mSignature = prev;
+		mPrevSignature = signature;
+		mHasPrev = true;
+	}
+
+	/**
+	 * forget previous frame, all tiles become dirty on next #update
+	 */
+	public void reset() {
+		mHasPrev = false;
+	}
+
+	public int getTileColumns() {
+		return mTileColumns;
+	}
+
+	public int getTileRows() {
+		return mTileRows;
+	}
+
+	/**
+	 * @param column
+	 * @param row
+	 * @return true if the tile changed since previous frame
+	 */
+	public boolean isDirty(final int column, final int row) {
+		final int tile = row * mTileColumns + column;
+		return (mBits[tile >> 6] & (1L << (tile & 63))) != 0;
+	}
+
+	/**
+	 * @return dirty bits, bit (row * tileColumns + column) of the long array, you should not modify this
+	 */
+	public long[] getBits() {
+		return mBits;
+	}
+
+	public int getDirtyCount() {
+		return mDirtyCount;
+	}
+
+	/**
+	 * @return true if no tile changed since previous frame, you can skip this frame
+	 */
+	public boolean isUnchanged() {
+		return mHasPrev && (mDirtyCount == 0);
+	}
+
+	/**
+	 * @return number of frames that were compared
+	 */
+	public long getFrameCount() {
+		return mFrames;
+	}
+
+	/**
+	 * @return number of frames that had no dirty tile
+	 */
+	public long getUnchangedFrameCount() {
+		return mUnchangedFrames;
+	}
+
+	/**
+	 * get the rectangle of the tile in the coordinates of specific frame size,
+	 * ex. full resolution frame while this is updated with a downscaled level
+	 * @param column
+	 * @param row
+	 * @param width
+	 * @param height
+	 * @param rect {left, top, right, bottom}
+	 * @return rect
+	 */
+	public int[] getTileRect(final int column, final int row,
+		final int width, final int height, final int[] rect) {
+
+		rect[0] = (int)((long)column * width / mTileColumns);
+		rect[1] = (int)((long)row * height / mTileRows);
+		rect[2] = (int)((long)(column + 1) * width / mTileColumns);
+		rect[3] = (int)((long)(row + 1) * height / mTileRows);
+		return rect;
+	}
+
+	private void setup(final int width, final int height) {
+		mWidth = width;
+		mHeight = height;
+		mColCells = new int[width];
+		for (int i = 0; i < width; i++) {
+			mColCells[i] = (int)((long)i * mCellColumns / width);
+		}
+		mRowCells = new int[height];
+		for (int j = 0; j < height; j++) {
+			mRowCells[j] = (int)((long)j * mCellRows / height);
+		}
+		Arrays.fill(mCounts, 0);
+		for (int j = 0; j < height; j++) {
+			final int base = mRowCells[j] * mCellColumns;
+			for (int i = 0; i < width; i++) {
+				mCounts[base + mColCells[i]]++;
+			}
+		}
+		mHasPrev = false;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "TileChangeMap(%dx%d,dirty=%d,unchanged=%d/%d)",
+			mTileColumns, mTileRows, mDirtyCount, mUnchangedFrames, mFrames);
+	}
+}
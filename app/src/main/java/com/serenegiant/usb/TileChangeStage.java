@@ -0,0 +1,134 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import android.util.Log;
+
+/**
+ * Pipeline stage that updates TileChangeMap once for each frame and passes it to all consumers.
+ * Subscribe this to FrameHub with UVCCamera#PIXEL_FORMAT_GRAY
+ * or add this to LumaPyramidStage to use a downscaled level(recommended).
+ */
+public class TileChangeStage implements IFrameBufferCallback, ILumaPyramidCallback {
+	private static final String TAG = TileChangeStage.class.getSimpleName();
+
+	private static final ITileChangeCallback[] EMPTY = new ITileChangeCallback[0];
+
+	private final Object mSync = new Object();
+	private final TileChangeMap mMap;
+	private final int mLevel;
+	private volatile ITileChangeCallback[] mCallbacks = EMPTY;
+
+	/**
+	 * constructor
+	 * @param tileColumns number of horizontal tiles
+	 * @param tileRows number of vertical tiles
+	 * @param level level of LumaPyramid to use when this is added to LumaPyramidStage
+	 */
+	public TileChangeStage(final int tileColumns, final int tileRows, final int level) {
+		this(new TileChangeMap(tileColumns, tileRows), level);
+	}
+
+	/**
+	 * constructor
+	 * @param map
+	 * @param level level of LumaPyramid to use when this is added to LumaPyramidStage
+	 */
+	public TileChangeStage(final TileChangeMap map, final int level) {
+		mMap = map;
+		mLevel = level;
+	}
+
+	public TileChangeMap getMap() {
+		return mMap;
+	}
+
+	public void addCallback(final ITileChangeCallback callback) {
+		synchronized (mSync) {
+			final ITileChangeCallback[] callbacks = new ITileChangeCallback[mCallbacks.length + 1];
+			System.arraycopy(mCallbacks, 0, callbacks, 0, mCallbacks.length);
+			callbacks[callbacks.length - 1] = callback;
+			mCallbacks = callbacks;
+		}
+	}
+
+	public void removeCallback(final ITileChangeCallback callback) {
+		synchronized (mSync) {
+			final ITileChangeCallback[] current = mCallbacks;
+			final int n = current.length;
+			for (int i = 0; i < n; i++) {
+				if (current[i] == callback) {
+					final ITileChangeCallback[] callbacks = new ITileChangeCallback[n - 1];
+					System.arraycopy(current, 0, callbacks, 0, i);
+					System.arraycopy(current, i + 1, callbacks, i, n - i - 1);
+					mCallbacks = callbacks;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * IFrameBufferCallback
+	 * @param frame PIXEL_FORMAT_GRAY frame or the frame that has Y plane
+	 */
+	@Override
+	public void onFrame(final FrameBuffer frame) {
+		try {
+			final FrameBuffer luma = frame.getPixelFormat() == UVCCamera.PIXEL_FORMAT_GRAY
+				? frame : frame.getLumaView();
+			synchronized (mMap) {
+				mMap.update(luma);
+				dispatch(luma.getInfo());
+			}
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * ILumaPyramidCallback
+	 * @param pyramid
+	 */
+	@Override
+	public void onPyramid(final LumaPyramid pyramid) {
+		final int level = Math.min(mLevel, pyramid.getLevelCount() - 1);
+		synchronized (mMap) {
+			mMap.update(pyramid, level);
+			dispatch(pyramid.getInfo());
+		}
+	}
+
+	private void dispatch(final FrameInfo info) {
+		for (final ITileChangeCallback callback: mCallbacks) {
+			try {
+				callback.onTileChange(mMap, info);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+}
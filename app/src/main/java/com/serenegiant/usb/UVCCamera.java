@@ -23,6 +23,7 @@
 
 package com.serenegiant.usb;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,6 +33,7 @@ import org.json.JSONObject;
 
 import android.graphics.SurfaceTexture;
 import android.hardware.usb.UsbDevice;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
@@ -60,6 +62,16 @@ public class UVCCamera {
 	public static final int PIXEL_FORMAT_RGBX = 3;
 	public static final int PIXEL_FORMAT_YUV420SP = 4;
 	public static final int PIXEL_FORMAT_NV21 = 5;		// = YVU420SemiPlanar
+	/**
+	 * YUV420Planar(Y, U, V planes), only available on Java side (FrameHub/YuvConverter),
+	 * you can not pass this to #setFrameCallback
+	 */
+	public static final int PIXEL_FORMAT_I420 = 6;
+	/**
+	 * 8 bit luma only(Y8), only available on Java side (FrameHub/LumaExtractor/FrameScaler),
+	 * you can not pass this to #setFrameCallback
+	 */
+	public static final int PIXEL_FORMAT_GRAY = 7;
 
 	//--------------------------------------------------------------------------------
     public static final int	CTRL_SCANNING		= 0x00000001;	// D0:  Scanning Mode
@@ -130,8 +142,20 @@ public class UVCCamera {
     protected int mCurrentFrameFormat = FRAME_FORMAT_MJPEG;
 	protected int mCurrentWidth = DEFAULT_PREVIEW_WIDTH, mCurrentHeight = DEFAULT_PREVIEW_HEIGHT;
 	protected float mCurrentBandwidthFactor = DEFAULT_BANDWIDTH;
+	protected int mCurrentMaxFps = DEFAULT_PREVIEW_MAX_FPS;
     protected String mSupportedSize;
     protected List<Size> mCurrentSizeList;
+    protected final FrameStats mFrameStats = new FrameStats();
+    protected final MjpegScanner mMjpegScanner = new MjpegScanner(DEFAULT_PREVIEW_WIDTH, DEFAULT_PREVIEW_HEIGHT);
+    protected BandwidthController mBandwidthController;
+    // demand-driven streaming, see #setStreamOnDemand
+    protected boolean mStreamOnDemand;
+    protected boolean mPreviewRequested;
+    protected boolean mStreaming;
+    protected int mStreamSinks;
+    protected Surface mPreviewSurface;
+    protected IFrameCallback mFrameCallback;
+    protected int mFramePixelFormat;
 	// these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
     protected int mScanningModeMin, mScanningModeMax, mScanningModeDef;
@@ -235,6 +259,9 @@ public class UVCCamera {
      */
     public synchronized void close() {
     	stopPreview();
+    	if (mBandwidthController != null) {
+    		mBandwidthController.save();
+    	}
     	if (mNativePtr != 0) {
     		nativeRelease(mNativePtr);
 //    		mNativePtr = 0;	// nativeDestroyを呼ぶのでここでクリアしちゃダメ
@@ -248,6 +275,8 @@ public class UVCCamera {
 		mCurrentBandwidthFactor = 0;
 		mSupportedSize = null;
 		mCurrentSizeList = null;
+		mPreviewSurface = null;
+		mStreamSinks = 0;
     	if (DEBUG) Log.v(TAG, "close:finished");
     }
 
@@ -282,21 +311,26 @@ public class UVCCamera {
 	
 	/**
 	 * Set preview size and preview mode
+	 * bandwidth factor learned by BandwidthController is used for MJPEG if it is set, see #setBandwidthController
 	 * @param width
 	   @param height
 	 */
 	public void setPreviewSize(final int width, final int height) {
-		setPreviewSize(width, height, DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, mCurrentFrameFormat, mCurrentBandwidthFactor);
+		setPreviewSize(width, height, mCurrentFrameFormat);
 	}
 
 	/**
 	 * Set preview size and preview mode
+	 * bandwidth factor learned by BandwidthController is used for MJPEG if it is set, see #setBandwidthController
 	 * @param width
 	 * @param height
 	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
 	 */
 	public void setPreviewSize(final int width, final int height, final int frameFormat) {
-		setPreviewSize(width, height, DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, frameFormat, mCurrentBandwidthFactor);
+		final BandwidthController controller = mBandwidthController;
+		final float bandwidth = (controller != null) && (frameFormat == FRAME_FORMAT_MJPEG)
+			? controller.getFactor(width, height, DEFAULT_PREVIEW_MAX_FPS) : mCurrentBandwidthFactor;
+		setPreviewSize(width, height, DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS, frameFormat, bandwidth);
 	}
 	
 	/**
@@ -330,9 +364,36 @@ public class UVCCamera {
 			mCurrentWidth = width;
 			mCurrentHeight = height;
 			mCurrentBandwidthFactor = bandwidthFactor;
+			mCurrentMaxFps = max_fps;
+			mMjpegScanner.setSize(width, height);
+			final BandwidthController controller = mBandwidthController;
+			if ((controller != null) && (frameFormat == FRAME_FORMAT_MJPEG)) {
+				controller.setMode(width, height, max_fps);
+			}
 		}
 	}
 
+	/**
+	 * @return width of current preview size
+	 */
+	public int getCurrentWidth() {
+		return mCurrentWidth;
+	}
+
+	/**
+	 * @return height of current preview size
+	 */
+	public int getCurrentHeight() {
+		return mCurrentHeight;
+	}
+
+	/**
+	 * @return FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 */
+	public int getCurrentFrameFormat() {
+		return mCurrentFrameFormat;
+	}
+
 	public List<Size> getSupportedSizeList() {
 		final int type = (mCurrentFrameFormat > 0) ? 6 : 4;
 		return getSupportedSize(type, mSupportedSize);
@@ -379,7 +440,7 @@ public class UVCCamera {
      * @param holder
      */
     public synchronized void setPreviewDisplay(final SurfaceHolder holder) {
-   		nativeSetPreviewDisplay(mNativePtr, holder.getSurface());
+   		setPreviewDisplay(holder.getSurface());
     }
 
     /**
@@ -389,34 +450,233 @@ public class UVCCamera {
      */
     public synchronized void setPreviewTexture(final SurfaceTexture texture) {	// API >= 11
     	final Surface surface = new Surface(texture);	// XXX API >= 14
-    	nativeSetPreviewDisplay(mNativePtr, surface);
+    	setPreviewDisplay(surface);
     }
 
     /**
      * set preview surface with Surface
-     * @param surface
+     * the surface is a stream sink, see #setStreamOnDemand
+     * @param surface null: remove preview surface
      */
     public synchronized void setPreviewDisplay(final Surface surface) {
+    	mPreviewSurface = surface;
     	nativeSetPreviewDisplay(mNativePtr, surface);
+    	updateStreaming();
     }
 
     /**
      * set frame callback
+     * callback duration and inter-arrival time of frames are recorded into #getFrameStats
+     * the callback is a stream sink, see #setStreamOnDemand
      * @param callback
      * @param pixelFormat
      */
-    public void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+    public synchronized void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+    	IFrameCallback cb = callback;
+    	if ((cb != null) && (pixelFormat == PIXEL_FORMAT_RAW) && (mBandwidthController != null)) {
+    		cb = mBandwidthController.wrap(cb);
+    	}
+    	mFrameCallback = cb != null ? mFrameStats.wrap(cb) : null;
+    	mFramePixelFormat = pixelFormat;
     	if (mNativePtr != 0) {
-        	nativeSetFrameCallback(mNativePtr, callback, pixelFormat);
+        	nativeSetFrameCallback(mNativePtr, mFrameCallback, pixelFormat);
+    	}
+    	updateStreaming();
+    }
+
+    /**
+     * enable/disable demand-driven streaming.
+     * if enabled, the camera keeps opened and negotiated after #startPreview
+     * but streaming is suspended while there is no stream sink
+     * (preview surface, frame callback or #acquireStream), and it is resumed when a sink is attached.
+     * @param onDemand
+     */
+    public synchronized void setStreamOnDemand(final boolean onDemand) {
+    	mStreamOnDemand = onDemand;
+    	updateStreaming();
+    }
+
+    public synchronized boolean isStreamOnDemand() {
+    	return mStreamOnDemand;
+    }
+
+    /**
+     * add a stream sink that is not a preview surface nor frame callback,
+     * for example a consumer that is attached to FrameHub
+     * @return number of stream sinks
+     */
+    public synchronized int acquireStream() {
+    	mStreamSinks++;
+    	updateStreaming();
+    	return getStreamSinkCount();
+    }
+
+    /**
+     * remove a stream sink that was added with #acquireStream
+     * @return number of stream sinks
+     */
+    public synchronized int releaseStream() {
+    	if (mStreamSinks > 0) {
+    		mStreamSinks--;
+    	}
+    	updateStreaming();
+    	return getStreamSinkCount();
+    }
+
+    /**
+     * @return number of stream sinks, preview surface and frame callback are counted as one
+     */
+    public synchronized int getStreamSinkCount() {
+    	return mStreamSinks + (mPreviewSurface != null ? 1 : 0) + (mFrameCallback != null ? 1 : 0);
+    }
+
+    /**
+     * @return true if the camera is streaming now
+     */
+    public synchronized boolean isStreaming() {
+    	return mStreaming;
+    }
+
+    /**
+     * suspend/resume streaming depending on the stream sinks when demand-driven streaming is enabled
+     */
+    private void updateStreaming() {
+    	if (mCtrlBlock == null) return;
+    	// evaluate even if demand-driven streaming is disabled,
+    	// so disabling it while suspended resumes streaming
+    	final boolean stream = mPreviewRequested && (!mStreamOnDemand || (getStreamSinkCount() > 0));
+    	if (stream != mStreaming) {
+    		mStreaming = stream;
+    		if (stream) {
+    			if (DEBUG) Log.v(TAG, "updateStreaming:resume");
+    			// native side releases the preview window when streaming stops, so set them again
+    			nativeSetPreviewDisplay(mNativePtr, mPreviewSurface);
+    			nativeSetFrameCallback(mNativePtr, mFrameCallback, mFramePixelFormat);
+    			nativeStartPreview(mNativePtr);
+    		} else {
+    			if (DEBUG) Log.v(TAG, "updateStreaming:suspend");
+    			nativeStopPreview(mNativePtr);
+    		}
+    	}
+    }
+
+    /**
+     * get latency and jitter histograms of the frame path,
+     * you can disable recording with FrameStats#setEnabled
+     * @return
+     */
+    public FrameStats getFrameStats() {
+    	return mFrameStats;
+    }
+
+    /**
+     * set frame callback that receives metadata(sequence number, timestamp, size and pixel format)
+     * with each frame. this replaces the callback set by #setFrameCallback.
+     * @param callback
+     * @param pixelFormat
+     */
+    public void setFrameInfoCallback(final IFrameInfoCallback callback, final int pixelFormat) {
+    	setFrameCallback(callback != null ? new FrameInfoAdapter(this, callback, pixelFormat) : null, pixelFormat);
+    }
+
+    /**
+     * set frame callback that receives compressed MJPEG frames as standalone JPEG files
+     * for recording/streaming without decoding and encoding them on Java side.
+     * This is same as #setFrameCallback with MjpegPassthrough and #PIXEL_FORMAT_RAW,
+     * the standard DHT is inserted into the frames that do not have it.
+     * Corrupted frames are dropped before they reach the callback, see #getMjpegScanner.
+     * Frames are passed as is if the native library passes decoded frames(ex. FRAME_FORMAT_YUYV).
+     * @param callback
+     * @return MjpegPassthrough that was set, you can get the number of repaired frames from it, null if callback is null
+     */
+    public MjpegPassthrough setMjpegPassthrough(final IFrameCallback callback) {
+    	final MjpegPassthrough passthrough = callback != null ? new MjpegPassthrough(callback) : null;
+    	setFrameCallback(passthrough != null ? mMjpegScanner.filter(passthrough) : null, PIXEL_FORMAT_RAW);
+    	return passthrough;
+    }
+
+    /**
+     * get integrity checker of compressed MJPEG frames of this camera,
+     * expected frame size is updated with #setPreviewSize.
+     * you can get the corruption rate from this.
+     * @return
+     */
+    public MjpegScanner getMjpegScanner() {
+    	return mMjpegScanner;
+    }
+
+    /**
+     * set controller that learns bandwidth factor for MJPEG from compressed frame sizes,
+     * learned factor is used on next #setPreviewSize without bandwidth factor
+     * (and you can also pass BandwidthController#getRecommendedFactor explicitly).
+     * Frame sizes are recorded only while a frame callback with #PIXEL_FORMAT_RAW is set
+     * and the native library passes compressed frames, so set this before #setFrameCallback.
+     * The controller should be created for this camera, see BandwidthController#forCamera.
+     * @param controller null: use fixed bandwidth factor
+     */
+    public synchronized void setBandwidthController(final BandwidthController controller) {
+    	if (mBandwidthController != null) {
+    		mBandwidthController.save();
+    	}
+    	mBandwidthController = controller;
+    	if ((controller != null) && (mCurrentFrameFormat == FRAME_FORMAT_MJPEG)) {
+    		controller.setMode(mCurrentWidth, mCurrentHeight, mCurrentMaxFps);
+    	}
+    }
+
+    public BandwidthController getBandwidthController() {
+    	return mBandwidthController;
+    }
+
+    /**
+     * IFrameCallback that fills reusable FrameInfo and passes it to IFrameInfoCallback
+     */
+    private static final class FrameInfoAdapter implements IFrameCallback {
+    	private final UVCCamera mParent;
+    	private final IFrameInfoCallback mCallback;
+    	private final int mPixelFormat;
+    	private final FrameInfo mInfo = new FrameInfo();
+    	private long mSequence;
+
+    	private FrameInfoAdapter(final UVCCamera parent, final IFrameInfoCallback callback, final int pixelFormat) {
+    		mParent = parent;
+    		mCallback = callback;
+    		mPixelFormat = pixelFormat;
     	}
+
+		@Override
+		public void onFrame(final ByteBuffer frame) {
+			final FrameInfo info = mInfo;
+			info.captureTimeNs = SystemClock.elapsedRealtimeNanos();
+			info.sequence = mSequence++;
+			info.frameFormat = mParent.mCurrentFrameFormat;
+			info.setFormat(mParent.mCurrentWidth, mParent.mCurrentHeight, mPixelFormat);
+			mCallback.onFrame(frame, info);
+		}
+    }
+
+    /**
+     * create FramePool that has pre-allocated buffers for current preview size.
+     * you should create new one or call FramePool#resize after changing preview size
+     * @param pixelFormat same value as the one passed to #setFrameCallback
+     * @param maxFrames number of frames that consumers can hold at the same time
+     * @return
+     */
+    public FramePool createFramePool(final int pixelFormat, final int maxFrames) {
+    	return new FramePool(mCurrentWidth, mCurrentHeight, pixelFormat, maxFrames);
     }
 
     /**
      * start preview
+     * if demand-driven streaming is enabled, streaming starts when a stream sink is attached
      */
     public synchronized void startPreview() {
     	if (mCtrlBlock != null) {
-    		nativeStartPreview(mNativePtr);
+    		mPreviewRequested = true;
+    		if (!mStreamOnDemand || (getStreamSinkCount() > 0)) {
+    			nativeStartPreview(mNativePtr);
+    			mStreaming = true;
+    		}
     	}
     }
 
@@ -424,6 +684,8 @@ public class UVCCamera {
      * stop preview
      */
     public synchronized void stopPreview() {
+    	mPreviewRequested = false;
+    	mStreaming = false;
     	setFrameCallback(null, 0);
     	if (mCtrlBlock != null) {
     		nativeStopPreview(mNativePtr);
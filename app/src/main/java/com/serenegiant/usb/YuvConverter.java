@@ -0,0 +1,380 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multi-core YUYV(UVCCamera#PIXEL_FORMAT_YUV or PIXEL_FORMAT_RAW with FRAME_FORMAT_YUYV)
+ * to NV21/YUV420SP/I420 converter.
+ * The frame is split into row stripes that are converted in parallel on ForkJoinPool,
+ * source pixels are read as 64-bit packed words instead of single bytes.
+ * Like native side, chroma of 4:2:0 are taken from even rows.
+ * #convert can be called from any thread but frames are converted one by one.
+ */
+public class YuvConverter {
+	/**
+	 * frames that have less rows than this are converted on the caller thread
+	 */
+	private static final int MIN_ROWS_PER_STRIPE = 32;
+
+	private final ForkJoinPool mPool;
+	private final boolean mOwnPool;
+	private final Stripe[] mStripes;
+	private final RootTask mRoot = new RootTask();
+	// parameters of current frame, set before invoking the tasks
+	private ByteBuffer mSrc, mDst;
+	private LumaStats mStats;
+	private int mWidth, mHeight, mFormat, mNumStripes;
+
+	/**
+	 * constructor, use all available cores
+	 */
+	public YuvConverter() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * constructor
+	 * @param parallelism number of threads to convert a frame
+	 */
+	public YuvConverter(final int parallelism) {
+		this(new ForkJoinPool(Math.max(1, parallelism)), true);
+	}
+
+	/**
+	 * constructor with your own ForkJoinPool, the pool is not shutdown with #release
+	 * @param pool
+	 */
+	public YuvConverter(final ForkJoinPool pool) {
+		this(pool, false);
+	}
+
+	private YuvConverter(final ForkJoinPool pool, final boolean ownPool) {
+		mPool = pool;
+		mOwnPool = ownPool;
+		// a few more stripes than threads to balance the load
+		final int n = Math.max(1, pool.getParallelism() * 2);
+		mStripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			mStripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * shutdown internal thread pool
+	 */
+	public void release() {
+		if (mOwnPool) {
+			mPool.shutdown();
+		}
+	}
+
+	/**
+	 * @param dstFormat
+	 * @return true if the pixel format is supported as the destination
+	 */
+	public static boolean isSupported(final int dstFormat) {
+		switch (dstFormat) {
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * convert YUYV frame into a FrameBuffer of the pool,
+	 * pixel format and frame size are taken from the pool
+	 * @param src YUYV frame from its position
+	 * @param pool
+	 * @return null if no FrameBuffer is available
+	 */
+	public FrameBuffer convert(final ByteBuffer src, final FramePool pool) {
+		final FrameBuffer result = pool.acquire();
+		if (result != null) {
+			try {
+				convert(src, result.getWidth(), result.getHeight(), result.getBuffer(), result.getPixelFormat());
+			} catch (final RuntimeException e) {
+				result.release();
+				throw e;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * convert YUYV frame.
+	 * position of src is not changed, dst is written from 0 and its limit is set to the data length.
+	 * @param src YUYV frame from its position
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param dstFormat UVCCamera#PIXEL_FORMAT_NV21, PIXEL_FORMAT_YUV420SP or PIXEL_FORMAT_I420
+	 * @throws IllegalArgumentException
+	 */
+	public void convert(final ByteBuffer src, final int width, final int height,
+		final ByteBuffer dst, final int dstFormat) throws IllegalArgumentException {
+
+		convert(src, width, height, dst, dstFormat, null);
+	}
+
+	/**
+	 * convert YUYV frame and calculate luma statistics while reading the pixels.
+	 * position of src is not changed, dst is written from 0 and its limit is set to the data length.
+	 * @param src YUYV frame from its position
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param dstFormat UVCCamera#PIXEL_FORMAT_NV21, PIXEL_FORMAT_YUV420SP or PIXEL_FORMAT_I420
+	 * @param stats null: do not calculate statistics
+	 * @throws IllegalArgumentException
+	 */
+	public synchronized void convert(final ByteBuffer src, final int width, final int height,
+		final ByteBuffer dst, final int dstFormat, final LumaStats stats) throws IllegalArgumentException {
+
+		check(src, width, height, dst, dstFormat);
+		if (stats != null) {
+			stats.begin(width, height);
+		}
+		final int numStripes = Math.min(mStripes.length, Math.max(1, height / MIN_ROWS_PER_STRIPE));
+		if (numStripes <= 1) {
+			convertRows(src, src.position(), width, height, dst, dstFormat, 0, height, stats);
+		} else {
+			mSrc = src;
+			mDst = dst;
+			mStats = stats;
+			mWidth = width;
+			mHeight = height;
+			mFormat = dstFormat;
+			mNumStripes = numStripes;
+			try {
+				mRoot.reinitialize();
+				mPool.invoke(mRoot);
+			} finally {
+				mSrc = mDst = null;
+				mStats = null;
+			}
+		}
+		if (stats != null) {
+			stats.finish();
+		}
+		dst.position(0);
+		dst.limit(FramePool.getFrameBytes(width, height, dstFormat));
+	}
+
+	/**
+	 * convert YUYV frame on the caller thread
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param dstFormat
+	 * @throws IllegalArgumentException
+	 */
+	public static void convertSingleThread(final ByteBuffer src, final int width, final int height,
+		final ByteBuffer dst, final int dstFormat) throws IllegalArgumentException {
+
+		check(src, width, height, dst, dstFormat);
+		convertRows(src, src.position(), width, height, dst, dstFormat, 0, height, null);
+		dst.position(0);
+		dst.limit(FramePool.getFrameBytes(width, height, dstFormat));
+	}
+
+	private static void check(final ByteBuffer src, final int width, final int height,
+		final ByteBuffer dst, final int dstFormat) throws IllegalArgumentException {
+
+		if (!isSupported(dstFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + dstFormat);
+		if (((width & 1) != 0) || ((height & 1) != 0) || (width <= 0) || (height <= 0))
+			throw new IllegalArgumentException("invalid frame size");
+		if (src.remaining() < width * height * 2)
+			throw new IllegalArgumentException("source frame is too small");
+		if (dst.capacity() < FramePool.getFrameBytes(width, height, dstFormat))
+			throw new IllegalArgumentException("destination buffer is too small");
+	}
+
+	private final class RootTask extends RecursiveAction {
+		@Override
+		protected void compute() {
+			final int n = mNumStripes;
+			// stripe height should be even to keep chroma rows in the same stripe
+			final int rows = ((mHeight + n - 1) / n + 1) & ~1;
+			final int offset = mSrc.position();
+			int start = 0;
+			int used = 0;
+			for (int i = 0; (i < n) && (start < mHeight); i++) {
+				final Stripe stripe = mStripes[i];
+				stripe.reinitialize();
+				stripe.set(offset, start, Math.min(start + rows, mHeight), mStats);
+				start += rows;
+				used++;
+			}
+			for (int i = 1; i < used; i++) {
+				mStripes[i].fork();
+			}
+			mStripes[0].compute();
+			for (int i = 1; i < used; i++) {
+				mStripes[i].join();
+			}
+			if (mStats != null) {
+				for (int i = 0; i < used; i++) {
+					mStats.merge(mStripes[i].mStats);
+				}
+			}
+		}
+	}
+
+	private final class Stripe extends RecursiveAction {
+		private int mOffset, mStart, mEnd;
+		/**
+		 * luma statistics of this stripe, merged after all stripes are finished
+		 */
+		private LumaStats mStats;
+		private boolean mHasStats;
+
+		private void set(final int offset, final int start, final int end, final LumaStats stats) {
+			mOffset = offset;
+			mStart = start;
+			mEnd = end;
+			mHasStats = stats != null;
+			if (mHasStats) {
+				if ((mStats == null) || !mStats.isSameLayout(stats)) {
+					mStats = new LumaStats(stats);
+				}
+				mStats.begin(mWidth, mHeight);
+			}
+		}
+
+		@Override
+		protected void compute() {
+			convertRows(mSrc, mOffset, mWidth, mHeight, mDst, mFormat, mStart, mEnd, mHasStats ? mStats : null);
+		}
+	}
+
+	/**
+	 * convert rows of YUYV frame, read 8 pixels at once as two 64-bit words.
+	 * only absolute get/put are used so multiple threads can share the same ByteBuffers
+	 * @param src
+	 * @param srcOffset
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @param dstFormat
+	 * @param rowStart should be even
+	 * @param rowEnd
+	 * @param stats luma statistics to accumulate Y values into, null: do not accumulate
+	 */
+	/*package*/static void convertRows(final ByteBuffer src, final int srcOffset,
+		final int width, final int height,
+		final ByteBuffer dst, final int dstFormat, final int rowStart, final int rowEnd,
+		final LumaStats stats) {
+
+		// bit position of k-th byte in a 64-bit word depends on the byte order of the buffers
+		final boolean srcLE = src.order() == ByteOrder.LITTLE_ENDIAN;
+		final int s0 = srcLE ? 0 : 56, s1 = srcLE ? 8 : 48, s2 = srcLE ? 16 : 40, s3 = srcLE ? 24 : 32;
+		final int s4 = srcLE ? 32 : 24, s5 = srcLE ? 40 : 16, s6 = srcLE ? 48 : 8, s7 = srcLE ? 56 : 0;
+		final boolean dstLE = dst.order() == ByteOrder.LITTLE_ENDIAN;
+		final int d0 = dstLE ? 0 : 56, d1 = dstLE ? 8 : 48, d2 = dstLE ? 16 : 40, d3 = dstLE ? 24 : 32;
+		final int d4 = dstLE ? 32 : 24, d5 = dstLE ? 40 : 16, d6 = dstLE ? 48 : 8, d7 = dstLE ? 56 : 0;
+		final int i0 = dstLE ? 0 : 24, i1 = dstLE ? 8 : 16, i2 = dstLE ? 16 : 8, i3 = dstLE ? 24 : 0;
+
+		final int srcStride = width * 2;
+		final int ySize = width * height;
+		final int w8 = width & ~7;
+		final boolean planar = dstFormat == UVCCamera.PIXEL_FORMAT_I420;
+		final boolean vu = dstFormat == UVCCamera.PIXEL_FORMAT_NV21;
+		final int uPlane = ySize;
+		final int vPlane = ySize + (width / 2) * (height / 2);
+
+		for (int j = rowStart; j < rowEnd; j++) {
+			final int s = srcOffset + j * srcStride;
+			final int y = j * width;
+			final boolean chroma = (j & 1) == 0;
+			// semi-planar: interleaved UV/VU row, planar: U and V rows
+			final int uv = planar ? (j >> 1) * (width / 2) : uPlane + (j >> 1) * width;
+			final int tile = stats != null ? stats.getTileBase(j) : 0;
+			int x = 0;
+			for ( ; x < w8; x += 8) {
+				final long a = src.getLong(s + x * 2);
+				final long b = src.getLong(s + x * 2 + 8);
+				final long y0 = (a >>> s0) & 0xff, y1 = (a >>> s2) & 0xff, y2 = (a >>> s4) & 0xff, y3 = (a >>> s6) & 0xff;
+				final long y4 = (b >>> s0) & 0xff, y5 = (b >>> s2) & 0xff, y6 = (b >>> s4) & 0xff, y7 = (b >>> s6) & 0xff;
+				dst.putLong(y + x, (y0 << d0) | (y1 << d1) | (y2 << d2) | (y3 << d3)
+					| (y4 << d4) | (y5 << d5) | (y6 << d6) | (y7 << d7));
+				if (stats != null) {
+					stats.add(tile, x, (int)y0);
+					stats.add(tile, x + 1, (int)y1);
+					stats.add(tile, x + 2, (int)y2);
+					stats.add(tile, x + 3, (int)y3);
+					stats.add(tile, x + 4, (int)y4);
+					stats.add(tile, x + 5, (int)y5);
+					stats.add(tile, x + 6, (int)y6);
+					stats.add(tile, x + 7, (int)y7);
+				}
+				if (chroma) {
+					final long u0 = (a >>> s1) & 0xff, v0 = (a >>> s3) & 0xff, u1 = (a >>> s5) & 0xff, v1 = (a >>> s7) & 0xff;
+					final long u2 = (b >>> s1) & 0xff, v2 = (b >>> s3) & 0xff, u3 = (b >>> s5) & 0xff, v3 = (b >>> s7) & 0xff;
+					if (planar) {
+						dst.putInt(uPlane + uv + (x >> 1),
+							(int)((u0 << i0) | (u1 << i1) | (u2 << i2) | (u3 << i3)));
+						dst.putInt(vPlane + uv + (x >> 1),
+							(int)((v0 << i0) | (v1 << i1) | (v2 << i2) | (v3 << i3)));
+					} else if (vu) {
+						dst.putLong(uv + x, (v0 << d0) | (u0 << d1) | (v1 << d2) | (u1 << d3)
+							| (v2 << d4) | (u2 << d5) | (v3 << d6) | (u3 << d7));
+					} else {
+						dst.putLong(uv + x, (u0 << d0) | (v0 << d1) | (u1 << d2) | (v1 << d3)
+							| (u2 << d4) | (v2 << d5) | (u3 << d6) | (v3 << d7));
+					}
+				}
+			}
+			// remaining pixels
+			for ( ; x < width; x += 2) {
+				final int p = s + x * 2;
+				dst.put(y + x, src.get(p));
+				dst.put(y + x + 1, src.get(p + 2));
+				if (stats != null) {
+					stats.add(tile, x, src.get(p) & 0xff);
+					stats.add(tile, x + 1, src.get(p + 2) & 0xff);
+				}
+				if (chroma) {
+					final byte u = src.get(p + 1), v = src.get(p + 3);
+					if (planar) {
+						dst.put(uPlane + uv + (x >> 1), u);
+						dst.put(vPlane + uv + (x >> 1), v);
+					} else {
+						dst.put(uv + x, vu ? v : u);
+						dst.put(uv + x + 1, vu ? u : v);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * YUV to RGB color space conversion with selectable color matrix(BT.601/BT.709)
+ * and range(limited/full) using precomputed lookup tables.
+ * Output is packed ARGB int(0xAARRGGBB) that you can pass to Bitmap#setPixels or IntBuffer.
+ * Source frame should be UVCCamera#PIXEL_FORMAT_YUV(YUYV), PIXEL_FORMAT_YUV420SP, PIXEL_FORMAT_NV21
+ * or PIXEL_FORMAT_I420. The frame is split into row stripes that are converted in parallel.
+ * #convert can be called from any thread but frames are converted one by one.
+ */
+public class YuvToRgbConverter {
+	public static final int MATRIX_BT601 = 0;
+	public static final int MATRIX_BT709 = 1;
+
+	/**
+	 * Y:16-235, Cb/Cr:16-240, most of UVC cameras use this
+	 */
+	public static final int RANGE_LIMITED = 0;
+	/**
+	 * Y/Cb/Cr:0-255, ex. JPEG(JFIF)
+	 */
+	public static final int RANGE_FULL = 1;
+
+	/**
+	 * frames that have less rows than this are converted on the caller thread
+	 */
+	private static final int MIN_ROWS_PER_STRIPE = 32;
+	/**
+	 * fraction bits of fixed point values in the tables
+	 */
+	private static final int SHIFT = 16;
+	private static final int ROUND = 1 << (SHIFT - 1);
+	/**
+	 * clamp table, index is value + CLAMP_OFFSET, values out of range of this table never appear
+	 */
+	private static final int CLAMP_OFFSET = 512;
+	private static final int[] CLAMP = new int[CLAMP_OFFSET * 2 + 256];
+	static {
+		for (int i = 0; i < CLAMP.length; i++) {
+			CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+		}
+	}
+	/**
+	 * lookup tables for each color matrix and range, [matrix * 2 + range]
+	 */
+	private static final Tables[] TABLES = {
+		new Tables(MATRIX_BT601, RANGE_LIMITED),
+		new Tables(MATRIX_BT601, RANGE_FULL),
+		new Tables(MATRIX_BT709, RANGE_LIMITED),
+		new Tables(MATRIX_BT709, RANGE_FULL),
+	};
+
+	private final Tables mTables;
+	private final ForkJoinPool mPool;
+	private final boolean mOwnPool;
+	private final Stripe[] mStripes;
+	private final RootTask mRoot = new RootTask();
+	// parameters of current frame, set before invoking the tasks
+	private ByteBuffer mSrc;
+	private int[] mDstArray;
+	private IntBuffer mDstBuffer;
+	private Layout mLayout;
+	private int mNumStripes;
+
+	/**
+	 * constructor, use all available cores
+	 * @param matrix #MATRIX_BT601 or #MATRIX_BT709
+	 * @param range #RANGE_LIMITED or #RANGE_FULL
+	 */
+	public YuvToRgbConverter(final int matrix, final int range) {
+		this(matrix, range, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * constructor
+	 * @param matrix #MATRIX_BT601 or #MATRIX_BT709
+	 * @param range #RANGE_LIMITED or #RANGE_FULL
+	 * @param parallelism number of threads to convert a frame
+	 */
+	public YuvToRgbConverter(final int matrix, final int range, final int parallelism) {
+		this(matrix, range, new ForkJoinPool(Math.max(1, parallelism)), true);
+	}
+
+	/**
+	 * constructor with your own ForkJoinPool, the pool is not shutdown with #release
+	 * @param matrix #MATRIX_BT601 or #MATRIX_BT709
+	 * @param range #RANGE_LIMITED or #RANGE_FULL
+	 * @param pool
+	 */
+	public YuvToRgbConverter(final int matrix, final int range, final ForkJoinPool pool) {
+		this(matrix, range, pool, false);
+	}
+
+	private YuvToRgbConverter(final int matrix, final int range,
+		final ForkJoinPool pool, final boolean ownPool) {
+
+		if ((matrix != MATRIX_BT601) && (matrix != MATRIX_BT709))
+			throw new IllegalArgumentException("unknown color matrix:" + matrix);
+		if ((range != RANGE_LIMITED) && (range != RANGE_FULL))
+			throw new IllegalArgumentException("unknown range:" + range);
+		mTables = TABLES[matrix * 2 + range];
+		mPool = pool;
+		mOwnPool = ownPool;
+		final int n = Math.max(1, pool.getParallelism() * 2);
+		mStripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			mStripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * shutdown internal thread pool
+	 */
+	public void release() {
+		if (mOwnPool) {
+			mPool.shutdown();
+		}
+	}
+
+	/**
+	 * @param srcFormat
+	 * @return true if the pixel format is supported as the source
+	 */
+	public static boolean isSupported(final int srcFormat) {
+		switch (srcFormat) {
+		case UVCCamera.PIXEL_FORMAT_YUV:
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+		case UVCCamera.PIXEL_FORMAT_I420:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * convert the frame into ARGB int array, ex. for Bitmap#setPixels(dst, 0, width, 0, 0, width, height)
+	 * @param src frame from its position, position is not changed
+	 * @param srcFormat
+	 * @param width
+	 * @param height
+	 * @param dst should have width x height elements at least
+	 * @throws IllegalArgumentException
+	 */
+	public synchronized void convert(final ByteBuffer src, final int srcFormat,
+		final int width, final int height, final int[] dst) throws IllegalArgumentException {
+
+		if (dst.length < width * height)
+			throw new IllegalArgumentException("destination array is too small");
+		convert(src, srcFormat, width, height, dst, null);
+	}
+
+	/**
+	 * convert the frame into ARGB IntBuffer.
+	 * dst is written from 0, its position is 0 and limit is width x height after this call.
+	 * @param src frame from its position, position is not changed
+	 * @param srcFormat
+	 * @param width
+	 * @param height
+	 * @param dst
+	 * @throws IllegalArgumentException
+	 */
+	public synchronized void convert(final ByteBuffer src, final int srcFormat,
+		final int width, final int height, final IntBuffer dst) throws IllegalArgumentException {
+
+		if (dst.capacity() < width * height)
+			throw new IllegalArgumentException("destination buffer is too small");
+		convert(src, srcFormat, width, height, null, dst);
+		dst.position(0);
+		dst.limit(width * height);
+	}
+
+	private void convert(final ByteBuffer src, final int srcFormat,
+		final int width, final int height,
+		final int[] dstArray, final IntBuffer dstBuffer) throws IllegalArgumentException {
+
+		if (!isSupported(srcFormat))
+			throw new IllegalArgumentException("unsupported pixel format:" + srcFormat);
+		if (((width & 1) != 0) || ((height & 1) != 0) || (width <= 0) || (height <= 0))
+			throw new IllegalArgumentException("invalid frame size");
+		if (src.remaining() < FramePool.getFrameBytes(width, height, srcFormat))
+			throw new IllegalArgumentException("source frame is too small");
+		if ((mLayout == null) || !mLayout.isSame(srcFormat, width, height)) {
+			mLayout = new Layout(srcFormat, width, height);
+		}
+		final int numStripes = Math.min(mStripes.length, Math.max(1, height / MIN_ROWS_PER_STRIPE));
+		if (numStripes <= 1) {
+			convertRows(mTables, mLayout, src, src.position(), dstArray, dstBuffer, 0, height);
+		} else {
+			mSrc = src;
+			mDstArray = dstArray;
+			mDstBuffer = dstBuffer;
+			mNumStripes = numStripes;
+			try {
+				mRoot.reinitialize();
+				mPool.invoke(mRoot);
+			} finally {
+				mSrc = null;
+				mDstArray = null;
+				mDstBuffer = null;
+			}
+		}
+	}
+
+	private final class RootTask extends RecursiveAction {
+		@Override
+		protected void compute() {
+			final int n = mNumStripes;
+			final int height = mLayout.height;
+			// stripe height should be even to keep chroma rows in the same stripe
+			final int rows = ((height + n - 1) / n + 1) & ~1;
+			final int offset = mSrc.position();
+			int start = 0;
+			int used = 0;
+			for (int i = 0; (i < n) && (start < height); i++) {
+				final Stripe stripe = mStripes[i];
+				stripe.reinitialize();
+				stripe.set(offset, start, Math.min(start + rows, height));
+				start += rows;
+				used++;
+			}
+			for (int i = 1; i < used; i++) {
+				mStripes[i].fork();
+			}
+			mStripes[0].compute();
+			for (int i = 1; i < used; i++) {
+				mStripes[i].join();
+			}
+		}
+	}
+
+	private final class Stripe extends RecursiveAction {
+		private int mOffset, mStart, mEnd;
+
+		private void set(final int offset, final int start, final int end) {
+			mOffset = offset;
+			mStart = start;
+			mEnd = end;
+		}
+
+		@Override
+		protected void compute() {
+			convertRows(mTables, mLayout, mSrc, mOffset, mDstArray, mDstBuffer, mStart, mEnd);
+		}
+	}
+
+	/**
+	 * convert rows, 2 horizontal pixels share chroma
+	 */
+	private static void convertRows(final Tables tables, final Layout layout,
+		final ByteBuffer src, final int offset,
+		final int[] dstArray, final IntBuffer dstBuffer, final int rowStart, final int rowEnd) {
+
+		final int[] yTab = tables.y, rvTab = tables.rv, guTab = tables.gu, gvTab = tables.gv, buTab = tables.bu;
+		final int width = layout.width;
+		final int yps = layout.yPixelStride, cps = layout.cPixelStride;
+		final int[] c = CLAMP;
+		final int o = CLAMP_OFFSET;
+		for (int j = rowStart; j < rowEnd; j++) {
+			int yp = offset + j * layout.yRowStride;
+			int cp = offset + layout.cOffset + (j >> layout.cRowShift) * layout.cRowStride;
+			final int up = layout.uOffset, vp = layout.vOffset;
+			int d = j * width;
+			for (int i = 0; i < width; i += 2, yp += yps * 2, cp += cps, d += 2) {
+				final int u = src.get(cp + up) & 0xff;
+				final int v = src.get(cp + vp) & 0xff;
+				final int rv = rvTab[v] + ROUND;
+				final int guv = guTab[u] + gvTab[v] + ROUND;
+				final int bu = buTab[u] + ROUND;
+				int y = yTab[src.get(yp) & 0xff];
+				final int argb0 = 0xff000000
+					| (c[o + ((y + rv) >> SHIFT)] << 16) | (c[o + ((y + guv) >> SHIFT)] << 8) | c[o + ((y + bu) >> SHIFT)];
+				y = yTab[src.get(yp + yps) & 0xff];
+				final int argb1 = 0xff000000
+					| (c[o + ((y + rv) >> SHIFT)] << 16) | (c[o + ((y + guv) >> SHIFT)] << 8) | c[o + ((y + bu) >> SHIFT)];
+				if (dstArray != null) {
+					dstArray[d] = argb0;
+					dstArray[d + 1] = argb1;
+				} else {
+					dstBuffer.put(d, argb0);
+					dstBuffer.put(d + 1, argb1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * position of Y/U/V in the source frame
+	 */
+	private static final class Layout {
+		private final int format, width, height;
+		private final int yRowStride, yPixelStride;
+		private final int cOffset, cRowShift, cRowStride, cPixelStride, uOffset, vOffset;
+
+		private Layout(final int format, final int width, final int height) {
+			this.format = format;
+			this.width = width;
+			this.height = height;
+			switch (format) {
+			case UVCCamera.PIXEL_FORMAT_YUV:
+				yRowStride = width * 2;
+				yPixelStride = 2;
+				cOffset = 0;
+				cRowShift = 0;
+				cRowStride = width * 2;
+				cPixelStride = 4;
+				uOffset = 1;
+				vOffset = 3;
+				break;
+			case UVCCamera.PIXEL_FORMAT_I420:
+				yRowStride = width;
+				yPixelStride = 1;
+				cOffset = width * height;
+				cRowShift = 1;
+				cRowStride = width / 2;
+				cPixelStride = 1;
+				uOffset = 0;
+				vOffset = (width / 2) * (height / 2);
+				break;
+			default:	// PIXEL_FORMAT_YUV420SP/PIXEL_FORMAT_NV21
+				yRowStride = width;
+				yPixelStride = 1;
+				cOffset = width * height;
+				cRowShift = 1;
+				cRowStride = width;
+				cPixelStride = 2;
+				uOffset = format == UVCCamera.PIXEL_FORMAT_NV21 ? 1 : 0;
+				vOffset = format == UVCCamera.PIXEL_FORMAT_NV21 ? 0 : 1;
+				break;
+			}
+		}
+
+		private boolean isSame(final int format, final int width, final int height) {
+			return (this.format == format) && (this.width == width) && (this.height == height);
+		}
+	}
+
+	/**
+	 * contribution of each Y/U/V value to R/G/B in fixed point
+	 */
+	private static final class Tables {
+		private final int[] y = new int[256];
+		private final int[] rv = new int[256];
+		private final int[] gu = new int[256];
+		private final int[] gv = new int[256];
+		private final int[] bu = new int[256];
+
+		private Tables(final int matrix, final int range) {
+			final double kr = matrix == MATRIX_BT709 ? 0.2126 : 0.299;
+			final double kb = matrix == MATRIX_BT709 ? 0.0722 : 0.114;
+			final double kg = 1.0 - kr - kb;
+			final double scale = 1 << SHIFT;
+			for (int i = 0; i < 256; i++) {
+				final double luma, chroma;
+				if (range == RANGE_LIMITED) {
+					luma = (i - 16) * 255.0 / 219.0;
+					chroma = (i - 128) * 255.0 / 224.0;
+				} else {
+					luma = i;
+					chroma = i - 128;
+				}
+				y[i] = (int)Math.round(luma * scale);
+				rv[i] = (int)Math.round(2.0 * (1.0 - kr) * chroma * scale);
+				gu[i] = (int)Math.round(-2.0 * kb * (1.0 - kb) / kg * chroma * scale);
+				gv[i] = (int)Math.round(-2.0 * kr * (1.0 - kr) / kg * chroma * scale);
+				bu[i] = (int)Math.round(2.0 * (1.0 - kb) * chroma * scale);
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * BandwidthController without Context, learned factors are not stored
+ */
+public class BandwidthControllerTest {
+	private static final int WIDTH = 100, HEIGHT = 100;
+	/**
+	 * frame size for bandwidth factor 1.0
+	 */
+	private static final int REFERENCE = WIDTH * HEIGHT * 2;
+	private static final int WINDOW = 10, MIN_SAMPLES = 5;
+
+	@Test
+	public void round_stepsAndClamp() {
+		assertEquals(0.1f, BandwidthController.round(0.0f), 1e-6);
+		assertEquals(0.1f, BandwidthController.round(0.1f), 1e-6);
+		assertEquals(0.15f, BandwidthController.round(0.101f), 1e-6);
+		assertEquals(0.15f, BandwidthController.round(0.15f), 1e-6);
+		assertEquals(0.5f, BandwidthController.round(0.45001f), 1e-6);
+		assertEquals(1.0f, BandwidthController.round(0.96f), 1e-6);
+		assertEquals(1.0f, BandwidthController.round(2.0f), 1e-6);
+	}
+
+	@Test
+	public void getCompleteBytes_eoiAndPadding() {
+		final ByteBuffer frame = frame(100, 0);
+		assertEquals(100, BandwidthController.getCompleteBytes(frame));
+		// zero padding after EOI is not counted
+		assertEquals(100, BandwidthController.getCompleteBytes(frame(100, 30)));
+		// too long padding
+		assertEquals(0, BandwidthController.getCompleteBytes(frame(100, 2000)));
+		// without EOI
+		frame.limit(99);
+		assertEquals(0, BandwidthController.getCompleteBytes(frame));
+		// from the position
+		final ByteBuffer shifted = frame(100, 0);
+		shifted.position(10);
+		assertEquals(90, BandwidthController.getCompleteBytes(shifted));
+	}
+
+	@Test
+	public void recommend_percentileOfWindow() {
+		final BandwidthController controller = create();
+		controller.setMode(WIDTH, HEIGHT, 30);
+		for (int i = 0; i < MIN_SAMPLES - 1; i++) {
+			controller.record(REFERENCE / 10);
+		}
+		// not enough frames and nothing is stored
+		assertEquals(UVCCamera.DEFAULT_BANDWIDTH, controller.getRecommendedFactor(), 1e-6);
+		controller.record(REFERENCE / 10);
+		assertEquals(0.1f, controller.getRecommendedFactor(), 1e-6);
+		controller.record(REFERENCE * 3 / 10);
+		assertEquals(0.3f, controller.getRecommendedFactor(), 1e-6);
+		// median ignores the largest frame
+		controller.setPercentile(50);
+		assertEquals(0.1f, controller.getRecommendedFactor(), 1e-6);
+		controller.setPercentile(100);
+		// the large frame goes out of the window
+		for (int i = 0; i < WINDOW; i++) {
+			controller.record(REFERENCE / 5);
+		}
+		assertEquals(WINDOW, controller.getSampleCount());
+		assertEquals(REFERENCE / 5, controller.getFrameBytes(100));
+		assertEquals(0.2f, controller.getRecommendedFactor(), 1e-6);
+		// headroom, 0.2 * 1.5 = 0.3
+		controller.setHeadroom(1.5f);
+		assertEquals(0.3f, controller.getRecommendedFactor(), 1e-6);
+		// clamped
+		controller.record(REFERENCE * 2);
+		assertEquals(1.0f, controller.getRecommendedFactor(), 1e-6);
+	}
+
+	@Test
+	public void getFactor_perMode() {
+		final BandwidthController controller = create();
+		controller.setMode(WIDTH, HEIGHT, 30);
+		for (int i = 0; i < MIN_SAMPLES; i++) {
+			controller.record(REFERENCE / 4);
+		}
+		controller.setMode(WIDTH * 2, HEIGHT * 2, 30);
+		assertEquals(0, controller.getSampleCount());
+		assertEquals(UVCCamera.DEFAULT_BANDWIDTH, controller.getRecommendedFactor(), 1e-6);
+		// learned in this session
+		assertEquals(0.25f, controller.getFactor(WIDTH, HEIGHT, 30), 1e-6);
+		// other frame rate is other mode
+		assertEquals(UVCCamera.DEFAULT_BANDWIDTH, controller.getFactor(WIDTH, HEIGHT, 15), 1e-6);
+		// going back to the mode keeps the window
+		controller.setMode(WIDTH, HEIGHT, 30);
+		assertEquals(MIN_SAMPLES, controller.getSampleCount());
+	}
+
+	@Test
+	public void corruptFrames_backOff() {
+		final BandwidthController controller = create();
+		controller.setMaxCorruptionRate(0.2f);
+		controller.setMode(WIDTH, HEIGHT, 30);
+		for (int i = 0; i < WINDOW; i++) {
+			controller.record(REFERENCE / 5);
+		}
+		assertEquals(0.2f, controller.getRecommendedFactor(), 1e-6);
+		// 2 of 10 frames are not over the threshold
+		controller.recordCorrupt();
+		controller.recordCorrupt();
+		assertFalse(controller.isBackedOff());
+		assertEquals(0.2f, controller.getCorruptionRate(), 1e-6);
+		controller.recordCorrupt();
+		assertTrue(controller.isBackedOff());
+		assertEquals(UVCCamera.DEFAULT_BANDWIDTH, controller.getRecommendedFactor(), 1e-6);
+		assertEquals(UVCCamera.DEFAULT_BANDWIDTH, controller.getFactor(WIDTH, HEIGHT, 30), 1e-6);
+		// corrupted frames go out of the window, headroom is increased by 25%
+		for (int i = 0; i < WINDOW; i++) {
+			controller.record(REFERENCE / 5);
+		}
+		assertFalse(controller.isBackedOff());
+		assertEquals(0.25f, controller.getRecommendedFactor(), 1e-6);
+		// nothing is stored without Context
+		assertFalse(controller.save());
+		controller.reset();
+		assertEquals(0, controller.getSampleCount());
+		assertEquals(0.0f, controller.getCorruptionRate(), 1e-6);
+		assertEquals(UVCCamera.DEFAULT_BANDWIDTH, controller.getRecommendedFactor(), 1e-6);
+	}
+
+	@Test
+	public void wrap_recordsEncodedFrames() throws IOException {
+		final int width = 320, height = 240;
+		final byte[] jpeg = JpegDecoderTest.stripHuffmanTables(
+			JpegDecoderTest.encode(JpegDecoderTest.createImage(width, height), 2, 1, 0));
+		final BandwidthController controller = new BandwidthController(null, "test", WINDOW, 1);
+		controller.setMaxCorruptionRate(1.0f);
+		controller.setMode(width, height, 30);
+		final AtomicInteger delivered = new AtomicInteger();
+		final IFrameCallback callback = controller.wrap(new IFrameCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				delivered.incrementAndGet();
+			}
+		});
+		// with zero padding
+		final ByteBuffer padded = ByteBuffer.allocateDirect(jpeg.length + 16);
+		padded.put(jpeg).clear();
+		callback.onFrame(padded);
+		assertEquals(1, controller.getSampleCount());
+		assertEquals(jpeg.length, controller.getFrameBytes(100));
+		// truncated
+		final ByteBuffer truncated = JpegDecoderTest.wrap(jpeg);
+		truncated.limit(jpeg.length / 2);
+		callback.onFrame(truncated);
+		assertEquals(1, controller.getSampleCount());
+		assertEquals(0.5f, controller.getCorruptionRate(), 1e-6);
+		// not JPEG
+		callback.onFrame(ByteBuffer.allocateDirect(width * height * 2));
+		assertEquals(0.5f, controller.getCorruptionRate(), 1e-6);
+		assertEquals(3, delivered.get());
+	}
+
+	private static BandwidthController create() {
+		final BandwidthController controller = new BandwidthController(null, "test", WINDOW, MIN_SAMPLES);
+		controller.setHeadroom(1.0f);
+		controller.setPercentile(100);
+		return controller;
+	}
+
+	/**
+	 * @return SOI, zeros and EOI followed by the padding
+	 */
+	private static ByteBuffer frame(final int bytes, final int padding) {
+		final ByteBuffer result = ByteBuffer.allocateDirect(bytes + padding);
+		result.put(0, (byte)0xff).put(1, (byte)0xd8);
+		result.put(bytes - 2, (byte)0xff).put(bytes - 1, (byte)0xd9);
+		return result;
+	}
+}
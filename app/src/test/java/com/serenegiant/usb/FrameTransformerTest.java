@@ -0,0 +1,198 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * tiled transformation of FrameTransformer against per-pixel reference on the host JVM
+ */
+public class FrameTransformerTest {
+	private static final int[] ROTATIONS = {
+		FrameTransformer.ROTATION_0, FrameTransformer.ROTATION_90,
+		FrameTransformer.ROTATION_180, FrameTransformer.ROTATION_270,
+	};
+	private static final int[] FLIPS = {
+		FrameTransformer.FLIP_NONE, FrameTransformer.FLIP_HORIZONTAL,
+		FrameTransformer.FLIP_VERTICAL, FrameTransformer.FLIP_HORIZONTAL | FrameTransformer.FLIP_VERTICAL,
+	};
+	private static final int[] PACKED_FORMATS = {
+		UVCCamera.PIXEL_FORMAT_GRAY, UVCCamera.PIXEL_FORMAT_RGB565, UVCCamera.PIXEL_FORMAT_RGBX,
+	};
+	private static final int[] YUV420_FORMATS = {
+		UVCCamera.PIXEL_FORMAT_YUV420SP, UVCCamera.PIXEL_FORMAT_NV21, UVCCamera.PIXEL_FORMAT_I420,
+	};
+	/**
+	 * not multiple of the tile size(32) and odd
+	 */
+	private static final int ODD_WIDTH = 45, ODD_HEIGHT = 37;
+	/**
+	 * not multiple of the tile size, chroma planes of YUV420 are odd(35x19)
+	 */
+	private static final int EVEN_WIDTH = 70, EVEN_HEIGHT = 38;
+
+	@Test
+	public void transform_packedMatchesReference() {
+		for (final int format: PACKED_FORMATS) {
+			checkAll(format, ODD_WIDTH, ODD_HEIGHT);
+			checkAll(format, EVEN_WIDTH, EVEN_HEIGHT);
+		}
+	}
+
+	@Test
+	public void transform_yuv420MatchesReference() {
+		for (final int format: YUV420_FORMATS) {
+			checkAll(format, EVEN_WIDTH, EVEN_HEIGHT);
+		}
+	}
+
+	@Test
+	public void transform_rejectsOddYuv420() {
+		final FrameTransformer transformer = new FrameTransformer(FrameTransformer.ROTATION_90, FrameTransformer.FLIP_NONE);
+		final ByteBuffer src = ByteBuffer.allocateDirect(
+			FramePool.getFrameBytes(ODD_WIDTH, ODD_HEIGHT, UVCCamera.PIXEL_FORMAT_NV21));
+		final ByteBuffer dst = ByteBuffer.allocateDirect(src.capacity());
+		try {
+			transformer.transform(src, ODD_WIDTH, ODD_HEIGHT, UVCCamera.PIXEL_FORMAT_NV21, dst);
+			fail("odd size YUV420 frame should be rejected");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * check all combinations of rotation and flip, with same and different byte order of buffers
+	 */
+	private static void checkAll(final int format, final int width, final int height) {
+		final int bytes = FramePool.getFrameBytes(width, height, format);
+		// source frame starts at non-zero position
+		final int offset = 3;
+		final ByteBuffer src = ByteBuffer.allocateDirect(offset + bytes).order(ByteOrder.LITTLE_ENDIAN);
+		final Random random = new Random(format * 31 + width);
+		for (int i = 0; i < src.capacity(); i++) {
+			src.put(i, (byte)random.nextInt(256));
+		}
+		src.position(offset);
+		final ByteOrder[] orders = {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN};
+		for (final int rotation: ROTATIONS) {
+			for (final int flip: FLIPS) {
+				final FrameTransformer transformer = new FrameTransformer(rotation, flip);
+				final byte[] expected = reference(src, offset, format, width, height, rotation, flip);
+				for (final ByteOrder order: orders) {
+					final ByteBuffer dst = ByteBuffer.allocateDirect(bytes).order(order);
+					transformer.transform(src, width, height, format, dst);
+					final String msg = String.format("fmt=%d,%dx%d,rotation=%d,flip=%d,%s",
+						format, width, height, rotation, flip, order);
+					assertEquals(msg, offset, src.position());
+					assertEquals(msg, 0, dst.position());
+					assertEquals(msg, bytes, dst.limit());
+					final byte[] actual = new byte[bytes];
+					dst.get(actual);
+					assertArrayEquals(msg, expected, actual);
+				}
+			}
+		}
+	}
+
+	/**
+	 * per-pixel reference, pixels are moved as is regardless of byte order
+	 */
+	private static byte[] reference(final ByteBuffer src, final int offset, final int format,
+		final int width, final int height, final int rotation, final int flip) {
+
+		final byte[] result = new byte[FramePool.getFrameBytes(width, height, format)];
+		final int ySize = width * height;
+		final int cw = width / 2, ch = height / 2;
+		switch (format) {
+		case UVCCamera.PIXEL_FORMAT_GRAY:
+			referencePlane(src, offset, width, height, 1, rotation, flip, result, 0);
+			break;
+		case UVCCamera.PIXEL_FORMAT_RGB565:
+			referencePlane(src, offset, width, height, 2, rotation, flip, result, 0);
+			break;
+		case UVCCamera.PIXEL_FORMAT_RGBX:
+			referencePlane(src, offset, width, height, 4, rotation, flip, result, 0);
+			break;
+		case UVCCamera.PIXEL_FORMAT_YUV420SP:
+		case UVCCamera.PIXEL_FORMAT_NV21:
+			referencePlane(src, offset, width, height, 1, rotation, flip, result, 0);
+			referencePlane(src, offset + ySize, cw, ch, 2, rotation, flip, result, ySize);
+			break;
+		case UVCCamera.PIXEL_FORMAT_I420:
+			referencePlane(src, offset, width, height, 1, rotation, flip, result, 0);
+			referencePlane(src, offset + ySize, cw, ch, 1, rotation, flip, result, ySize);
+			referencePlane(src, offset + ySize + cw * ch, cw, ch, 1, rotation, flip, result, ySize + cw * ch);
+			break;
+		}
+		return result;
+	}
+
+	/**
+	 * for each output pixel, find the source pixel by rotating counter-clockwise and then flipping
+	 */
+	private static void referencePlane(final ByteBuffer src, final int srcOffset,
+		final int width, final int height, final int bpp, final int rotation, final int flip,
+		final byte[] dst, final int dstOffset) {
+
+		final boolean swap = (rotation == FrameTransformer.ROTATION_90) || (rotation == FrameTransformer.ROTATION_270);
+		final int outWidth = swap ? height : width;
+		final int outHeight = swap ? width : height;
+		for (int oy = 0; oy < outHeight; oy++) {
+			for (int ox = 0; ox < outWidth; ox++) {
+				int x, y;
+				switch (rotation) {
+				case FrameTransformer.ROTATION_90:
+					x = oy;
+					y = height - 1 - ox;
+					break;
+				case FrameTransformer.ROTATION_180:
+					x = width - 1 - ox;
+					y = height - 1 - oy;
+					break;
+				case FrameTransformer.ROTATION_270:
+					x = width - 1 - oy;
+					y = ox;
+					break;
+				default:
+					x = ox;
+					y = oy;
+					break;
+				}
+				if ((flip & FrameTransformer.FLIP_HORIZONTAL) != 0) x = width - 1 - x;
+				if ((flip & FrameTransformer.FLIP_VERTICAL) != 0) y = height - 1 - y;
+				final int s = srcOffset + (y * width + x) * bpp;
+				final int d = dstOffset + (oy * outWidth + ox) * bpp;
+				for (int i = 0; i < bpp; i++) {
+					dst[d + i] = src.get(s + i);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * correctness and throughput of JpegDecoder on the host JVM,
+ * frames are encoded and decoded as reference with javax.imageio(libjpeg)
+ */
+public class JpegDecoderTest {
+	private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+	private static final int[] SCALES = {
+		JpegDecoder.SCALE_1, JpegDecoder.SCALE_1_2, JpegDecoder.SCALE_1_4, JpegDecoder.SCALE_1_8,
+	};
+	/**
+	 * horizontal and vertical sampling factors of luma, 4:2:2(most of UVC cameras) and 4:2:0
+	 */
+	private static final int[][] SAMPLINGS = {{2, 1}, {2, 2}};
+
+	@Test
+	public void decode_lumaMatchesReference() throws IOException {
+		final int width = 643, height = 479;
+		final BufferedImage image = createImage(width, height);
+		for (final int[] sampling: SAMPLINGS) {
+			for (final int restartInterval: new int[] {0, 7}) {
+				final byte[] jpeg = encode(image, sampling[0], sampling[1], restartInterval);
+				final Raster reference = decodeRaster(jpeg);
+				for (final boolean strip: new boolean[] {false, true}) {
+					final ByteBuffer src = wrap(strip ? stripHuffmanTables(jpeg) : jpeg);
+					for (final int scale: SCALES) {
+						final JpegDecoder decoder = new JpegDecoder(scale, UVCCamera.PIXEL_FORMAT_GRAY);
+						final ByteBuffer dst = ByteBuffer.allocateDirect(decoder.getFrameBytes(width, height));
+						decoder.decode(src, dst);
+						assertEquals(0, src.position());
+						assertEquals(width, decoder.getWidth());
+						assertEquals(height, decoder.getHeight());
+						final int w = decoder.getOutputWidth(width), h = decoder.getOutputHeight(height);
+						assertEquals(w * h, dst.limit());
+						double sum = 0;
+						int max = 0;
+						for (int j = 0; j < h; j++) {
+							for (int i = 0; i < w; i++) {
+								final int expected = average(reference, 0, i * scale, j * scale, scale);
+								final int error = Math.abs(expected - (dst.get(j * w + i) & 0xff));
+								sum += error;
+								max = Math.max(max, error);
+							}
+						}
+						final String msg = String.format("sampling=%dx%d,restart=%d,strip=%b,scale=1/%d",
+							sampling[0], sampling[1], restartInterval, strip, scale);
+						if (scale == JpegDecoder.SCALE_1) {
+							// same integer IDCT as libjpeg
+							assertEquals(msg, 0, max);
+						} else {
+							// reduced IDCT samples center of the pixels instead of averaging them
+							assertTrue(msg, sum / (w * h) < 0.5);
+							assertTrue(msg, max <= 4);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void decode_rgbxCloseToReference() throws IOException {
+		final int width = 320, height = 240;
+		final BufferedImage image = createImage(width, height);
+		for (final int[] sampling: SAMPLINGS) {
+			final byte[] jpeg = encode(image, sampling[0], sampling[1], 0);
+			final BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jpeg));
+			final Raster raster = reference.getRaster();
+			for (final int scale: SCALES) {
+				final JpegDecoder decoder = new JpegDecoder(scale, UVCCamera.PIXEL_FORMAT_RGBX);
+				final ByteBuffer dst = ByteBuffer.allocateDirect(decoder.getFrameBytes(width, height));
+				decoder.decode(wrap(jpeg), dst);
+				final int w = decoder.getOutputWidth(width), h = decoder.getOutputHeight(height);
+				double sum = 0;
+				for (int j = 0; j < h; j++) {
+					for (int i = 0; i < w; i++) {
+						for (int c = 0; c < 3; c++) {
+							final int expected = average(raster, c, i * scale, j * scale, scale);
+							sum += Math.abs(expected - (dst.get((j * w + i) * 4 + c) & 0xff));
+						}
+						assertEquals((byte)0xff, dst.get((j * w + i) * 4 + 3));
+					}
+				}
+				// libjpeg uses triangle filter for chroma upsampling, this decoder replicates chroma samples
+				// and at 1/8 scale one chroma DC covers 2x1 or 2x2 output pixels
+				assertTrue("scale=1/" + scale, sum / (w * h * 3) < 3.0);
+			}
+		}
+	}
+
+	@Test
+	public void decode_toFramePool() throws IOException {
+		final int width = 640, height = 480;
+		final byte[] jpeg = encode(createImage(width, height), 2, 1, 0);
+		final JpegDecoder decoder = new JpegDecoder(JpegDecoder.SCALE_1_4, UVCCamera.PIXEL_FORMAT_RGBX);
+		final FramePool pool = decoder.createFramePool(width, height, 1);
+		assertEquals(160, pool.getWidth());
+		assertEquals(120, pool.getHeight());
+		final FrameBuffer frame = decoder.decode(wrap(jpeg), pool);
+		assertNotNull(frame);
+		assertEquals(160 * 120 * 4, frame.getBuffer().limit());
+		assertNull(decoder.decode(wrap(jpeg), pool));
+		frame.release();
+		final FramePool small = new JpegDecoder(UVCCamera.PIXEL_FORMAT_RGBX).createFramePool(320, 240, 1);
+		try {
+			decoder.decode(wrap(jpeg), small);
+			fail("frame size does not match the pool");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(1, small.getAvailableFrames());
+	}
+
+	@Test
+	public void decode_rejectsBrokenFrame() throws IOException {
+		final JpegDecoder decoder = new JpegDecoder(UVCCamera.PIXEL_FORMAT_GRAY);
+		final ByteBuffer dst = ByteBuffer.allocateDirect(640 * 480);
+		try {
+			decoder.decode(ByteBuffer.allocateDirect(1000), dst);
+			fail("not JPEG");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		final byte[] jpeg = encode(createImage(640, 480), 2, 1, 0);
+		final byte[] header = new byte[100];
+		System.arraycopy(jpeg, 0, header, 0, header.length);
+		try {
+			decoder.decode(wrap(header), dst);
+			fail("no SOS");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		// SOS without its body at the end of the frame
+		int sos = 2;
+		while ((jpeg[sos + 1] & 0xff) != 0xda) {
+			sos += (((jpeg[sos + 2] & 0xff) << 8) | (jpeg[sos + 3] & 0xff)) + 2;
+		}
+		final byte[] empty = new byte[sos + 4];
+		System.arraycopy(jpeg, 0, empty, 0, empty.length);
+		empty[sos + 2] = 0;
+		empty[sos + 3] = 2;
+		try {
+			decoder.decode(wrap(empty), dst);
+			fail("broken SOS");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void decode_parallelMatchesSingleThread() throws IOException {
+		final int width = 1283, height = 721;
+		final BufferedImage image = createImage(width, height);
+		for (final int restartInterval: new int[] {0, 1, 13}) {
+			final ByteBuffer src = wrap(encode(image, 2, 1, restartInterval));
+			for (final int format: new int[] {UVCCamera.PIXEL_FORMAT_GRAY, UVCCamera.PIXEL_FORMAT_RGBX}) {
+				for (final int scale: SCALES) {
+					final JpegDecoder single = new JpegDecoder(scale, format);
+					final JpegDecoder parallel = new JpegDecoder(scale, format, 4);
+					try {
+						assertTrue(parallel.isParallel());
+						final ByteBuffer expected = ByteBuffer.allocateDirect(single.getFrameBytes(width, height));
+						final ByteBuffer actual = ByteBuffer.allocateDirect(parallel.getFrameBytes(width, height));
+						single.decode(src, expected);
+						parallel.decode(src, actual);
+						assertEquals(expected.limit(), actual.limit());
+						assertEquals("restart=" + restartInterval + ",fmt=" + format + ",scale=1/" + scale, expected, actual);
+					} finally {
+						parallel.release();
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void benchmark_parallel() throws IOException {
+		// benchmarks are slow, run them with "gradlew test -Duvc.benchmark=true"
+		assumeTrue(Boolean.getBoolean("uvc.benchmark"));
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final int width = 3840, height = 2160;
+		// one restart interval for each MCU row of 4:2:2
+		final ByteBuffer src = wrap(stripHuffmanTables(encode(createImage(width, height), 2, 1, width / 16)));
+		final StringBuilder sb = new StringBuilder();
+		for (final int scale: SCALES) {
+			final JpegDecoder single = new JpegDecoder(scale, UVCCamera.PIXEL_FORMAT_RGBX);
+			final JpegDecoder parallel = new JpegDecoder(scale, UVCCamera.PIXEL_FORMAT_RGBX, threads);
+			try {
+				final ByteBuffer dst = ByteBuffer.allocateDirect(single.getFrameBytes(width, height));
+				sb.append(String.format(", 1/%d %.3f/%.3f ms", scale,
+					measure(single, src, dst), measure(parallel, src, dst)));
+			} finally {
+				parallel.release();
+			}
+		}
+		System.out.printf("JpegDecoder %dx%d(%d bytes) RGBX 1 thread/%d threads%s%n",
+			width, height, src.remaining(), threads, sb);
+	}
+
+	@Test
+	public void benchmark() throws IOException {
+		// benchmarks are slow, run them with "gradlew test -Duvc.benchmark=true"
+		assumeTrue(Boolean.getBoolean("uvc.benchmark"));
+		final int[][] sizes = {{640, 480}, {1280, 720}, {1920, 1080}};
+		for (final int[] size: sizes) {
+			final int width = size[0], height = size[1];
+			final ByteBuffer src = wrap(stripHuffmanTables(encode(createImage(width, height), 2, 1, 0)));
+			for (final int format: new int[] {UVCCamera.PIXEL_FORMAT_GRAY, UVCCamera.PIXEL_FORMAT_RGBX}) {
+				final StringBuilder sb = new StringBuilder();
+				for (final int scale: SCALES) {
+					final JpegDecoder decoder = new JpegDecoder(scale, format);
+					final ByteBuffer dst = ByteBuffer.allocateDirect(decoder.getFrameBytes(width, height));
+					sb.append(String.format(", 1/%d %.3f ms", scale, measure(decoder, src, dst)));
+				}
+				System.out.printf("JpegDecoder %dx%d(%d bytes) fmt=%d%s%n", width, height, src.remaining(), format, sb);
+			}
+		}
+	}
+
+	private static double measure(final JpegDecoder decoder, final ByteBuffer src, final ByteBuffer dst) {
+		for (int i = 0; i < 10; i++) {
+			decoder.decode(src, dst);
+		}
+		final int n = 20;
+		final long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			decoder.decode(src, dst);
+		}
+		return (System.nanoTime() - start) / 1e6 / n;
+	}
+
+	/*package*/static BufferedImage createImage(final int width, final int height) {
+		final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Random random = new Random(width * height);
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				final int r = i * 255 / width, g = j * 255 / height;
+				final int b = ((i ^ j) & 0x3f) + random.nextInt(64);
+				result.setRGB(i, j, (r << 16) | (g << 8) | b);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * encode with javax.imageio, it always writes the standard Huffman tables
+	 */
+	/*package*/static byte[] encode(final BufferedImage image,
+		final int hSampling, final int vSampling, final int restartInterval) throws IOException {
+
+		final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		try {
+			final ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(0.85f);
+			final IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+			final Element tree = (Element)metadata.getAsTree(METADATA_FORMAT);
+			final Element luma = (Element)tree.getElementsByTagName("componentSpec").item(0);
+			luma.setAttribute("HsamplingFactor", Integer.toString(hSampling));
+			luma.setAttribute("VsamplingFactor", Integer.toString(vSampling));
+			if (restartInterval > 0) {
+				final Element markers = (Element)tree.getElementsByTagName("markerSequence").item(0);
+				final IIOMetadataNode dri = new IIOMetadataNode("dri");
+				dri.setAttribute("interval", Integer.toString(restartInterval));
+				markers.insertBefore(dri, markers.getElementsByTagName("sos").item(0));
+			}
+			metadata.setFromTree(METADATA_FORMAT, tree);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+			stream.close();
+			return out.toByteArray();
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * @return YCbCr samples without color conversion
+	 */
+	/*package*/static Raster decodeRaster(final byte[] jpeg) throws IOException {
+		final ImageReader reader = ImageIO.getImageReadersByFormatName("jpg").next();
+		try {
+			reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg)));
+			return reader.readRaster(0, null);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * remove DHT segments like MJPEG frames of UVC cameras
+	 */
+	/*package*/static byte[] stripHuffmanTables(final byte[] jpeg) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(jpeg, 0, 2);
+		int i = 2;
+		for ( ; ; ) {
+			final int marker = jpeg[i + 1] & 0xff;
+			if (marker == 0xda) {
+				out.write(jpeg, i, jpeg.length - i);
+				break;
+			}
+			final int length = ((jpeg[i + 2] & 0xff) << 8) | (jpeg[i + 3] & 0xff);
+			if (marker != 0xc4) {
+				out.write(jpeg, i, length + 2);
+			}
+			i += length + 2;
+		}
+		return out.toByteArray();
+	}
+
+	/*package*/static ByteBuffer wrap(final byte[] data) {
+		final ByteBuffer result = ByteBuffer.allocateDirect(data.length);
+		result.put(data).flip();
+		return result;
+	}
+
+	private static int average(final Raster raster, final int band, final int x, final int y, final int scale) {
+		final int right = Math.min(raster.getWidth(), x + scale);
+		final int bottom = Math.min(raster.getHeight(), y + scale);
+		int sum = 0, count = 0;
+		for (int j = y; j < bottom; j++) {
+			for (int i = x; i < right; i++) {
+				sum += raster.getSample(i, j, band);
+				count++;
+			}
+		}
+		return (sum + count / 2) / count;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * MjpegPassthrough on frames encoded with javax.imageio, repaired frames are decoded with javax.imageio
+ */
+public class MjpegPassthroughTest {
+	private static final int WIDTH = 320, HEIGHT = 240;
+	/**
+	 * marker, length, 4 table headers(class/id and 16 counts) and the values of the standard tables
+	 */
+	private static final int STD_DHT_BYTES = 2 + 2 + 4 * (1 + 16) + 12 + 12 + 162 + 162;
+
+	@Test
+	public void repair_decodesSameAsOriginal() throws IOException {
+		final byte[] original = encode();
+		final byte[] stripped = JpegDecoderTest.stripHuffmanTables(original);
+		final ByteBuffer src = JpegDecoderTest.wrap(stripped);
+		assertFalse(MjpegPassthrough.hasHuffmanTables(src));
+		final int bytes = MjpegPassthrough.getRepairedBytes(src);
+		assertEquals(stripped.length + STD_DHT_BYTES, bytes);
+		final ByteBuffer dst = ByteBuffer.allocateDirect(bytes);
+		assertTrue(MjpegPassthrough.repair(src, dst));
+		assertEquals(0, src.position());
+		assertEquals(0, dst.position());
+		assertEquals(bytes, dst.limit());
+		final ByteBuffer repaired = JpegDecoderTest.wrap(toArray(dst));
+		assertTrue(MjpegPassthrough.hasHuffmanTables(repaired));
+		assertSameImage(original, toArray(dst));
+		try {
+			MjpegPassthrough.repair(src, ByteBuffer.allocateDirect(bytes - 1));
+			fail("dst is too small");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void repair_copiesFrameWithDht() throws IOException {
+		final byte[] original = encode();
+		final ByteBuffer src = JpegDecoderTest.wrap(original);
+		assertTrue(MjpegPassthrough.hasHuffmanTables(src));
+		assertEquals(original.length, MjpegPassthrough.getRepairedBytes(src));
+		final ByteBuffer dst = ByteBuffer.allocateDirect(original.length);
+		assertFalse(MjpegPassthrough.repair(src, dst));
+		assertArrayEquals("copied as is", original, toArray(dst));
+	}
+
+	@Test
+	public void repair_toFramePool() throws IOException {
+		final byte[] original = encode();
+		final byte[] stripped = JpegDecoderTest.stripHuffmanTables(original);
+		final FramePool pool = new FramePool(WIDTH, HEIGHT, UVCCamera.PIXEL_FORMAT_RAW, 1);
+		final FrameBuffer frame = MjpegPassthrough.repair(JpegDecoderTest.wrap(stripped), pool);
+		assertNotNull(frame);
+		try {
+			assertEquals(stripped.length + STD_DHT_BYTES, frame.getBuffer().remaining());
+			assertSameImage(original, toArray(frame.getBuffer()));
+			assertNull(MjpegPassthrough.repair(JpegDecoderTest.wrap(stripped), pool));
+		} finally {
+			frame.release();
+		}
+	}
+
+	@Test
+	public void onFrame_repairsAndPassesThrough() throws IOException {
+		final byte[] original = encode();
+		final byte[] stripped = JpegDecoderTest.stripHuffmanTables(original);
+		final List<ByteBuffer> received = new ArrayList<ByteBuffer>();
+		final List<byte[]> data = new ArrayList<byte[]>();
+		final MjpegPassthrough passthrough = new MjpegPassthrough(new IFrameCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				received.add(frame);
+				data.add(toArray(frame));
+			}
+		});
+		final ByteBuffer withDht = JpegDecoderTest.wrap(original);
+		final ByteBuffer yuyv = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2);
+		// SOI followed by broken marker
+		final ByteBuffer broken = JpegDecoderTest.wrap(new byte[] {(byte)0xff, (byte)0xd8, 0x12, 0x34, 0, 0});
+		passthrough.onFrame(JpegDecoderTest.wrap(stripped));
+		passthrough.onFrame(withDht);
+		passthrough.onFrame(yuyv);
+		passthrough.onFrame(broken);
+		assertEquals(4, received.size());
+		assertEquals(stripped.length + STD_DHT_BYTES, data.get(0).length);
+		assertSameImage(original, data.get(0));
+		// passed as is without copying
+		assertSame(withDht, received.get(1));
+		assertSame(yuyv, received.get(2));
+		assertSame(broken, received.get(3));
+		assertEquals(2, passthrough.getJpegFrames());
+		assertEquals(1, passthrough.getRepairedFrames());
+		assertEquals(2, passthrough.getOtherFrames());
+		try {
+			MjpegPassthrough.hasHuffmanTables(broken);
+			fail("broken header");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static byte[] encode() throws IOException {
+		return JpegDecoderTest.encode(JpegDecoderTest.createImage(WIDTH, HEIGHT), 2, 1, 0);
+	}
+
+	/**
+	 * @return bytes from position to limit, position is not changed
+	 */
+	private static byte[] toArray(final ByteBuffer buffer) {
+		final byte[] result = new byte[buffer.remaining()];
+		buffer.duplicate().get(result);
+		return result;
+	}
+
+	private static void assertSameImage(final byte[] expected, final byte[] actual) throws IOException {
+		final Raster e = JpegDecoderTest.decodeRaster(expected);
+		final Raster a = JpegDecoderTest.decodeRaster(actual);
+		assertEquals(e.getWidth(), a.getWidth());
+		assertEquals(e.getHeight(), a.getHeight());
+		assertEquals(e.getNumBands(), a.getNumBands());
+		for (int b = 0; b < e.getNumBands(); b++) {
+			assertArrayEquals("band " + b, e.getSamples(0, 0, e.getWidth(), e.getHeight(), b, (int[])null),
+				a.getSamples(0, 0, a.getWidth(), a.getHeight(), b, (int[])null));
+		}
+	}
+}
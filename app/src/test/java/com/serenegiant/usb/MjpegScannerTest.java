@@ -0,0 +1,221 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * MjpegScanner on frames encoded with javax.imageio, see JpegDecoderTest for the helpers
+ */
+public class MjpegScannerTest {
+	private static final int WIDTH = 320, HEIGHT = 240;
+	/**
+	 * one restart interval for each MCU row of 4:2:2, 29 restart markers in a frame
+	 */
+	private static final int RESTART_INTERVAL = WIDTH / 16;
+
+	@Test
+	public void validate_validFrames() throws IOException {
+		final byte[] plain = JpegDecoderTest.stripHuffmanTables(encode(0));
+		final byte[] restart = JpegDecoderTest.stripHuffmanTables(encode(RESTART_INTERVAL));
+		assertEquals(MjpegScanner.RESULT_OK, MjpegScanner.validate(JpegDecoderTest.wrap(plain), WIDTH, HEIGHT));
+		assertEquals(MjpegScanner.RESULT_OK, MjpegScanner.validate(JpegDecoderTest.wrap(encode(0)), WIDTH, HEIGHT));
+		// size is not checked
+		assertEquals(MjpegScanner.RESULT_OK, MjpegScanner.validate(JpegDecoderTest.wrap(plain), 0, 0));
+		// every alignment of 8 bytes skip of the entropy coded data
+		for (int offset = 0; offset < 8; offset++) {
+			final ByteBuffer frame = place(restart, offset);
+			assertEquals("offset=" + offset, MjpegScanner.RESULT_OK, MjpegScanner.validate(frame, WIDTH, HEIGHT));
+			assertEquals(offset, frame.position());
+		}
+	}
+
+	@Test
+	public void validate_truncatedFrames() throws IOException {
+		final byte[] jpeg = JpegDecoderTest.stripHuffmanTables(encode(RESTART_INTERVAL));
+		// without EOI
+		assertEquals(MjpegScanner.ERROR_TRUNCATED,
+			MjpegScanner.validate(JpegDecoderTest.wrap(copy(jpeg, 0, jpeg.length - 2)), WIDTH, HEIGHT));
+		// without the last byte of EOI
+		assertEquals(MjpegScanner.ERROR_TRUNCATED,
+			MjpegScanner.validate(JpegDecoderTest.wrap(copy(jpeg, 0, jpeg.length - 1)), WIDTH, HEIGHT));
+		// in the middle of the scan
+		assertEquals(MjpegScanner.ERROR_TRUNCATED,
+			MjpegScanner.validate(JpegDecoderTest.wrap(copy(jpeg, 0, jpeg.length * 2 / 3)), WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void validate_lostBytesInScan() throws IOException {
+		final byte[] jpeg = JpegDecoderTest.stripHuffmanTables(encode(RESTART_INTERVAL));
+		// restart markers RST1, RST3 and RST9(=RST1)
+		final int rst1 = findRestart(jpeg, 1);
+		final int rst3 = findRestart(jpeg, 3);
+		final int rst9 = findRestart(jpeg, 9);
+		assertTrue(rst1 > 0);
+		// RST0 is followed by RST3, out of order
+		assertEquals(MjpegScanner.ERROR_BAD_SCAN,
+			MjpegScanner.validate(JpegDecoderTest.wrap(remove(jpeg, rst1, rst3)), WIDTH, HEIGHT));
+		// 8 intervals are lost, order of restart markers is kept but the number is wrong
+		assertEquals(MjpegScanner.ERROR_BAD_SCAN,
+			MjpegScanner.validate(JpegDecoderTest.wrap(remove(jpeg, rst1, rst9)), WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void validate_brokenScanHeader() throws IOException {
+		final byte[] jpeg = JpegDecoderTest.stripHuffmanTables(encode(RESTART_INTERVAL));
+		final int sos = findSos(jpeg);
+		// SOS without its body at the end of the frame
+		final byte[] empty = copy(jpeg, 0, sos + 4);
+		empty[sos + 2] = 0;
+		empty[sos + 3] = 2;
+		// frame length and size are not checked, otherwise the short frame is rejected before SOS
+		assertEquals(MjpegScanner.ERROR_BAD_SEGMENT, MjpegScanner.validate(JpegDecoderTest.wrap(empty), 0, 0));
+		final MjpegScanner scanner = new MjpegScanner(WIDTH, HEIGHT);
+		scanner.setSizeLimits(0, Integer.MAX_VALUE);
+		assertEquals(MjpegScanner.ERROR_BAD_SEGMENT, scanner.scan(JpegDecoderTest.wrap(empty)));
+		// length does not match with the number of components
+		final byte[] wrong = jpeg.clone();
+		wrong[sos + 3] -= 2;
+		assertEquals(MjpegScanner.ERROR_BAD_SEGMENT, MjpegScanner.validate(JpegDecoderTest.wrap(wrong), WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void validate_sizeMismatch() throws IOException {
+		final ByteBuffer frame = JpegDecoderTest.wrap(JpegDecoderTest.stripHuffmanTables(encode(0)));
+		assertEquals(MjpegScanner.ERROR_SIZE_MISMATCH, MjpegScanner.validate(frame, 640, 480));
+		assertEquals(MjpegScanner.ERROR_SIZE_MISMATCH, MjpegScanner.validate(frame, HEIGHT, WIDTH));
+	}
+
+	@Test
+	public void validate_notJpeg() {
+		final ByteBuffer yuyv = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2);
+		for (int i = 0; i < yuyv.capacity(); i += 2) {
+			yuyv.put(i, (byte)(i & 0xff)).put(i + 1, (byte)0x80);
+		}
+		// same length as YUYV frame, already decoded by native side
+		assertEquals(MjpegScanner.RESULT_NOT_JPEG, MjpegScanner.validate(yuyv, WIDTH, HEIGHT));
+		// size is unknown
+		assertEquals(MjpegScanner.ERROR_NO_SOI, MjpegScanner.validate(yuyv, 0, 0));
+		yuyv.limit(yuyv.capacity() - 2);
+		assertEquals(MjpegScanner.ERROR_NO_SOI, MjpegScanner.validate(yuyv, WIDTH, HEIGHT));
+	}
+
+	@Test
+	public void scan_sizeLimitsAndCounts() throws IOException {
+		final ByteBuffer frame = JpegDecoderTest.wrap(JpegDecoderTest.stripHuffmanTables(encode(0)));
+		final int bytes = frame.remaining();
+		final MjpegScanner scanner = new MjpegScanner(WIDTH, HEIGHT);
+		final AtomicInteger delivered = new AtomicInteger();
+		final IFrameCallback filter = scanner.filter(new IFrameCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				delivered.incrementAndGet();
+			}
+		});
+		filter.onFrame(frame);
+		scanner.setSizeLimits(bytes + 1, bytes * 2);
+		filter.onFrame(frame);
+		scanner.setSizeLimits(0, bytes - 1);
+		filter.onFrame(frame);
+		// setSize resets the limits
+		scanner.setSize(WIDTH, HEIGHT);
+		filter.onFrame(frame);
+		assertEquals(2, delivered.get());
+		assertEquals(4, scanner.getFrames());
+		assertEquals(2, scanner.getCount(MjpegScanner.RESULT_OK));
+		assertEquals(1, scanner.getCount(MjpegScanner.ERROR_TOO_SMALL));
+		assertEquals(1, scanner.getCount(MjpegScanner.ERROR_TOO_LARGE));
+		assertEquals(2, scanner.getCorruptFrames());
+		assertEquals(0.5f, scanner.getCorruptionRate(), 1e-6);
+		scanner.reset();
+		assertEquals(0, scanner.getFrames());
+	}
+
+	private static byte[] encode(final int restartInterval) throws IOException {
+		return JpegDecoderTest.encode(JpegDecoderTest.createImage(WIDTH, HEIGHT), 2, 1, restartInterval);
+	}
+
+	/**
+	 * @return direct ByteBuffer whose position is the offset and the frame is from there
+	 */
+	private static ByteBuffer place(final byte[] data, final int offset) {
+		final ByteBuffer result = ByteBuffer.allocateDirect(offset + data.length);
+		result.position(offset);
+		result.put(data).flip();
+		result.position(offset);
+		return result;
+	}
+
+	/**
+	 * @param n index of restart marker in the frame, RSTm where m = n % 8
+	 * @return index of the marker, -1 if not found
+	 */
+	private static int findRestart(final byte[] jpeg, final int n) {
+		int count = 0;
+		for (int i = 0; i + 1 < jpeg.length; i++) {
+			final int marker = jpeg[i + 1] & 0xff;
+			if ((jpeg[i] == (byte)0xff) && (marker >= 0xd0) && (marker <= 0xd7)) {
+				if (count++ == n) {
+					assertEquals(0xd0 + (n & 7), marker);
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return index of SOS marker
+	 */
+	private static int findSos(final byte[] jpeg) {
+		int i = 2;
+		while ((jpeg[i + 1] & 0xff) != 0xda) {
+			i += (((jpeg[i + 2] & 0xff) << 8) | (jpeg[i + 3] & 0xff)) + 2;
+		}
+		return i;
+	}
+
+	private static byte[] copy(final byte[] data, final int from, final int to) {
+		final byte[] result = new byte[to - from];
+		System.arraycopy(data, from, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @return data without [from, to)
+	 */
+	private static byte[] remove(final byte[] data, final int from, final int to) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(data, 0, from);
+		out.write(data, to, data.length - to);
+		return out.toByteArray();
+	}
+}
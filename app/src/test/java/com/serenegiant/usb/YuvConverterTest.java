@@ -0,0 +1,182 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * correctness and throughput of YuvConverter on the host JVM
+ */
+public class YuvConverterTest {
+	private static final int[] FORMATS = {
+		UVCCamera.PIXEL_FORMAT_YUV420SP, UVCCamera.PIXEL_FORMAT_NV21, UVCCamera.PIXEL_FORMAT_I420,
+	};
+
+	@Test
+	public void convert_matchesReference() {
+		// width that is not multiple of 8 to check remaining pixels
+		final int width = 646, height = 362;
+		final ByteBuffer src = createFrame(width, height, 6);
+		final YuvConverter converter = new YuvConverter(4);
+		try {
+			for (final int format: FORMATS) {
+				final byte[] expected = reference(src, width, height, format);
+				final ByteBuffer dst = ByteBuffer.allocateDirect(FramePool.getFrameBytes(width, height, format));
+				for (final ByteOrder order: new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+					dst.order(order);
+					converter.convert(src, width, height, dst, format);
+					assertEquals(6, src.position());
+					assertContent(expected, dst);
+					YuvConverter.convertSingleThread(src, width, height, dst, format);
+					assertContent(expected, dst);
+					FrameConverter.convert(src, UVCCamera.PIXEL_FORMAT_YUV, width, height, dst, format);
+					assertContent(expected, dst);
+				}
+			}
+		} finally {
+			converter.release();
+		}
+	}
+
+	@Test
+	public void convert_toFramePool() {
+		final int width = 320, height = 240;
+		final ByteBuffer src = createFrame(width, height, 0);
+		final FramePool pool = new FramePool(width, height, UVCCamera.PIXEL_FORMAT_I420, 1);
+		final YuvConverter converter = new YuvConverter(2);
+		try {
+			final FrameBuffer frame = converter.convert(src, pool);
+			assertNotNull(frame);
+			assertNull(converter.convert(src, pool));
+			assertContent(reference(src, width, height, UVCCamera.PIXEL_FORMAT_I420), frame.getBuffer());
+			frame.release();
+			assertEquals(1, pool.getAvailableFrames());
+		} finally {
+			converter.release();
+		}
+	}
+
+	@Test
+	public void benchmark() {
+		// benchmarks are slow, run them with "gradlew test -Duvc.benchmark=true"
+		assumeTrue(Boolean.getBoolean("uvc.benchmark"));
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final int[][] sizes = {{1280, 720}, {1920, 1080}};
+		for (final int[] size: sizes) {
+			final int width = size[0], height = size[1];
+			final ByteBuffer src = createFrame(width, height, 0);
+			for (final int format: FORMATS) {
+				final ByteBuffer dst = ByteBuffer.allocateDirect(FramePool.getFrameBytes(width, height, format))
+					.order(ByteOrder.nativeOrder());
+				final YuvConverter single = new YuvConverter(1);
+				final YuvConverter multi = new YuvConverter(threads);
+				try {
+					final double t1 = measure(single, src, width, height, dst, format);
+					final double tn = measure(multi, src, width, height, dst, format);
+					System.out.printf("YuvConverter %dx%d fmt=%d: 1 thread %.3f ms, %d threads %.3f ms (x%.2f)%n",
+						width, height, format, t1, threads, tn, t1 / tn);
+				} finally {
+					single.release();
+					multi.release();
+				}
+			}
+		}
+	}
+
+	private static double measure(final YuvConverter converter,
+		final ByteBuffer src, final int width, final int height,
+		final ByteBuffer dst, final int format) {
+
+		for (int i = 0; i < 50; i++) {
+			converter.convert(src, width, height, dst, format);
+		}
+		final int n = 200;
+		final long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			converter.convert(src, width, height, dst, format);
+		}
+		return (System.nanoTime() - start) / 1e6 / n;
+	}
+
+	private static ByteBuffer createFrame(final int width, final int height, final int offset) {
+		final byte[] data = new byte[offset + width * height * 2];
+		new Random(width * 31 + height).nextBytes(data);
+		final ByteBuffer result = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+		result.put(data);
+		result.position(offset);
+		return result;
+	}
+
+	/**
+	 * straightforward per-byte conversion
+	 */
+	private static byte[] reference(final ByteBuffer src, final int width, final int height, final int format) {
+		final byte[] result = new byte[FramePool.getFrameBytes(width, height, format)];
+		final int offset = src.position();
+		final int ySize = width * height;
+		final int cw = width / 2;
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				final int p = offset + (j * width + i) * 2;
+				result[j * width + i] = src.get(p);
+				if (((j & 1) == 0) && ((i & 1) == 0)) {
+					final byte u = src.get(p + 1), v = src.get(p + 3);
+					final int c = (j / 2) * cw + i / 2;
+					switch (format) {
+					case UVCCamera.PIXEL_FORMAT_YUV420SP:
+						result[ySize + c * 2] = u;
+						result[ySize + c * 2 + 1] = v;
+						break;
+					case UVCCamera.PIXEL_FORMAT_NV21:
+						result[ySize + c * 2] = v;
+						result[ySize + c * 2 + 1] = u;
+						break;
+					case UVCCamera.PIXEL_FORMAT_I420:
+						result[ySize + c] = u;
+						result[ySize + cw * (height / 2) + c] = v;
+						break;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void assertContent(final byte[] expected, final ByteBuffer actual) {
+		assertEquals(0, actual.position());
+		assertEquals(expected.length, actual.limit());
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] != actual.get(i)) {
+				fail("mismatch at " + i);
+			}
+		}
+	}
+}
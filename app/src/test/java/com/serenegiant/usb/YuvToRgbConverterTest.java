@@ -0,0 +1,210 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * correctness and throughput of YuvToRgbConverter on the host JVM
+ */
+public class YuvToRgbConverterTest {
+	private static final int[] FORMATS = {
+		UVCCamera.PIXEL_FORMAT_YUV, UVCCamera.PIXEL_FORMAT_YUV420SP,
+		UVCCamera.PIXEL_FORMAT_NV21, UVCCamera.PIXEL_FORMAT_I420,
+	};
+
+	@Test
+	public void convert_blackAndWhite() {
+		final int width = 2, height = 2;
+		final ByteBuffer src = ByteBuffer.allocateDirect(8);
+		final int[] dst = new int[4];
+		final YuvToRgbConverter limited = new YuvToRgbConverter(
+			YuvToRgbConverter.MATRIX_BT601, YuvToRgbConverter.RANGE_LIMITED, 1);
+		final YuvToRgbConverter full = new YuvToRgbConverter(
+			YuvToRgbConverter.MATRIX_BT709, YuvToRgbConverter.RANGE_FULL, 1);
+		try {
+			src.put(new byte[] {16, (byte)128, (byte)235, (byte)128, 16, (byte)128, (byte)235, (byte)128}).flip();
+			limited.convert(src, UVCCamera.PIXEL_FORMAT_YUV, width, height, dst);
+			assertEquals(0xff000000, dst[0]);
+			assertEquals(0xffffffff, dst[1]);
+			src.put(0, (byte)0).put(2, (byte)255);
+			full.convert(src, UVCCamera.PIXEL_FORMAT_YUV, width, height, dst);
+			assertEquals(0xff000000, dst[0]);
+			assertEquals(0xffffffff, dst[1]);
+		} finally {
+			limited.release();
+			full.release();
+		}
+	}
+
+	@Test
+	public void convert_matchesReference() {
+		final int width = 320, height = 240;
+		for (int matrix = YuvToRgbConverter.MATRIX_BT601; matrix <= YuvToRgbConverter.MATRIX_BT709; matrix++) {
+			for (int range = YuvToRgbConverter.RANGE_LIMITED; range <= YuvToRgbConverter.RANGE_FULL; range++) {
+				final YuvToRgbConverter converter = new YuvToRgbConverter(matrix, range, 4);
+				try {
+					for (final int format: FORMATS) {
+						final ByteBuffer src = createFrame(width, height, format);
+						final int[] dst = new int[width * height];
+						converter.convert(src, format, width, height, dst);
+						final IntBuffer buf = ByteBuffer.allocateDirect(width * height * 4)
+							.order(ByteOrder.nativeOrder()).asIntBuffer();
+						converter.convert(src, format, width, height, buf);
+						assertEquals(width * height, buf.limit());
+						for (int j = 0; j < height; j++) {
+							for (int i = 0; i < width; i++) {
+								final int expected = reference(src, format, width, height, i, j, matrix, range);
+								assertColor(expected, dst[j * width + i]);
+								assertEquals(dst[j * width + i], buf.get(j * width + i));
+							}
+						}
+					}
+				} finally {
+					converter.release();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void benchmark() {
+		// benchmarks are slow, run them with "gradlew test -Duvc.benchmark=true"
+		assumeTrue(Boolean.getBoolean("uvc.benchmark"));
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final int[][] sizes = {{640, 480}, {1280, 720}, {1920, 1080}};
+		for (final int[] size: sizes) {
+			final int width = size[0], height = size[1];
+			final int[] dst = new int[width * height];
+			for (final int format: new int[] {UVCCamera.PIXEL_FORMAT_YUV, UVCCamera.PIXEL_FORMAT_NV21}) {
+				final ByteBuffer src = createFrame(width, height, format);
+				final YuvToRgbConverter single = new YuvToRgbConverter(
+					YuvToRgbConverter.MATRIX_BT709, YuvToRgbConverter.RANGE_LIMITED, 1);
+				final YuvToRgbConverter multi = new YuvToRgbConverter(
+					YuvToRgbConverter.MATRIX_BT709, YuvToRgbConverter.RANGE_LIMITED, threads);
+				try {
+					final double t1 = measure(single, src, format, width, height, dst);
+					final double tn = measure(multi, src, format, width, height, dst);
+					System.out.printf("YuvToRgbConverter %dx%d fmt=%d: 1 thread %.3f ms(%.1f Mpix/s), %d threads %.3f ms(%.1f Mpix/s)%n",
+						width, height, format, t1, width * height / t1 / 1000, threads, tn, width * height / tn / 1000);
+				} finally {
+					single.release();
+					multi.release();
+				}
+			}
+		}
+	}
+
+	private static double measure(final YuvToRgbConverter converter,
+		final ByteBuffer src, final int format, final int width, final int height, final int[] dst) {
+
+		for (int i = 0; i < 30; i++) {
+			converter.convert(src, format, width, height, dst);
+		}
+		final int n = 100;
+		final long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			converter.convert(src, format, width, height, dst);
+		}
+		return (System.nanoTime() - start) / 1e6 / n;
+	}
+
+	private static ByteBuffer createFrame(final int width, final int height, final int format) {
+		final byte[] data = new byte[FramePool.getFrameBytes(width, height, format)];
+		new Random(format).nextBytes(data);
+		final ByteBuffer result = ByteBuffer.allocateDirect(data.length);
+		result.put(data).flip();
+		return result;
+	}
+
+	/**
+	 * straightforward floating point conversion of one pixel
+	 */
+	private static int reference(final ByteBuffer src, final int format,
+		final int width, final int height, final int x, final int y,
+		final int matrix, final int range) {
+
+		final int luma, u, v;
+		if (format == UVCCamera.PIXEL_FORMAT_YUV) {
+			final int p = (y * width + (x & ~1)) * 2;
+			luma = src.get((y * width + x) * 2) & 0xff;
+			u = src.get(p + 1) & 0xff;
+			v = src.get(p + 3) & 0xff;
+		} else {
+			luma = src.get(y * width + x) & 0xff;
+			final int ySize = width * height;
+			if (format == UVCCamera.PIXEL_FORMAT_I420) {
+				final int c = (y / 2) * (width / 2) + x / 2;
+				u = src.get(ySize + c) & 0xff;
+				v = src.get(ySize + (width / 2) * (height / 2) + c) & 0xff;
+			} else {
+				final int c = ySize + (y / 2) * width + (x & ~1);
+				final boolean nv21 = format == UVCCamera.PIXEL_FORMAT_NV21;
+				u = src.get(c + (nv21 ? 1 : 0)) & 0xff;
+				v = src.get(c + (nv21 ? 0 : 1)) & 0xff;
+			}
+		}
+		final double kr = matrix == YuvToRgbConverter.MATRIX_BT709 ? 0.2126 : 0.299;
+		final double kb = matrix == YuvToRgbConverter.MATRIX_BT709 ? 0.0722 : 0.114;
+		final double kg = 1.0 - kr - kb;
+		final double yy, cb, cr;
+		if (range == YuvToRgbConverter.RANGE_LIMITED) {
+			yy = (luma - 16) * 255.0 / 219.0;
+			cb = (u - 128) * 255.0 / 224.0;
+			cr = (v - 128) * 255.0 / 224.0;
+		} else {
+			yy = luma;
+			cb = u - 128;
+			cr = v - 128;
+		}
+		final int r = clamp(yy + 2 * (1 - kr) * cr);
+		final int g = clamp(yy - 2 * kb * (1 - kb) / kg * cb - 2 * kr * (1 - kr) / kg * cr);
+		final int b = clamp(yy + 2 * (1 - kb) * cb);
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	private static int clamp(final double v) {
+		return (int)Math.max(0, Math.min(255, Math.round(v)));
+	}
+
+	/**
+	 * each component can differ by 1 because of fixed point rounding
+	 */
+	private static void assertColor(final int expected, final int actual) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			final int e = (expected >>> shift) & 0xff, a = (actual >>> shift) & 0xff;
+			if (Math.abs(e - a) > 1) {
+				fail(String.format("expected %08x but %08x", expected, actual));
+			}
+		}
+	}
+}